@@ -0,0 +1,86 @@
+package ninja.abap.odatamock.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * $batch request of independent, scan-heavy retrieve operations, run sequentially or concurrently
+ * (see ODataMockServerBuilder.batchThreads)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+
+	static final int ROWS = 100000;
+	static final int OPERATIONS = 16;
+
+	@Param({ "1", "8" })
+	int batchThreads;
+
+	ODataMockServer mockServer;
+	Server server;
+	LocalConnector connector;
+
+	String batchRequest;
+
+	@Setup
+	public void setup() throws Exception {
+		mockServer = new ODataMockServerBuilder()
+			.edmxFromFile(BenchmarkData.EDMX)
+			.batchThreads(batchThreads)
+			.build();
+		mockServer.getDataStore().putAll("Orders", BenchmarkData.generate(BenchmarkData.metadata(), "Orders", ROWS));
+
+		server = new Server();
+		connector = new LocalConnector(server);
+		server.addConnector(connector);
+		ServletContextHandler handler = new ServletContextHandler();
+		handler.setContextPath("/");
+		handler.addServlet(new ServletHolder(mockServer.servlet), "/*");
+		server.setHandler(handler);
+		server.start();
+
+		// Non-indexed filter and sort: every operation scans all Orders
+		String[] paths = new String[OPERATIONS];
+		for (int i = 0; i < OPERATIONS; i++)
+			paths[i] = "Orders?$filter=Freight%20gt%20" + (i * ROWS / OPERATIONS)
+				+ "&$orderby=ShipName&$top=10&$inlinecount=allpages";
+		batchRequest = ODataServletBenchmark.batch(paths);
+
+		String response = connector.getResponse(batchRequest);
+		if (!response.startsWith("HTTP/1.1 20") || response.contains("\"error\""))
+			throw new IllegalStateException("Request failed: " + batchRequest + "\n" + response);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		server.stop();
+		mockServer.stop();
+	}
+
+	@Benchmark
+	public String batch() throws Exception {
+		return connector.getResponse(batchRequest);
+	}
+
+}
@@ -0,0 +1,39 @@
+package ninja.abap.odatamock.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.olingo.odata2.api.exception.ODataException;
+
+/**
+ * Shared fixtures of the benchmarks: Northwind metadata and generated records.
+ * Benchmarks run from the project directory (as the JUnit tests do).
+ */
+final class BenchmarkData {
+
+	static final String EDMX = "src/test/resources/Northwind.svc.edmx";
+	static final String MOCKDATA = "src/test/resources/mockdata";
+
+	private BenchmarkData() {
+	}
+
+	static MockMetadata metadata() throws IOException, ODataException {
+		return MockMetadata.of(new String(Files.readAllBytes(Paths.get(EDMX)), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Generate records for an Entity Set, with record indexes 1..rows (so keys are unique)
+	 */
+	static List<Map<String, Object>> generate(MockMetadata metadata, String entitySet, int rows)
+			throws ODataException {
+		return new MockDataGenerator(metadata.getEdm(), metadata.getEdmProvider())
+			.recordCounts(Collections.singletonMap(entitySet, rows))
+			.generate(entitySet);
+	}
+
+}
@@ -0,0 +1,71 @@
+package ninja.abap.odatamock.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of full JSON feed pages over HTTP/1.1 sockets (keep-alive), with and without gzip compression.
+ * The client decompresses, so the results include the cost of compression on both sides; the network
+ * savings depend on the link and do not show over loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class HttpTransportBenchmark {
+
+	@Param({ "false", "true" })
+	boolean compression;
+
+	ODataMockServer mockServer;
+	CloseableHttpClient client;
+	String feedUri;
+
+	@Setup
+	public void setup() throws Exception {
+		mockServer = new ODataMockServerBuilder()
+			.edmxFromFile(BenchmarkData.EDMX)
+			.compression(compression)
+			.compressionLevel(1)
+			.build();
+		mockServer.getDataStore().putAll("Orders",
+				BenchmarkData.generate(BenchmarkData.metadata(), "Orders", 1000));
+
+		client = HttpClients.custom().setMaxConnPerRoute(16).setMaxConnTotal(16).build();
+		feedUri = mockServer.getUri() + "/Orders?$top=100&$format=json";
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		client.close();
+		mockServer.stop();
+	}
+
+	@Benchmark
+	public int feed() throws Exception {
+		HttpResponse response = client.execute(new HttpGet(feedUri));
+		return EntityUtils.toByteArray(response.getEntity()).length;
+	}
+
+}
@@ -0,0 +1,57 @@
+package ninja.abap.odatamock.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MockDataGenerator: the default 50 records of an Entity Set, and larger record counts
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MockDataGeneratorBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Generator {
+		MockMetadata metadata;
+		MockDataGenerator generator;
+
+		@Setup
+		public void setup() throws Exception {
+			metadata = BenchmarkData.metadata();
+			generator = new MockDataGenerator(metadata.getEdm(), metadata.getEdmProvider());
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Rows {
+		@Param({ "50", "1000", "100000", "1000000" })
+		int rows;
+	}
+
+	@Benchmark
+	public List<Map<String, Object>> generate(Generator state) throws Exception {
+		return state.generator.generate("Orders");
+	}
+
+	@Benchmark
+	public List<Map<String, Object>> generateRows(Generator state, Rows rows) throws Exception {
+		return BenchmarkData.generate(state.metadata, "Orders", rows.rows);
+	}
+
+}
@@ -0,0 +1,108 @@
+package ninja.abap.odatamock.server;
+
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.olingo.odata2.api.edm.EdmEntityType;
+import org.apache.olingo.odata2.api.edm.EdmLiteralKind;
+import org.apache.olingo.odata2.api.edm.EdmProperty;
+import org.apache.olingo.odata2.api.edm.EdmSimpleType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * MockDataLoader.load: the Northwind fixtures, and generated JSON files of a given size
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MockDataLoaderBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Fixtures {
+		MockMetadata metadata;
+
+		@Setup
+		public void setup() throws Exception {
+			metadata = BenchmarkData.metadata();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Generated {
+		@Param({ "50", "1000", "100000", "1000000" })
+		int rows;
+
+		MockMetadata metadata;
+		Path directory;
+
+		@Setup
+		public void setup() throws Exception {
+			metadata = BenchmarkData.metadata();
+			directory = Files.createTempDirectory("mockdata");
+			write("Orders", BenchmarkData.generate(metadata, "Orders", rows));
+			write("Order_Details", BenchmarkData.generate(metadata, "Order_Details", rows));
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			FileUtils.deleteDirectory(directory.toFile());
+		}
+
+		/** Writes records as an OData JSON feed ({"d":{"results":[...]}}) */
+		void write(String entitySet, List<Map<String, Object>> records) throws Exception {
+			EdmEntityType entityType = metadata.getEdm().getDefaultEntityContainer().getEntitySet(entitySet).getEntityType();
+			try (Writer file = Files.newBufferedWriter(directory.resolve(entitySet + ".json"), StandardCharsets.UTF_8);
+					JsonWriter json = new JsonWriter(file)) {
+				json.beginObject().name("d").beginObject().name("results").beginArray();
+				for (Map<String, Object> record : records) {
+					json.beginObject();
+					for (Map.Entry<String, Object> field : record.entrySet()) {
+						EdmProperty property = (EdmProperty) entityType.getProperty(field.getKey());
+						json.name(field.getKey()).value(((EdmSimpleType) property.getType())
+								.valueToString(field.getValue(), EdmLiteralKind.JSON, property.getFacets()));
+					}
+					json.endObject();
+				}
+				json.endArray().endObject().endObject();
+			}
+		}
+	}
+
+	@Benchmark
+	public MockDataStore loadFixtures(Fixtures state) throws Exception {
+		MockDataStore dataStore = new MockDataStore(state.metadata.getEdmProvider());
+		new MockDataLoader(state.metadata.getEdm(), state.metadata.getEdmProvider(), BenchmarkData.MOCKDATA, dataStore)
+			.load(false);
+		return dataStore;
+	}
+
+	@Benchmark
+	public MockDataStore loadGenerated(Generated state) throws Exception {
+		MockDataStore dataStore = new MockDataStore(state.metadata.getEdmProvider());
+		new MockDataLoader(state.metadata.getEdm(), state.metadata.getEdmProvider(), state.directory.toString(), dataStore)
+			.load(false);
+		return dataStore;
+	}
+
+}
@@ -0,0 +1,116 @@
+package ninja.abap.odatamock.server;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.uri.UriParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MockDataStore reads and writes on an Entity Set of a given size
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MockDataStoreBenchmark {
+
+	@Param({ "50", "1000", "100000", "1000000" })
+	int rows;
+
+	MockDataStore dataStore;
+	List<Map<String, Object>> records;
+	int next;
+	int nextOrderId;
+	MockQuery sortedPage;
+	String deepSkipToken;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws Exception {
+		MockMetadata metadata = BenchmarkData.metadata();
+		dataStore = new MockDataStore(metadata.getEdmProvider());
+		records = BenchmarkData.generate(metadata, "Orders", rows);
+		dataStore.createIndex("Orders", "Freight", MockDataStore.IndexType.SORTED);
+
+		EdmEntitySet entitySet = metadata.getEdm().getDefaultEntityContainer().getEntitySet("Orders");
+		sortedPage = new MockQuery(entitySet)
+				.orderBy(UriParser.parseOrderBy(metadata.getEdm(), entitySet.getEntityType(), "ShipName,OrderID"))
+				.maxRows(20);
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() throws Exception {
+		// Inserts grow the Entity Set: start every iteration from the same data
+		dataStore.truncate("Orders");
+		dataStore.putAll("Orders", records);
+		nextOrderId = rows + 1;
+
+		// $skiptoken of the page in the middle of the sorted Entity Set
+		String skipToken = null;
+		for (int page = 0; page < rows / 40 && page < 100; page++)
+			skipToken = dataStore.query(sortedPage.skipToken(skipToken)).nextSkipToken();
+		deepSkipToken = skipToken;
+	}
+
+	private Map<String, Object> nextRecord() {
+		next = (next + 1) % rows;
+		return records.get(next);
+	}
+
+	@Benchmark
+	public void insert() throws Exception {
+		Map<String, Object> record = new HashMap<>(nextRecord());
+		record.put("OrderID", nextOrderId++);
+		dataStore.insert("Orders", record);
+	}
+
+	@Benchmark
+	public void put() throws Exception {
+		dataStore.put("Orders", nextRecord());
+	}
+
+	@Benchmark
+	public List<Map<String, Object>> putAndFind() throws Exception {
+		// Each put changes an indexed value, so the index used by the lookup is updated
+		Map<String, Object> record = new HashMap<>(nextRecord());
+		record.put("Freight", new BigDecimal(next % 1000));
+		dataStore.put("Orders", record);
+		return dataStore.findRecords("Orders", Collections.singletonMap("Freight", record.get("Freight")));
+	}
+
+	@Benchmark
+	public MockQuery.Result sortedPage() throws Exception {
+		return dataStore.query(sortedPage.skipToken(deepSkipToken));
+	}
+
+	@Benchmark
+	public Map<String, Object> getRecordByKey() throws Exception {
+		Map<String, Object> key = new HashMap<>();
+		key.put("OrderID", nextRecord().get("OrderID"));
+		return dataStore.getRecordByKey("Orders", key);
+	}
+
+	@Benchmark
+	public List<Map<String, Object>> getEntitySet() throws Exception {
+		return dataStore.getEntitySet("Orders");
+	}
+
+}
@@ -0,0 +1,126 @@
+package ninja.abap.odatamock.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end OData requests through MockServlet, in-process (Jetty LocalConnector, no sockets)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ODataServletBenchmark {
+
+	static final String BATCH_BOUNDARY = "batch_benchmark";
+
+	@Param({ "50", "1000", "100000", "1000000" })
+	int rows;
+
+	ODataMockServer mockServer;
+	Server server;
+	LocalConnector connector;
+
+	String filterRequest;
+	String expandRequest;
+	String batchRequest;
+
+	@Setup
+	public void setup() throws Exception {
+		mockServer = new ODataMockServerBuilder()
+			.edmxFromFile(BenchmarkData.EDMX)
+			.build();
+		MockMetadata metadata = BenchmarkData.metadata();
+		mockServer.getDataStore().putAll("Orders", BenchmarkData.generate(metadata, "Orders", rows));
+		mockServer.getDataStore().putAll("Order_Details", BenchmarkData.generate(metadata, "Order_Details", rows));
+
+		server = new Server();
+		connector = new LocalConnector(server);
+		server.addConnector(connector);
+		ServletContextHandler handler = new ServletContextHandler();
+		handler.setContextPath("/");
+		handler.addServlet(new ServletHolder(mockServer.servlet), "/*");
+		server.setHandler(handler);
+		server.start();
+
+		filterRequest = get("Orders?$filter=Freight%20gt%20" + (rows / 2) + "&$top=20&$format=json");
+		expandRequest = get("Orders?$top=20&$expand=Order_Details&$format=json");
+		batchRequest = batch("Orders?$top=20", "Orders(1)", "Order_Details?$filter=OrderID%20eq%201");
+
+		// Fail early on broken requests instead of benchmarking error responses
+		for (String request : new String[] { filterRequest, expandRequest, batchRequest }) {
+			String response = connector.getResponse(request);
+			if (!response.startsWith("HTTP/1.1 20"))
+				throw new IllegalStateException("Request failed: " + request + "\n" + response);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		server.stop();
+		mockServer.stop();
+	}
+
+	static String get(String path) {
+		return "GET /" + path + " HTTP/1.1\r\n"
+			+ "Host: localhost\r\n"
+			+ "Connection: close\r\n"
+			+ "Accept: application/json\r\n"
+			+ "\r\n";
+	}
+
+	static String batch(String... paths) {
+		StringBuilder body = new StringBuilder();
+		for (String path : paths) {
+			body.append("--" + BATCH_BOUNDARY + "\r\n")
+				.append("Content-Type: application/http\r\n")
+				.append("Content-Transfer-Encoding: binary\r\n\r\n")
+				.append("GET " + path + " HTTP/1.1\r\n")
+				.append("Accept: application/json\r\n\r\n\r\n");
+		}
+		body.append("--" + BATCH_BOUNDARY + "--\r\n");
+
+		return "POST /$batch HTTP/1.1\r\n"
+			+ "Host: localhost\r\n"
+			+ "Connection: close\r\n"
+			+ "Content-Type: multipart/mixed; boundary=" + BATCH_BOUNDARY + "\r\n"
+			+ "Content-Length: " + body.toString().getBytes(StandardCharsets.UTF_8).length + "\r\n"
+			+ "\r\n"
+			+ body;
+	}
+
+	@Benchmark
+	public String filter() throws Exception {
+		return connector.getResponse(filterRequest);
+	}
+
+	@Benchmark
+	public String expand() throws Exception {
+		return connector.getResponse(expandRequest);
+	}
+
+	@Benchmark
+	public String batch() throws Exception {
+		return connector.getResponse(batchRequest);
+	}
+
+}
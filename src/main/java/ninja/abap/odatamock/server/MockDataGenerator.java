@@ -16,22 +16,33 @@
 package ninja.abap.odatamock.server;
 
 import java.math.BigDecimal;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.olingo.odata2.api.edm.Edm;
 import org.apache.olingo.odata2.api.edm.EdmEntitySet;
 import org.apache.olingo.odata2.api.edm.EdmEntityType;
 import org.apache.olingo.odata2.api.edm.EdmException;
 import org.apache.olingo.odata2.api.edm.EdmFacets;
-import org.apache.olingo.odata2.api.edm.EdmLiteralKind;
 import org.apache.olingo.odata2.api.edm.EdmSimpleType;
 import org.apache.olingo.odata2.api.edm.EdmType;
 import org.apache.olingo.odata2.api.edm.provider.EdmProvider;
@@ -40,23 +51,63 @@ import org.apache.olingo.odata2.api.edm.provider.EntitySet;
 import org.apache.olingo.odata2.api.edm.provider.EntityType;
 import org.apache.olingo.odata2.api.edm.provider.Property;
 import org.apache.olingo.odata2.api.edm.provider.Schema;
+import org.apache.olingo.odata2.api.exception.ODataApplicationException;
 import org.apache.olingo.odata2.api.exception.ODataException;
 
 import lombok.NonNull;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import ninja.abap.odatamock.server.MockRelationships.ForeignKeyNavigation;
+import ninja.abap.odatamock.server.MockRelationships.LinkNavigation;
 
 /**
  * OData Mock Data Generator
  * Generates missing data for empty Entity Sets  
+ *
+ * Generated values depend only on the record index (and the seed, for random values), so
+ * records are generated in parallel and the same settings always generate the same data.
+ *
+ * Sets generated together (see generate(Collection, MockDataStore)) are related through the
+ * Associations of the EDMX: foreign keys hold keys of existing principal records.
+ *
+ * Each Entity Type is compiled once into a plan of value generators (one per property) that
+ * build the Java values directly, the same values Olingo would read from their JSON literals.
  */
+@Setter
+@Accessors(fluent = true)
 class MockDataGenerator {
 
 	protected final static int RECORD_COUNT = 50;
 
+	/**
+	 * Entity Sets with more records than this are generated in parallel (on the common fork-join pool)
+	 */
+	protected final static int PARALLEL_THRESHOLD = 1000;
+
 	protected final Edm edm;
 	protected final EdmProvider edmProvider;
 
 	protected final Map<String, EntitySet> entitySets = new HashMap<>();
 	protected final Map<EdmEntityType, EntityType> etClient2Prov = new HashMap<>();
+	protected final Map<EdmEntityType, Map<String, Property>> etProperties = new HashMap<>();
+
+	/** Compiled record plans by Entity Type */
+	protected final Map<EdmEntityType, RecordPlan> plans = new ConcurrentHashMap<>();
+
+	/** Base date of Edm.DateTime / Edm.DateTimeOffset values (see date()) */
+	protected final ZonedDateTime now = Instant.ofEpochMilli(System.currentTimeMillis()).atZone(ZoneId.systemDefault());
+
+	/** Number of records generated for each Entity Set */
+	protected int recordCount = RECORD_COUNT;
+
+	/** Number of records generated for specific Entity Sets (Entity Set name / count) */
+	protected @NonNull Map<String, Integer> recordCounts = new HashMap<>();
+
+	/** Seed of the random values (e.g. of Edm.Boolean) */
+	protected long seed = 0;
+
+	/** Distribution of generated dependent records over their principal records */
+	protected @NonNull MockFanOut fanOut = MockFanOut.UNIFORM;
 
 	MockDataGenerator(final @NonNull Edm edm, final @NonNull EdmProvider edmProvider)
 			throws EdmException, ODataException {
@@ -73,6 +124,8 @@ class MockDataGenerator {
 					EdmEntitySet clientES = edm.getDefaultEntityContainer().getEntitySet(provES.getName());
 					EntityType provET = edmProvider.getEntityType(provES.getEntityType());
 					etClient2Prov.put(clientES.getEntityType(), provET);
+					etProperties.put(clientES.getEntityType(), provET.getProperties().stream()
+							.collect(Collectors.toMap(e -> e.getName(), e -> e)));
 				}
 			}
 		}
@@ -81,18 +134,181 @@ class MockDataGenerator {
 	/**
 	 * Generate automatic data for an Entity Set
 	 * @param entitySet Entity Set name
-	 * @return Generated data
+	 * @return Generated data (recordCounts / recordCount records)
 	 * @throws EdmException 
 	 */
 	public List<Map<String, Object>> generate(String entitySet) throws EdmException {
-		List<Map<String, Object>> result = new ArrayList<>(RECORD_COUNT);
+		int count = recordCounts.getOrDefault(entitySet, recordCount);
+		RecordPlan plan = plan(edm.getDefaultEntityContainer().getEntitySet(entitySet).getEntityType());
+
+		if (count <= PARALLEL_THRESHOLD) {
+			List<Map<String, Object>> result = new ArrayList<>(count);
+			for (int i=1; i<=count; i++) {
+				result.add(plan.generate(i));
+			}
+			return result;
+		}
+
+		// Records are generated straight into their final positions, in chunks split by the parallel stream
+		@SuppressWarnings("unchecked")
+		Map<String, Object>[] records = new Map[count];
+		IntStream.range(0, count).parallel().forEach(i -> records[i] = plan.generate(i + 1));
+		return Arrays.asList(records);
+	}
+
+	/**
+	 * Generate automatic data for Entity Sets and store it, with consistent relationships.
+	 * Entity Sets are generated in dependency order (principal Entity Sets first), so the foreign keys of the
+	 * generated records are set to keys of principal records, picked with the fanOut distribution. Entity Sets
+	 * related through link tables (Associations without ReferentialConstraint) are linked the same way.
+	 * Foreign keys stay as generated if the principal Entity Set is empty; within a cycle of Entity Sets,
+	 * they are set once the whole cycle is stored. Indexes of the generated Entity Sets are built upfront.
+	 * @param entitySets Names of the Entity Sets to generate
+	 * @param dataStore Data store with the other (principal) Entity Sets, receives the generated records
+	 * @throws ODataException
+	 */
+	public void generate(Collection<String> entitySets, MockDataStore dataStore) throws ODataException {
+		MockRelationships relationships = dataStore.getRelationships();
+		Set<String> pending = new LinkedHashSet<>(entitySets);
+		Map<String, List<ForeignKeyNavigation>> deferred = new LinkedHashMap<>();
+
+		while (!pending.isEmpty()) {
+			String entitySet = next(pending, relationships);
+			pending.remove(entitySet);
 
-		EdmEntityType entityType = edm.getDefaultEntityContainer().getEntitySet(entitySet).getEntityType();
-		for (int i=1; i<=RECORD_COUNT; i++) {
-			result.add(generateRecord(entityType, i));
+			List<ForeignKeyNavigation> foreignKeys = new ArrayList<>();
+			for (ForeignKeyNavigation foreignKey : relationships.getForeignKeys(entitySet)) {
+				if (pending.contains(foreignKey.principalEntitySet()))
+					deferred.computeIfAbsent(entitySet, es -> new ArrayList<>()).add(foreignKey);
+				else
+					foreignKeys.add(foreignKey);
+			}
+
+			List<Map<String, Object>> records = relate(entitySet, generate(entitySet), foreignKeys, dataStore);
+			dataStore.putAll(entitySet, records);
+			link(entitySet, records, pending, dataStore);
+		}
+
+		for (Map.Entry<String, List<ForeignKeyNavigation>> foreignKeys : deferred.entrySet()) {
+			List<Map<String, Object>> records = new ArrayList<>();
+			for (Map<String, Object> record : dataStore.getEntitySet(foreignKeys.getKey()))
+				records.add(new HashMap<>(record));
+			records = relate(foreignKeys.getKey(), records, foreignKeys.getValue(), dataStore);
+			dataStore.truncateRecords(foreignKeys.getKey());
+			dataStore.putAll(foreignKeys.getKey(), records);
 		}
 
-		return result;
+		for (String entitySet : entitySets)
+			dataStore.buildIndexes(entitySet);
+	}
+
+	/**
+	 * Next Entity Set to generate: the first one whose principal Entity Sets are not pending
+	 * (or the first one, if all pending Entity Sets are in cycles)
+	 */
+	protected String next(Set<String> pending, MockRelationships relationships) {
+		for (String entitySet : pending) {
+			if (relationships.getForeignKeys(entitySet).stream()
+					.map(ForeignKeyNavigation::principalEntitySet)
+					.noneMatch(principal -> !principal.equals(entitySet) && pending.contains(principal)))
+				return entitySet;
+		}
+		return pending.iterator().next();
+	}
+
+	/**
+	 * Set the foreign keys of dependent records to the keys of principal records.
+	 * For a foreign key to the Entity Set itself, principals are the preceding records (a hierarchy).
+	 * If foreign keys are part of the record key and the key is taken, the next principal records are tried;
+	 * records left without a unique key are dropped.
+	 * @param entitySet Dependent Entity Set name
+	 * @param records Dependent records (are changed)
+	 * @param foreignKeys Foreign key navigations to set
+	 * @param dataStore Data store with the principal records
+	 * @return The related records
+	 */
+	protected List<Map<String, Object>> relate(String entitySet, List<Map<String, Object>> records,
+			List<ForeignKeyNavigation> foreignKeys, MockDataStore dataStore) throws ODataException {
+		if (foreignKeys.isEmpty())
+			return records;
+
+		List<String> keyProperties = edm.getDefaultEntityContainer().getEntitySet(entitySet).getEntityType()
+				.getKeyPropertyNames();
+		List<List<Map<String, Object>>> principals = new ArrayList<>();
+		int keyForeignKey = -1;
+		for (ForeignKeyNavigation foreignKey : foreignKeys) {
+			principals.add(foreignKey.principalEntitySet().equals(entitySet) ? records
+					: dataStore.getEntitySet(foreignKey.principalEntitySet()));
+			if (Arrays.stream(foreignKey.dependentProperties()).anyMatch(keyProperties::contains))
+				keyForeignKey = principals.size() - 1;
+		}
+
+		int count = records.size();
+		List<Map<String, Object>> related = new ArrayList<>(count);
+		Set<Object> keys = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			Map<String, Object> record = records.get(i);
+			int keyPick = 0;
+			for (int f = 0; f < foreignKeys.size(); f++) {
+				ForeignKeyNavigation foreignKey = foreignKeys.get(f);
+				List<Map<String, Object>> esPrincipals = principals.get(f);
+				int available = esPrincipals == records ? i : esPrincipals.size();
+				if (available == 0) {
+					// Root of a hierarchy
+					if (esPrincipals == records && f != keyForeignKey)
+						for (String property : foreignKey.dependentProperties())
+							record.put(property, null);
+					continue;
+				}
+				int pick = fanOut.pick(i, count, available, random(foreignKey.name, i));
+				foreignKey.linkDependent(record, esPrincipals.get(pick));
+				if (f == keyForeignKey)
+					keyPick = pick;
+			}
+
+			if (keyForeignKey < 0) {
+				related.add(record);
+				continue;
+			}
+			List<Map<String, Object>> keyPrincipals = principals.get(keyForeignKey);
+			int available = keyPrincipals == records ? i : keyPrincipals.size();
+			for (int attempt = 1; !keys.add(dataStore.getRecordKey(entitySet, record)); attempt++) {
+				if (attempt >= available) {
+					record = null;
+					break;
+				}
+				foreignKeys.get(keyForeignKey).linkDependent(record,
+						keyPrincipals.get((keyPick + attempt) % available));
+			}
+			if (record != null)
+				related.add(record);
+		}
+		return related;
+	}
+
+	/**
+	 * Link generated records to the records of the Entity Sets they share a link table with
+	 * (if they are not pending: pending ones are linked when generated)
+	 */
+	protected void link(String entitySet, List<Map<String, Object>> records, Set<String> pending,
+			MockDataStore dataStore) throws ODataApplicationException {
+		for (LinkNavigation navigation : dataStore.getRelationships().getLinkNavigations(entitySet)) {
+			boolean fromRecords = navigation.sourceEntitySet.equals(entitySet);
+			String other = fromRecords ? navigation.targetEntitySet : navigation.sourceEntitySet;
+			List<Map<String, Object>> targets = dataStore.getEntitySet(other);
+			if (pending.contains(other) || targets.isEmpty())
+				continue;
+
+			int count = records.size();
+			for (int i = 0; i < count; i++) {
+				Map<String, Object> target = targets.get(fanOut.pick(i, count, targets.size(),
+						random(navigation.name, i)));
+				if (fromRecords)
+					navigation.link(records.get(i), target, false);
+				else
+					navigation.link(target, records.get(i), false);
+			}
+		}
 	}
 
 	/**
@@ -104,97 +320,206 @@ class MockDataGenerator {
 	 */
 	public Map<String, Object> generateRecord(EdmEntityType entityType, int index)
 			throws EdmException {
-		int fieldCount = entityType.getPropertyNames().size();
-		Map<String, Object> fields = new HashMap<>(fieldCount);
+		return plan(entityType).generate(index);
+	}
 
-		// Read Provider EntityType
-		EntityType provET = etClient2Prov.get(entityType);
-		Map<String, Property> provProps = provET.getProperties().parallelStream()
-				.collect(Collectors.toMap(e -> e.getName(), e -> e));
+	/**
+	 * Generate the Java value for an Edm type and a record index.
+	 * @see https://www.odata.org/documentation/odata-version-2-0/overview/#AbstractTypeSystem
+	 * 
+	 * @param fieldName Field name
+	 * @param edmType Field Edm type
+	 * @param facets Edm Facets (optional)
+	 * @param index Record index
+	 * @return Appropriate Java object for field
+	 * @throws EdmException
+	 */
+	public Object generateValue(String fieldName, EdmSimpleType edmType, EdmFacets facets, int index) throws EdmException {
+		return compile(fieldName, edmType, facets).generate(index);
+	}
+
+	/**
+	 * Get (or compile) the record plan of an Entity Type
+	 * @param entityType Edm Entity Type
+	 * @return Record plan
+	 * @throws EdmException If a property type is not supported
+	 */
+	protected RecordPlan plan(EdmEntityType entityType) throws EdmException {
+		RecordPlan plan = plans.get(entityType);
+		if (plan != null)
+			return plan;
 
+		// Provider properties of the EntityType
+		Map<String, Property> provProps = etProperties.get(entityType);
+
+		List<String> names = new ArrayList<>();
+		List<ValueGenerator> generators = new ArrayList<>();
 		for (String name : entityType.getPropertyNames()) {
 			EdmType edmType = entityType.getProperty(name).getType();
 			if (edmType instanceof EdmSimpleType) {
 				EdmFacets facets = provProps.get(name).getFacets();
-				fields.put(name, generateValue(name, (EdmSimpleType) edmType, facets, index));
+				names.add(name);
+				generators.add(compile(name, (EdmSimpleType) edmType, facets));
 			}
 		}
 
-		return fields;
+		plan = new RecordPlan(names.toArray(new String[0]), generators.toArray(new ValueGenerator[0]),
+				entityType.getPropertyNames().size());
+		RecordPlan previous = plans.putIfAbsent(entityType, plan);
+		return previous != null ? previous : plan;
 	}
 
 	/**
-	 * Generate the Java value for an Edm type and a record index.
-	 * @see https://www.odata.org/documentation/odata-version-2-0/overview/#AbstractTypeSystem
-	 * 
+	 * Compile the value generator of a field.
+	 * Values are fitted to the facets (MaxLength / Precision) of the field.
 	 * @param fieldName Field name
 	 * @param edmType Field Edm type
 	 * @param facets Edm Facets (optional)
-	 * @param index Record index
-	 * @return Appropriate Java object for field
-	 * @throws EdmException
+	 * @return Value generator
+	 * @throws EdmException If the Edm type is not supported
 	 */
-	public Object generateValue(String fieldName, EdmSimpleType edmType, EdmFacets facets, int index) throws EdmException {
-		String strVal;
-
-		// For DateTime fields
-		Calendar calendar = Calendar.getInstance();
-		calendar.add(Calendar.DAY_OF_YEAR, index - (RECORD_COUNT / 2));
+	protected ValueGenerator compile(String fieldName, EdmSimpleType edmType, EdmFacets facets) throws EdmException {
+		Integer maxLength = facets != null ? facets.getMaxLength() : null;
+		Integer precision = facets != null ? facets.getPrecision() : null;
 
 		switch (edmType.toString()) {
-		case "Edm.Binary":
-			strVal = Base64.encodeBase64String(String.format("%s %d", fieldName, index).getBytes());
-			break;
+		case "Edm.Binary": {
+			String prefix = fieldName + " ";
+			return index -> {
+				byte[] bytes = (prefix + index).getBytes();
+				return maxLength != null && bytes.length > maxLength
+						? Arrays.copyOf(bytes, Math.max(0, maxLength)) : bytes;
+			};
+		}
 		case "Edm.Boolean":
-			strVal = Boolean.valueOf(Math.random() > 0.5).toString();
-			break;
+			return index -> random(fieldName, index).nextBoolean();
 		case "Edm.Byte":
-			strVal = Integer.toString(index % 255);
-			break;
-		case "Edm.DateTime":
-			strVal = String.format("/Date(%d)/", calendar.getTimeInMillis());
-			break;
-		case "Edm.DateTimeOffset": // ISO 8601-ish
-			strVal = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").format(calendar.getTime());
-			break;
-		case "Edm.Decimal":
+			return index -> (short) (index % 255);
+		case "Edm.DateTime": {
+			Calendar prototype = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+			return index -> {
+				Calendar value = (Calendar) prototype.clone();
+				value.setTimeInMillis(date(index).toInstant().toEpochMilli());
+				return value;
+			};
+		}
+		case "Edm.DateTimeOffset": {
+			// Local date and time, read as UTC (ISO 8601 literal with a "Z" suffix)
+			long unit = precision != null && precision < 3 ? pow10(3 - precision) : 1;
+			Calendar prototype = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+			return index -> {
+				ZonedDateTime date = date(index);
+				long millis = date.toInstant().toEpochMilli() + date.getOffset().getTotalSeconds() * 1000L;
+				Calendar value = (Calendar) prototype.clone();
+				value.setTimeInMillis(millis - Math.floorMod(millis, unit));
+				return value;
+			};
+		}
+		case "Edm.Decimal": {
+			long limit = precision != null && precision < 10 ? pow10(precision) : Long.MAX_VALUE;
+			return index -> BigDecimal.valueOf(index % limit);
+		}
 		case "Edm.Double":
+			return index -> (double) index;
 		case "Edm.Single":
-			BigDecimal val = new BigDecimal(index);
-			if (facets != null && facets.getScale() != null)
-				val.setScale(facets.getScale());
-			strVal = val.toPlainString();
-			break;
+			return index -> (float) index;
 		case "Edm.Guid":
-			strVal = String.format("%8d-%4d-%4d-%4d-%12d", index, index, index, index, index).replace(' ', '0');
-			break;
+			// Decimal digits of the index read as hex digits, as in 00000001-0001-0001-0001-000000000001
+			return index -> {
+				long group = hexDigits(index % 10_000);
+				return new UUID(hexDigits(index % 100_000_000) << 32 | group << 16 | group,
+						group << 48 | hexDigits(index));
+			};
 		case "Edm.Int16":
+			return index -> (short) (index % (Short.MAX_VALUE + 1));
 		case "Edm.Int32":
+			return index -> index;
 		case "Edm.Int64":
-			strVal = String.format("%d", index);
-			break;
+			return index -> (long) index;
 		case "Edm.SByte":
-			strVal = Integer.toString(index % 128);
-			break;
-		case "Edm.String":
-			int maxLength = (facets != null && facets.getMaxLength() != null)
-				? Math.max(1, facets.getMaxLength()) : 99;
-			String indexStr = String.format("%d", index);
-			if (maxLength < 3)
-				strVal = StringUtils.truncate(indexStr, maxLength);
-			else
-				strVal = StringUtils.truncate(StringUtils.truncate(fieldName, maxLength - 4)
-						+ " " + indexStr, maxLength);
-			break;
-		case "Edm.Time":
-			strVal = String.format("PT%dH00M", index);
-			break;
+			return index -> (byte) (index % 128);
+		case "Edm.String": {
+			int length = maxLength != null ? Math.max(1, maxLength) : 99;
+			if (length < 3)
+				return index -> StringUtils.truncate(Integer.toString(index), length);
+			String prefix = StringUtils.truncate(fieldName, length - 4) + " ";
+			return index -> StringUtils.truncate(prefix + index, length);
+		}
+		case "Edm.Time": {
+			Calendar[] hours = new Calendar[24];
+			for (int h = 0; h < hours.length; h++) {
+				hours[h] = Calendar.getInstance();
+				hours[h].clear();
+				hours[h].set(Calendar.HOUR_OF_DAY, h);
+				hours[h].set(Calendar.MINUTE, 0);
+				hours[h].set(Calendar.SECOND, 0);
+				hours[h].getTimeInMillis();
+			}
+			return index -> hours[index % 24].clone();
+		}
 		default:
 			throw new EdmException(EdmException.TYPEPROBLEM.addContent(edmType.toString()));
 		}
+	}
+
+	/**
+	 * Date of a record: one day per record index, in the local time zone
+	 */
+	protected ZonedDateTime date(int index) {
+		return now.plusDays(index - (RECORD_COUNT / 2));
+	}
+
+	/**
+	 * Random number generator for a field of a record, derived from the seed
+	 * (so values do not depend on the order or the thread records are generated in)
+	 */
+	protected SplittableRandom random(String fieldName, int index) {
+		return new SplittableRandom(seed ^ (31L * fieldName.hashCode() + index) * 0x9E3779B97F4A7C15L);
+	}
+
+	private static long pow10(int exponent) {
+		long value = 1;
+		for (int i = 0; i < exponent; i++)
+			value *= 10;
+		return value;
+	}
 
-		return edmType.valueOfString(strVal, EdmLiteralKind.JSON, facets, edmType.getDefaultType());
+	private static long hexDigits(long decimal) {
+		long value = 0;
+		for (int shift = 0; decimal > 0; shift += 4, decimal /= 10)
+			value |= (decimal % 10) << shift;
+		return value;
+	}
+
+
+	/**
+	 * Generates the value of a field for a record index
+	 */
+	@FunctionalInterface
+	interface ValueGenerator {
+		Object generate(int index);
+	}
+
+	/**
+	 * Compiled generator of the records of an Entity Type
+	 */
+	static class RecordPlan {
+		final String[] names;
+		final ValueGenerator[] generators;
+		final int capacity;
+
+		RecordPlan(String[] names, ValueGenerator[] generators, int fieldCount) {
+			this.names = names;
+			this.generators = generators;
+			this.capacity = fieldCount;
+		}
+
+		Map<String, Object> generate(int index) {
+			Map<String, Object> fields = new HashMap<>(capacity);
+			for (int i = 0; i < names.length; i++)
+				fields.put(names[i], generators[i].generate(index));
+			return fields;
+		}
 	}
 
-	
 }
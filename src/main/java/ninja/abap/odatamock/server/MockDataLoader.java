@@ -15,26 +15,30 @@
  */
 package ninja.abap.odatamock.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.olingo.odata2.api.edm.Edm;
 import org.apache.olingo.odata2.api.edm.EdmEntitySet;
 import org.apache.olingo.odata2.api.edm.EdmException;
 import org.apache.olingo.odata2.api.edm.provider.EdmProvider;
-import org.apache.olingo.odata2.api.ep.EntityProvider;
 import org.apache.olingo.odata2.api.ep.EntityProviderException;
-import org.apache.olingo.odata2.api.ep.EntityProviderReadProperties;
-import org.apache.olingo.odata2.api.ep.entry.ODataEntry;
-import org.apache.olingo.odata2.api.ep.feed.ODataFeed;
 import org.apache.olingo.odata2.api.exception.ODataException;
 
 import lombok.NonNull;
@@ -49,82 +53,189 @@ class MockDataLoader {
 	protected final EdmProvider edmProvider;
 	protected final Path directory;
 	protected final MockDataStore dataStore;
+	protected final MockDataGenerator generator;
+
+	/** Related records embedded in loaded files, by Entity Set name, until their Entity Set is loaded (lazy mode) */
+	protected final Map<String, List<Map<String, Object>>> embedded = new HashMap<>();
 
 	MockDataLoader(final @NonNull Edm edm, final @NonNull EdmProvider edmProvider,
 			final @NonNull String path, final @NonNull MockDataStore dataStore) throws ODataException {
+		this(edm, edmProvider, path, dataStore, new MockDataGenerator(edm, edmProvider));
+	}
+
+	MockDataLoader(final @NonNull Edm edm, final @NonNull EdmProvider edmProvider,
+			final @NonNull String path, final @NonNull MockDataStore dataStore,
+			final @NonNull MockDataGenerator generator) throws ODataException {
 		this.edm = edm;
 		this.edmProvider = edmProvider;
 		this.directory = Paths.get(path);
 		this.dataStore = dataStore;
+		this.generator = generator;
 	}
 
 	/**
 	 * Load data for the Entity Sets from local JSON files
-	 * @param generateMissing Generate random data for files not found
+	 * Files are read in parallel (one Entity Set per task, on a pool bounded by the number of processors)
+	 * and streamed straight into store records.
+	 * Related records embedded in the files (inline data of navigation properties) are stored in
+	 * their own Entity Sets, unless the Entity Set's own file has a record with the same key.
+	 * @param generateMissing Generate random data for files not found, related to the loaded data
+	 *        (see MockDataGenerator.generate(Collection, MockDataStore))
 	 * @throws ODataException
 	 */
 	public void load(boolean generateMissing) throws ODataException {
-		MockDataGenerator generator = new MockDataGenerator(edm, edmProvider);
+		List<EdmEntitySet> entitySets = edm.getEntitySets();
+		if (entitySets.isEmpty())
+			return;
 
-		for (EdmEntitySet entitySet : edm.getEntitySets()) {
-			try {
-				dataStore.putAll(entitySet.getName(), loadDataFromFile(entitySet.getName()));
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), entitySets.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Map<String, Future<Map<String, List<Map<String, Object>>>>> tasks = new LinkedHashMap<>();
+		try {
+			for (EdmEntitySet entitySet : entitySets)
+				tasks.put(entitySet.getName(), executor.submit(() -> loadEntitySet(entitySet)));
+
+			// Merged in Entity Set order, so the outcome does not depend on task timing
+			Map<String, List<Map<String, Object>>> embedded = new HashMap<>();
+			List<String> missing = new ArrayList<>();
+			for (Map.Entry<String, Future<Map<String, List<Map<String, Object>>>>> task : tasks.entrySet()) {
+				try {
+					task.getValue().get().forEach((entitySet, records) ->
+						embedded.computeIfAbsent(entitySet, k -> new ArrayList<>()).addAll(records));
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof FileNotFoundException) {
+						// TODO - log warning
+						missing.add(task.getKey());
+						continue;
+					}
+					String error = String.format("Error loading data for %s from %s: %s",
+						task.getKey(), directory, e.getCause().getMessage());
+					throw new ODataException(error, e.getCause());
+				}
 			}
-			catch (FileNotFoundException e) {
-				// TODO - log warning
 
-				if (generateMissing) {
-					dataStore.putAll(entitySet.getName(), generator.generate(entitySet.getName()));
+			for (Map.Entry<String, List<Map<String, Object>>> records : embedded.entrySet())
+				dataStore.putAllIfAbsent(records.getKey(), records.getValue());
+
+			if (generateMissing) {
+				List<String> empty = new ArrayList<>();
+				for (String entitySet : missing) {
+					if (dataStore.getEntitySet(entitySet).isEmpty())
+						empty.add(entitySet);
 				}
+				generator.generate(empty, dataStore);
 			}
-			catch (Exception e) {
-				String error = String.format("Error loading data for %s from %s: %s",
-					entitySet.getName(), directory, e.getMessage());
-				throw new ODataException(error, e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ODataException("Interrupted while loading data from " + directory, e);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Load data for a single Entity Set from its local JSON file (for lazy loading, see MockDataStore.setMaterializer)
+	 * Related records embedded in the file are added to their Entity Sets if those are loaded already, or kept
+	 * until they are: as in load(boolean), they do not replace records of the Entity Set's own file and
+	 * prevent generating data for it.
+	 * @param entitySet Entity Set name
+	 * @param generateMissing Generate random data if the file is not found and the Entity Set has no records
+	 * @throws ODataException
+	 */
+	public void load(String entitySet, boolean generateMissing) throws ODataException {
+		List<Map<String, Object>> related = embedded.remove(entitySet);
+		try {
+			for (Map.Entry<String, List<Map<String, Object>>> records :
+					loadEntitySet(edm.getDefaultEntityContainer().getEntitySet(entitySet)).entrySet()) {
+				if (dataStore.isMaterialized(records.getKey()))
+					dataStore.putAllIfAbsent(records.getKey(), records.getValue());
+				else
+					embedded.computeIfAbsent(records.getKey(), k -> new ArrayList<>()).addAll(records.getValue());
 			}
 		}
+		catch (FileNotFoundException e) {
+			// TODO - log warning
+			if (generateMissing && related == null && dataStore.getEntitySet(entitySet).isEmpty())
+				generator.generate(Collections.singletonList(entitySet), dataStore);
+		}
+		catch (IOException e) {
+			String error = String.format("Error loading data for %s from %s: %s",
+				entitySet, directory, e.getMessage());
+			throw new ODataException(error, e);
+		}
+
+		if (related != null)
+			dataStore.putAllIfAbsent(entitySet, related);
+	}
+
+	/**
+	 * Reload the data of an Entity Set from its local JSON file (hot reload, see MockDataWatcher), changing
+	 * only the records that differ from the stored ones (see MockDataStore.sync).
+	 * Related records embedded in the file are added to their Entity Sets, as in load(boolean).
+	 * Entity Sets that are not materialized yet (lazy mode) are left alone, they read the file on first access.
+	 * @param entitySet Entity Set name
+	 * @return The applied changes, or null if the Entity Set does not exist or is not materialized yet
+	 * @throws ODataException If the file cannot be read or parsed (the stored records are kept)
+	 */
+	public MockDataStore.Changes reload(String entitySet) throws ODataException {
+		if (!dataStore.data.containsKey(entitySet) || !dataStore.isMaterialized(entitySet))
+			return null;
+
+		try {
+			Map<String, List<Map<String, Object>>> embedded = new HashMap<>();
+			List<Map<String, Object>> records = loadDataFromFile(edm.getDefaultEntityContainer().getEntitySet(entitySet));
+			for (Map<String, Object> record : records)
+				dataStore.getRelationships().normalize(entitySet, record, embedded);
+
+			MockDataStore.Changes changes = dataStore.sync(entitySet, records);
+			for (Map.Entry<String, List<Map<String, Object>>> related : embedded.entrySet())
+				dataStore.putAllIfAbsent(related.getKey(), related.getValue());
+			return changes;
+		}
+		catch (IOException e) {
+			String error = String.format("Error loading data for %s from %s: %s",
+				entitySet, directory, e.getMessage());
+			throw new ODataException(error, e);
+		}
+	}
+
+	/**
+	 * Load and store the records of an Entity Set from its local file
+	 * @param entitySet Entity Set
+	 * @return Related records embedded in the file, by Entity Set name
+	 * @throws IOException
+	 * @throws ODataException
+	 */
+	protected Map<String, List<Map<String, Object>>> loadEntitySet(EdmEntitySet entitySet) throws IOException, ODataException {
+		Map<String, List<Map<String, Object>>> embedded = new HashMap<>();
+		List<Map<String, Object>> records = loadDataFromFile(entitySet);
+		for (Map<String, Object> record : records)
+			dataStore.getRelationships().normalize(entitySet.getName(), record, embedded);
+		dataStore.putAll(entitySet.getName(), records);
+		return embedded;
 	}
 
 	/**
 	 * Load Entity Set data from the corresponding local file
-	 * @param name EntitySet name
+	 * @param entitySet Entity Set
 	 * @return Raw data loaded from JSON
 	 * @throws IOException 
 	 * @throws EdmException 
 	 * @throws EntityProviderException 
 	 */
-	@SuppressWarnings("unchecked")
-	protected List<Map<String, Object>> loadDataFromFile(String name) throws IOException, EntityProviderException, EdmException {
+	protected List<Map<String, Object>> loadDataFromFile(EdmEntitySet entitySet) throws IOException, EntityProviderException, EdmException {
 		// Check if file exists
-		File file = directory.resolve(name + ".json").toFile();
-		if (! file.exists())
-			throw new FileNotFoundException(file.getPath());
-
-		// Read JSON from file
-		InputStream json = new ByteArrayInputStream(Files.readAllBytes(file.toPath()));
+		Path file = directory.resolve(entitySet.getName() + ".json");
+		if (! Files.exists(file))
+			throw new FileNotFoundException(file.toString());
 
-		// Parse the JSON file using Olingo client
-		ODataFeed feed = EntityProvider.readFeed("application/json",
-		        edm.getDefaultEntityContainer().getEntitySet(name), json,
-		        EntityProviderReadProperties.init().build());
-
-		return (List<Map<String, Object>>) transformAssociation(feed);
-	}
-
-	private Object transformAssociation(Object association) {
-		if (association instanceof ODataFeed) {
-			return ((ODataFeed) association).getEntries().stream()
-				.map(e -> transformAssociation(e))
-				.collect(Collectors.toList());
-		}
-		else if (association instanceof ODataEntry) {
-			Map<String, Object> properties = ((ODataEntry) association).getProperties();
-			properties.keySet().stream()
-				.forEach(k -> properties.put(k, transformAssociation(properties.get(k))));
-			return properties;
+		// Stream the JSON file into records
+		try (Reader json = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+			return new MockFeedReader(json).readFeed(entitySet);
 		}
-		else
-			return association;
 	}
 
 }
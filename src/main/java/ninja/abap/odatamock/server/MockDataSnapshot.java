@@ -0,0 +1,562 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.olingo.odata2.api.exception.ODataApplicationException;
+
+import lombok.NonNull;
+
+/**
+ * Binary snapshot of the data of a Mock Data Store
+ * Snapshots are a cache of the loaded mock data (JSON files stay the authoring format), meant to
+ * be loaded back much faster than parsing the files: see key() for the cache key.
+ *
+ * Records are stored by columns (one per property name), each column with a single type encoding
+ * whenever its values share a Java type; strings are stored once, in a dictionary.
+ * Relations of link tables (Associations without ReferentialConstraint) are stored by record position.
+ * Files are read through a memory-mapped channel, so they are limited to 2 GB.
+ *
+ * Layout: magic, format version, Entity Sets (name, record count, columns), links,
+ * string dictionary, and the dictionary offset as the last 8 bytes.
+ */
+class MockDataSnapshot {
+
+	protected static final int MAGIC = 0x4F4D5344; // "OMSD"
+	protected static final int VERSION = 1;
+
+	// Value types
+	protected static final byte NULL = 0;
+	protected static final byte STRING = 1;
+	protected static final byte BOOLEAN = 2;
+	protected static final byte BYTE = 3;
+	protected static final byte SHORT = 4;
+	protected static final byte INT = 5;
+	protected static final byte LONG = 6;
+	protected static final byte FLOAT = 7;
+	protected static final byte DOUBLE = 8;
+	protected static final byte DECIMAL = 9;
+	protected static final byte CALENDAR = 10;
+	protected static final byte DATE = 11;
+	protected static final byte GUID = 12;
+	protected static final byte BINARY = 13;
+	protected static final byte MAP = 14;
+	protected static final byte LIST = 15;
+	/** Column type of columns with values of different types (each value is prefixed with its type) */
+	protected static final byte MIXED = 16;
+
+	protected final MockDataStore dataStore;
+
+	MockDataSnapshot(final @NonNull MockDataStore dataStore) {
+		this.dataStore = dataStore;
+	}
+
+	/**
+	 * Computes the cache key of the snapshot of a mock data directory
+	 * @param edmx Edmx (metadata) contents
+	 * @param directory Local directory of the JSON files
+	 * @param settings Other settings that change the loaded data (e.g. of data generation)
+	 * @return Hex SHA-256 hash of the snapshot format, Edmx, settings and JSON files (names and contents)
+	 * @throws IOException If the directory cannot be read
+	 */
+	static String key(@NonNull String edmx, @NonNull Path directory, @NonNull String settings) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		digest.update(String.format("%d/%d/%s/", MAGIC, VERSION, settings).getBytes(StandardCharsets.UTF_8));
+		digest.update(edmx.getBytes(StandardCharsets.UTF_8));
+
+		List<Path> files;
+		try (Stream<Path> list = Files.list(directory)) {
+			files = list.filter(f -> f.getFileName().toString().endsWith(".json") && Files.isRegularFile(f))
+				.sorted().collect(Collectors.toList());
+		}
+		byte[] buffer = new byte[64 * 1024];
+		for (Path file : files) {
+			digest.update(("/" + file.getFileName() + "/").getBytes(StandardCharsets.UTF_8));
+			try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+				while (in.read(buffer) >= 0)
+					; // Consumed into the digest
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	/**
+	 * Writes the data of the store to a snapshot file.
+	 * The file is written to a temporary file first and then moved, so concurrent readers
+	 * never see a partially written snapshot.
+	 * @param file Snapshot file
+	 * @throws IOException If the file cannot be written or a value type is not supported
+	 * @throws ODataApplicationException
+	 */
+	public void save(@NonNull Path file) throws IOException, ODataApplicationException {
+		Path parent = file.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+				new Writer(out).write();
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Loads the data of a snapshot file into the store.
+	 * The whole file is decoded before the store is changed, so an invalid file leaves it untouched.
+	 * @param file Snapshot file
+	 * @throws IOException If the file cannot be read or is not a valid snapshot
+	 * @throws ODataApplicationException If the snapshot has Entity Sets that do not exist in the store
+	 */
+	public void load(@NonNull Path file) throws IOException, ODataApplicationException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		Map<String, List<Map<String, Object>>> entitySets;
+		Map<MockRelationships.LinkNavigation, int[]> links;
+		try {
+			Reader reader = new Reader(buffer);
+			entitySets = reader.readEntitySets();
+			links = reader.readLinks(entitySets);
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Invalid snapshot file " + file + ": " + e, e);
+		}
+
+		for (String entitySet : entitySets.keySet())
+			dataStore.getEntitySetData(entitySet); // Fails if the Entity Set does not exist
+		for (Map.Entry<String, List<Map<String, Object>>> records : entitySets.entrySet())
+			dataStore.putAll(records.getKey(), records.getValue());
+
+		for (Map.Entry<MockRelationships.LinkNavigation, int[]> navigationLinks : links.entrySet()) {
+			MockRelationships.LinkNavigation navigation = navigationLinks.getKey();
+			List<Map<String, Object>> sources = entitySets.get(navigation.sourceEntitySet);
+			List<Map<String, Object>> targets = entitySets.get(navigation.targetEntitySet);
+			int[] pairs = navigationLinks.getValue();
+			for (int i = 0; i < pairs.length; i += 2)
+				navigation.link(sources.get(pairs[i]), targets.get(pairs[i + 1]), true);
+		}
+	}
+
+	/**
+	 * Link navigations that own a link table (one per Association Set), in declaration order
+	 */
+	protected Map<String, MockRelationships.LinkNavigation> getLinkNavigations() {
+		Map<String, MockRelationships.LinkNavigation> navigations = new LinkedHashMap<>();
+		Set<MockRelationships.LinkTable> linkTables = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (String entitySet : dataStore.data.keySet()) {
+			for (MockRelationships.Navigation navigation : dataStore.getRelationships().getNavigations(entitySet).values()) {
+				if (!(navigation instanceof MockRelationships.LinkNavigation))
+					continue;
+				MockRelationships.LinkNavigation linkNavigation = (MockRelationships.LinkNavigation) navigation;
+				if (linkNavigation.forward && linkTables.add(linkNavigation.linkTable))
+					navigations.put(entitySet + "/" + navigation.name, linkNavigation);
+			}
+		}
+		return navigations;
+	}
+
+	protected static byte typeOf(Object value) throws IOException {
+		if (value == null) return NULL;
+		if (value instanceof String) return STRING;
+		if (value instanceof Boolean) return BOOLEAN;
+		if (value instanceof Byte) return BYTE;
+		if (value instanceof Short) return SHORT;
+		if (value instanceof Integer) return INT;
+		if (value instanceof Long) return LONG;
+		if (value instanceof Float) return FLOAT;
+		if (value instanceof Double) return DOUBLE;
+		if (value instanceof BigDecimal) return DECIMAL;
+		if (value instanceof Calendar) return CALENDAR;
+		if (value instanceof Date) return DATE;
+		if (value instanceof UUID) return GUID;
+		if (value instanceof byte[]) return BINARY;
+		if (value instanceof Map) return MAP;
+		if (value instanceof List) return LIST;
+		throw new IOException("Unsupported value type in snapshot: " + value.getClass().getName());
+	}
+
+
+	/**
+	 * Snapshot encoder
+	 */
+	protected class Writer {
+		final DataOutputStream out;
+		final Map<String, Integer> strings = new LinkedHashMap<>();
+
+		Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void write() throws IOException, ODataApplicationException {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			Map<String, List<Map<String, Object>>> entitySets = new LinkedHashMap<>();
+			for (String entitySet : dataStore.data.keySet())
+				entitySets.put(entitySet, dataStore.getEntitySet(entitySet));
+
+			out.writeInt(entitySets.size());
+			for (Map.Entry<String, List<Map<String, Object>>> entitySet : entitySets.entrySet())
+				writeEntitySet(entitySet.getKey(), entitySet.getValue());
+
+			writeLinks(entitySets);
+
+			// String dictionary, located through the trailing offset
+			if (out.size() == Integer.MAX_VALUE) // DataOutputStream.size() saturates
+				throw new IOException("Mock data is too large for a snapshot file");
+			long dictionaryOffset = out.size();
+			out.writeInt(strings.size());
+			for (String string : strings.keySet()) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.writeLong(dictionaryOffset);
+		}
+
+		void writeEntitySet(String name, List<Map<String, Object>> records) throws IOException {
+			Map<String, Byte> columns = new LinkedHashMap<>();
+			for (Map<String, Object> record : records) {
+				for (Map.Entry<String, Object> field : record.entrySet()) {
+					byte type = typeOf(field.getValue());
+					Byte columnType = columns.get(field.getKey());
+					if (columnType == null || columnType == NULL)
+						columns.put(field.getKey(), type);
+					else if (type != NULL && type != columnType)
+						columns.put(field.getKey(), MIXED);
+				}
+			}
+
+			writeString(name);
+			out.writeInt(records.size());
+			out.writeInt(columns.size());
+			for (Map.Entry<String, Byte> column : columns.entrySet()) {
+				String property = column.getKey();
+				byte type = column.getValue();
+				BitSet present = new BitSet(records.size());
+				BitSet nonNull = new BitSet(records.size());
+				for (int i = 0; i < records.size(); i++) {
+					Map<String, Object> record = records.get(i);
+					if (record.containsKey(property)) {
+						present.set(i);
+						if (record.get(property) != null)
+							nonNull.set(i);
+					}
+				}
+
+				writeString(property);
+				out.writeByte(type);
+				writeBits(present);
+				writeBits(nonNull);
+				for (int i = nonNull.nextSetBit(0); i >= 0; i = nonNull.nextSetBit(i + 1)) {
+					Object value = records.get(i).get(property);
+					if (type == MIXED)
+						writeTypedValue(value);
+					else
+						writeValue(type, value);
+				}
+			}
+		}
+
+		void writeLinks(Map<String, List<Map<String, Object>>> entitySets) throws IOException, ODataApplicationException {
+			Map<String, MockRelationships.LinkNavigation> navigations = getLinkNavigations();
+			out.writeInt(navigations.size());
+			for (Map.Entry<String, MockRelationships.LinkNavigation> navigation : navigations.entrySet()) {
+				MockRelationships.LinkNavigation linkNavigation = navigation.getValue();
+				Map<Object, Integer> sources = positions(linkNavigation.sourceEntitySet,
+						entitySets.get(linkNavigation.sourceEntitySet));
+				Map<Object, Integer> targets = positions(linkNavigation.targetEntitySet,
+						entitySets.get(linkNavigation.targetEntitySet));
+
+				// Links of records that do not exist (anymore) are left out
+				List<int[]> pairs = new ArrayList<>();
+				for (Map.Entry<Object, Set<Object>> links : linkNavigation.linkTable.forward.entrySet()) {
+					Integer source = sources.get(links.getKey());
+					if (source == null)
+						continue;
+					for (Object targetKey : links.getValue()) {
+						Integer target = targets.get(targetKey);
+						if (target != null)
+							pairs.add(new int[] { source, target });
+					}
+				}
+
+				writeString(navigation.getKey());
+				out.writeInt(pairs.size());
+				for (int[] pair : pairs) {
+					out.writeInt(pair[0]);
+					out.writeInt(pair[1]);
+				}
+			}
+		}
+
+		Map<Object, Integer> positions(String entitySet, List<Map<String, Object>> records) throws ODataApplicationException {
+			Map<Object, Integer> positions = new HashMap<>(records.size() * 2);
+			for (int i = 0; i < records.size(); i++)
+				positions.put(dataStore.getRecordKey(entitySet, records.get(i)), i);
+			return positions;
+		}
+
+		void writeBits(BitSet bits) throws IOException {
+			long[] words = bits.toLongArray();
+			out.writeInt(words.length);
+			for (long word : words)
+				out.writeLong(word);
+		}
+
+		void writeString(String string) throws IOException {
+			Integer id = strings.get(string);
+			if (id == null) {
+				id = strings.size();
+				strings.put(string, id);
+			}
+			out.writeInt(id);
+		}
+
+		void writeTypedValue(Object value) throws IOException {
+			byte type = typeOf(value);
+			out.writeByte(type);
+			writeValue(type, value);
+		}
+
+		@SuppressWarnings("unchecked")
+		void writeValue(byte type, Object value) throws IOException {
+			switch (type) {
+			case NULL: break;
+			case STRING: writeString((String) value); break;
+			case BOOLEAN: out.writeBoolean((Boolean) value); break;
+			case BYTE: out.writeByte((Byte) value); break;
+			case SHORT: out.writeShort((Short) value); break;
+			case INT: out.writeInt((Integer) value); break;
+			case LONG: out.writeLong((Long) value); break;
+			case FLOAT: out.writeFloat((Float) value); break;
+			case DOUBLE: out.writeDouble((Double) value); break;
+			case DECIMAL: writeString(value.toString()); break;
+			case CALENDAR:
+				Calendar calendar = (Calendar) value;
+				out.writeLong(calendar.getTimeInMillis());
+				writeString(calendar.getTimeZone().getID());
+				break;
+			case DATE: out.writeLong(((Date) value).getTime()); break;
+			case GUID:
+				out.writeLong(((UUID) value).getMostSignificantBits());
+				out.writeLong(((UUID) value).getLeastSignificantBits());
+				break;
+			case BINARY:
+				out.writeInt(((byte[]) value).length);
+				out.write((byte[]) value);
+				break;
+			case MAP:
+				Map<String, Object> map = (Map<String, Object>) value;
+				out.writeInt(map.size());
+				for (Map.Entry<String, Object> field : map.entrySet()) {
+					writeString(field.getKey());
+					writeTypedValue(field.getValue());
+				}
+				break;
+			case LIST:
+				List<Object> list = (List<Object>) value;
+				out.writeInt(list.size());
+				for (Object item : list)
+					writeTypedValue(item);
+				break;
+			default:
+				throw new IOException("Unsupported value type in snapshot: " + type);
+			}
+		}
+	}
+
+	/**
+	 * Snapshot decoder
+	 */
+	protected class Reader {
+		final ByteBuffer in;
+		final String[] strings;
+
+		Reader(ByteBuffer in) throws IOException {
+			this.in = in;
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+				throw new IOException("Not a snapshot file, or written by another version");
+
+			int bodyPosition = in.position();
+			in.position((int) in.getLong(in.limit() - Long.BYTES));
+			strings = new String[in.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				byte[] bytes = new byte[in.getInt()];
+				in.get(bytes);
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			in.position(bodyPosition);
+		}
+
+		Map<String, List<Map<String, Object>>> readEntitySets() throws IOException {
+			Map<String, List<Map<String, Object>>> entitySets = new LinkedHashMap<>();
+			int count = in.getInt();
+			for (int i = 0; i < count; i++) {
+				String name = readString();
+				int size = in.getInt();
+				List<Map<String, Object>> records = new ArrayList<>(size);
+				for (int r = 0; r < size; r++)
+					records.add(new HashMap<>());
+
+				int columns = in.getInt();
+				for (int c = 0; c < columns; c++) {
+					String property = readString();
+					byte type = in.get();
+					BitSet present = readBits();
+					BitSet nonNull = readBits();
+					for (int r = present.nextSetBit(0); r >= 0; r = present.nextSetBit(r + 1)) {
+						Object value = null;
+						if (nonNull.get(r))
+							value = type == MIXED ? readTypedValue() : readValue(type);
+						records.get(r).put(property, value);
+					}
+				}
+				entitySets.put(name, records);
+			}
+			return entitySets;
+		}
+
+		Map<MockRelationships.LinkNavigation, int[]> readLinks(Map<String, List<Map<String, Object>>> entitySets)
+				throws IOException {
+			Map<String, MockRelationships.LinkNavigation> navigations = getLinkNavigations();
+			Map<MockRelationships.LinkNavigation, int[]> links = new LinkedHashMap<>();
+			int count = in.getInt();
+			for (int i = 0; i < count; i++) {
+				String name = readString();
+				int[] pairs = new int[in.getInt() * 2];
+				for (int p = 0; p < pairs.length; p++)
+					pairs[p] = in.getInt();
+
+				MockRelationships.LinkNavigation navigation = navigations.get(name);
+				if (navigation == null || !entitySets.containsKey(navigation.sourceEntitySet)
+						|| !entitySets.containsKey(navigation.targetEntitySet))
+					throw new IOException("Unknown link navigation in snapshot: " + name);
+				links.put(navigation, pairs);
+			}
+			return links;
+		}
+
+		BitSet readBits() {
+			long[] words = new long[in.getInt()];
+			for (int i = 0; i < words.length; i++)
+				words[i] = in.getLong();
+			return BitSet.valueOf(words);
+		}
+
+		String readString() {
+			return strings[in.getInt()];
+		}
+
+		Object readTypedValue() throws IOException {
+			return readValue(in.get());
+		}
+
+		Object readValue(byte type) throws IOException {
+			switch (type) {
+			case NULL: return null;
+			case STRING: return readString();
+			case BOOLEAN: return in.get() != 0;
+			case BYTE: return in.get();
+			case SHORT: return in.getShort();
+			case INT: return in.getInt();
+			case LONG: return in.getLong();
+			case FLOAT: return in.getFloat();
+			case DOUBLE: return in.getDouble();
+			case DECIMAL: return new BigDecimal(readString());
+			case CALENDAR:
+				long millis = in.getLong();
+				Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(readString()));
+				calendar.clear();
+				calendar.setTimeInMillis(millis);
+				return calendar;
+			case DATE: return new Date(in.getLong());
+			case GUID: return new UUID(in.getLong(), in.getLong());
+			case BINARY:
+				byte[] bytes = new byte[in.getInt()];
+				in.get(bytes);
+				return bytes;
+			case MAP:
+				int fields = in.getInt();
+				Map<String, Object> map = new HashMap<>();
+				for (int i = 0; i < fields; i++)
+					map.put(readString(), readTypedValue());
+				return map;
+			case LIST:
+				int items = in.getInt();
+				List<Object> list = new ArrayList<>(items);
+				for (int i = 0; i < items; i++)
+					list.add(readTypedValue());
+				return list;
+			default:
+				throw new IOException("Unsupported value type in snapshot: " + type);
+			}
+		}
+	}
+
+}
@@ -15,19 +15,19 @@
  */
 package ninja.abap.odatamock.server;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import org.apache.olingo.odata2.annotation.processor.core.datasource.DataSource;
 import org.apache.olingo.odata2.api.edm.EdmEntitySet;
-import org.apache.olingo.odata2.api.edm.EdmEntityType;
 import org.apache.olingo.odata2.api.edm.EdmException;
 import org.apache.olingo.odata2.api.edm.EdmFunctionImport;
-import org.apache.olingo.odata2.api.edm.EdmNavigationProperty;
 import org.apache.olingo.odata2.api.edm.provider.EdmProvider;
 import org.apache.olingo.odata2.api.exception.ODataApplicationException;
+import org.apache.olingo.odata2.api.exception.ODataException;
 import org.apache.olingo.odata2.api.exception.ODataNotFoundException;
 import org.apache.olingo.odata2.api.exception.ODataNotImplementedException;
 
@@ -47,6 +47,11 @@ public class MockDataSource implements DataSource {
 	@Getter
 	protected final Map<String, FunctionImportHandler> functionImportHandlers = new HashMap<>();
 
+	/**
+	 * Copies of the records read by an update running on the current thread (see update), by stored record
+	 */
+	protected final ThreadLocal<Map<Map<String, Object>, Copy>> copies = new ThreadLocal<>();
+
 	@Override
 	public List<?> readData(EdmEntitySet entitySet)
 			throws ODataNotImplementedException, ODataNotFoundException, EdmException, ODataApplicationException {
@@ -56,7 +61,8 @@ public class MockDataSource implements DataSource {
 	@Override
 	public Object readData(EdmEntitySet entitySet, Map<String, Object> keys)
 			throws ODataNotImplementedException, ODataNotFoundException, EdmException, ODataApplicationException {
-		return dataStore.getRecordByKey(entitySet.getName(), keys);
+		Map<String, Object> record = dataStore.getRecordByKey(entitySet.getName(), keys);
+		return record == null ? null : copyForUpdate(entitySet.getName(), record);
 	}
 
 	@Override
@@ -74,15 +80,56 @@ public class MockDataSource implements DataSource {
 	public Object readRelatedData(EdmEntitySet sourceEntitySet, Object sourceData, EdmEntitySet targetEntitySet,
 			Map<String, Object> targetKeys)
 			throws ODataNotImplementedException, ODataNotFoundException, EdmException, ODataApplicationException {
-		// Single record access?
-		if (targetKeys != null && !targetKeys.isEmpty())
-			return dataStore.getRecordByKey(targetEntitySet.getName(), targetKeys);
+		return readRelatedData(sourceEntitySet, sourceData,
+				findNavigationPropertyName(sourceEntitySet, targetEntitySet), targetEntitySet, targetKeys);
+	}
 
-		// Entity Set navigation access
+	/**
+	 * Reads the data related to a record through a specific navigation property.
+	 * Unlike readRelatedData(EdmEntitySet, Object, EdmEntitySet, Map), this is not ambiguous when
+	 * several navigation properties lead to the same Entity Set.
+	 * Related records are resolved through foreign keys or links (see MockRelationships). Records that were
+	 * put into the data store with embedded related records under the navigation property name are served as they are.
+	 * @param navigationProperty Navigation property name of the source Entity Type
+	 */
+	@SuppressWarnings("unchecked")
+	public Object readRelatedData(EdmEntitySet sourceEntitySet, Object sourceData, String navigationProperty,
+			EdmEntitySet targetEntitySet, Map<String, Object> targetKeys)
+			throws ODataNotImplementedException, ODataNotFoundException, EdmException, ODataApplicationException {
+		if (sourceData == null)
+			throw new ODataNotFoundException(ODataNotFoundException.ENTITY);
 		Map<String, Object> sourceEntry = (Map<String, Object>) sourceData;
+		MockRelationships.Navigation navigation = getNavigation(sourceEntitySet, navigationProperty);
+
+		List<Map<String, Object>> related;
+		boolean stored = false;
+		Object embedded = sourceEntry.get(navigationProperty);
+		if (embedded instanceof List)
+			related = (List<Map<String, Object>>) embedded;
+		else if (embedded instanceof Map)
+			related = Collections.singletonList((Map<String, Object>) embedded);
+		else {
+			related = navigation.read(sourceEntry);
+			stored = true;
+		}
 
-		String assocName = findNavigationPropertyName(sourceEntitySet, targetEntitySet);
-		return sourceEntry.get(assocName);
+		// Single record access?
+		Map<String, Object> found = null;
+		if (targetKeys != null && !targetKeys.isEmpty()) {
+			Object targetKey = dataStore.getRecordKey(targetEntitySet.getName(), targetKeys);
+			for (Map<String, Object> record : related) {
+				if (targetKey.equals(dataStore.getRecordKey(targetEntitySet.getName(), record))) {
+					found = record;
+					break;
+				}
+			}
+		}
+		else if (navigation.toMany)
+			return related;
+		else if (!related.isEmpty())
+			found = related.get(0);
+
+		return found != null && stored ? copyForUpdate(targetEntitySet.getName(), found) : found;
 	}
 
 	@Override
@@ -121,14 +168,26 @@ public class MockDataSource implements DataSource {
 			throw new ODataApplicationException("Inserted record is of invalid type " +
 				data.getClass().getName(), Locale.getDefault());
 
-		dataStore.insert(entitySet.getName(), (Map<String, Object>) data);
+		// The new record is stored as a copy, as ListsProcessor keeps changing it (see writeRelation)
+		dataStore.insert(entitySet.getName(), copy((Map<String, Object>) data));
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public void deleteRelation(EdmEntitySet sourceEntitySet, Object sourceData, EdmEntitySet targetEntitySet,
 			Map<String, Object> targetKeys)
 			throws ODataNotImplementedException, ODataNotFoundException, EdmException, ODataApplicationException {
-		throw new ODataNotImplementedException();
+		Map<String, Object> sourceEntry = (Map<String, Object>) sourceData;
+		Map<String, Object> targetEntry = dataStore.getRecordByKey(targetEntitySet.getName(), targetKeys);
+		if (sourceEntry == null || targetEntry == null)
+			throw new ODataNotFoundException(ODataNotFoundException.ENTITY);
+
+		MockRelationships.Navigation navigation = getNavigation(sourceEntitySet,
+				findNavigationPropertyName(sourceEntitySet, targetEntitySet));
+		Map<String, Object> source = copy(sourceEntry);
+		Map<String, Object> target = copy(targetEntry);
+		navigation.unlink(source, target);
+		storeRelated(navigation, sourceEntry, source, targetEntry, target);
 	}
 
 	@Override
@@ -137,34 +196,119 @@ public class MockDataSource implements DataSource {
 			Map<String, Object> targetKeys)
 			throws ODataNotImplementedException, ODataNotFoundException, EdmException, ODataApplicationException {
 		Map<String, Object> sourceEntry = (Map<String, Object>) sourceData;
+		Map<String, Object> targetEntry = dataStore.getRecordByKey(targetEntitySet.getName(), targetKeys);
+		if (sourceEntry == null || targetEntry == null)
+			throw new ODataNotFoundException(ODataNotFoundException.ENTITY);
 
-		String assocName = findNavigationPropertyName(sourceEntitySet, targetEntitySet);
-		List<Map<String, Object>> association = (List<Map<String, Object>>) sourceEntry.get(assocName);
-		if (association == null) {
-			association = new ArrayList<>();
-			sourceEntry.put(assocName, association);
-		}
+		MockRelationships.Navigation navigation = getNavigation(sourceEntitySet,
+				findNavigationPropertyName(sourceEntitySet, targetEntitySet));
+		Map<String, Object> source = copy(sourceEntry);
+		Map<String, Object> target = copy(targetEntry);
+		navigation.link(source, target, false);
+		storeRelated(navigation, sourceEntry, source, targetEntry, target);
+	}
+
+	/**
+	 * Stores the records changed by link/unlink, which set the foreign keys in place on copies of the records.
+	 * Records that are not stored themselves (e.g. the record of a create request, see createData) are
+	 * changed as well, so the response shows the foreign keys.
+	 */
+	protected void storeRelated(MockRelationships.Navigation navigation, Map<String, Object> sourceEntry,
+			Map<String, Object> source, Map<String, Object> targetEntry, Map<String, Object> target)
+			throws ODataApplicationException {
+		if (navigation.changesSource())
+			storeChanged(navigation.sourceEntitySet, sourceEntry, source);
+		if (navigation.changesTarget())
+			storeChanged(navigation.targetEntitySet, targetEntry, target);
+	}
+
+	private void storeChanged(String entitySet, Map<String, Object> record, Map<String, Object> changed)
+			throws ODataApplicationException {
+		Object key = dataStore.getRecordKey(entitySet, record);
+		Map<String, Object> stored = dataStore.getRecord(entitySet, key);
+		if (stored != record)
+			record.putAll(changed);
+		dataStore.replace(entitySet, stored != null ? stored : record, changed);
+	}
+
+	/**
+	 * Runs an update by ListsProcessor, which changes the records it reads in place.
+	 * While the update runs on the current thread, records read by key are private copies, and the copies
+	 * that were changed are stored once the update succeeds, so readers never see a record being changed.
+	 * The update holds the write lock of the Entity Set, so concurrent updates are applied one after another.
+	 * @param entitySet Name of the Entity Set of the updated record
+	 * @param update Update to run
+	 * @return The result of the update
+	 */
+	public <T> T update(String entitySet, MockDataStore.Action<T> update) throws ODataException {
+		if (copies.get() != null)
+			return update.run();
+
+		return dataStore.locked(entitySet, () -> {
+			Map<Map<String, Object>, Copy> updateCopies = new IdentityHashMap<>();
+			T result;
+			copies.set(updateCopies);
+			try {
+				result = update.run();
+			}
+			finally {
+				copies.remove();
+			}
+
+			for (Map.Entry<Map<String, Object>, Copy> copy : updateCopies.entrySet()) {
+				if (!copy.getValue().record.equals(copy.getKey()))
+					dataStore.replace(copy.getValue().entitySet, copy.getKey(), copy.getValue().record);
+			}
+			return result;
+		});
+	}
 
-		association.add(targetKeys);
-		dataStore.put(sourceEntitySet.getName(), sourceEntry);
+	/**
+	 * Get the record to hand out for a stored record: its copy while an update runs, or else the record itself
+	 */
+	protected Map<String, Object> copyForUpdate(String entitySet, Map<String, Object> record) {
+		Map<Map<String, Object>, Copy> updateCopies = copies.get();
+		if (updateCopies == null)
+			return record;
+		return updateCopies.computeIfAbsent(record, r -> new Copy(entitySet, copy(r))).record;
+	}
+
+	/**
+	 * Copies a record, including the values of complex properties (nested maps)
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Map<String, Object> copy(Map<String, Object> record) {
+		Map<String, Object> copy = new HashMap<>(record);
+		copy.replaceAll((name, value) -> value instanceof Map ? copy((Map<String, Object>) value) : value);
+		return copy;
 	}
 
 
 	protected String findNavigationPropertyName(EdmEntitySet sourceEntitySet, EdmEntitySet targetEntitySet)
 			throws EdmException {
-		EdmEntityType sourceEntityType = sourceEntitySet.getEntityType();
-		EdmEntityType targetEntityType = targetEntitySet.getEntityType();
-
-		for (String propertyName : sourceEntityType.getNavigationPropertyNames()) {
-			EdmNavigationProperty navProp = (EdmNavigationProperty) sourceEntityType.getProperty(propertyName);
-			EdmEntityType navET1 = navProp.getRelationship().getEnd1().getEntityType();
-			EdmEntityType navET2 = navProp.getRelationship().getEnd2().getEntityType();
+		MockRelationships.Navigation navigation = dataStore.getRelationships()
+				.findNavigation(sourceEntitySet.getName(), targetEntitySet.getName());
+		if (navigation == null)
+			throw new EdmException(EdmException.NAVIGATIONPROPERTYNOTFOUND);
+		return navigation.name;
+	}
 
-			if (navET1 == targetEntityType || navET2 == targetEntityType)
-				return navProp.getName();
-		}
+	protected MockRelationships.Navigation getNavigation(EdmEntitySet sourceEntitySet, String navigationProperty)
+			throws EdmException {
+		MockRelationships.Navigation navigation = dataStore.getRelationships()
+				.getNavigation(sourceEntitySet.getName(), navigationProperty);
+		if (navigation == null)
+			throw new EdmException(EdmException.NAVIGATIONPROPERTYNOTFOUND);
+		return navigation;
+	}
 
-		throw new EdmException(EdmException.NAVIGATIONPROPERTYNOTFOUND);
+	/**
+	 * Copy of a stored record, changed by an update (see update)
+	 */
+	@RequiredArgsConstructor
+	protected static class Copy {
+		protected final String entitySet;
+		protected final Map<String, Object> record;
 	}
 
 }
@@ -15,29 +15,54 @@
  */
 package ninja.abap.odatamock.server;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.olingo.odata2.api.edm.FullQualifiedName;
+import org.apache.olingo.odata2.api.edm.provider.Association;
+import org.apache.olingo.odata2.api.edm.provider.AssociationEnd;
 import org.apache.olingo.odata2.api.edm.provider.EdmProvider;
 import org.apache.olingo.odata2.api.edm.provider.EntityContainer;
 import org.apache.olingo.odata2.api.edm.provider.EntitySet;
 import org.apache.olingo.odata2.api.edm.provider.EntityType;
 import org.apache.olingo.odata2.api.edm.provider.PropertyRef;
+import org.apache.olingo.odata2.api.edm.provider.ReferentialConstraint;
 import org.apache.olingo.odata2.api.edm.provider.Schema;
 import org.apache.olingo.odata2.api.exception.ODataException;
 import org.apache.olingo.odata2.api.exception.ODataApplicationException;
+import org.apache.olingo.odata2.api.exception.ODataNotImplementedException;
 
 import lombok.Getter;
 import lombok.NonNull;
 
 /**
  * Simple in-memory data store for mock data
- * Entity Sets and their data are stored in a tree of hash maps.
- *  
+ *
+ * The store is safe for concurrent use: each Entity Set has its own write lock, and writers
+ * publish a new immutable, versioned snapshot of the Entity Set records, so readers never block
+ * and never see a partially applied change. Writers to different Entity Sets never contend.
+ * Snapshots share the unchanged parts of their records with the previous snapshot (see MockRecords).
+ *
+ * Properties can have secondary indexes (see createIndex), which are used by queries with $filter.
+ * Key properties and foreign key properties (dependents of referential constraints) are indexed automatically.
+ * Indexes are built on first use, then carried into the snapshots of later writes, which update them with
+ * the changed records only (see MockIndex.update).
+ *
+ * Entity Sets can be materialized lazily (see setMaterializer): their records are loaded the first time
+ * the Entity Set is accessed, exactly once.
+ *
  * Implementation loosely based on org.apache.olingo.odata2.annotation.processor.core.datasource.DataStore
  */
 public class MockDataStore {
@@ -45,50 +70,131 @@ public class MockDataStore {
 	protected final EdmProvider edmProvider;
 
 	/**
-	 * Mock data is stored in a Map hierarchy: 
-	 * Entity Set name / Record Key / Field values
+	 * Stored data by Entity Set name. The map is never modified after construction.
+	 * Record keys are the raw key field value for single-field keys, or a MockRecordKey otherwise.
 	 */
-	@Getter
-	protected final Map<String,  // Entity Set name
-		LinkedHashMap<           // (records are stored in the order they are inserted)
-			Map<String, Object>, // Key fields
-			Map<String, Object>  // All fields
-		>> data = new HashMap<>();
+	protected final Map<String, EntitySetData> data;
 
 	/**
 	 * Entity Set name to EntityType definition
 	 */
 	protected Map<String, EntityType> entityTypes = new HashMap<>();
 
+	/**
+	 * Relationships between the stored records, from the Associations of the EDMX
+	 */
+	protected final MockRelationships relationships;
+
+	/**
+	 * Loads the records of Entity Sets on first access (lazy mode), see setMaterializer
+	 */
+	protected volatile Materializer materializer;
+
+	/**
+	 * Held while an Entity Set is materialized. A single lock for all Entity Sets, so materializations that
+	 * access other Entity Sets (e.g. principals of generated foreign keys) cannot deadlock.
+	 */
+	protected final ReentrantLock materializeLock = new ReentrantLock();
+
+	/**
+	 * Secondary index types
+	 */
+	public enum IndexType {
+		/** Serves equality (eq) filters */
+		HASH,
+		/** Serves equality and range (lt, le, gt, ge) filters */
+		SORTED
+	}
+
 	MockDataStore(final @NonNull EdmProvider edmProvider) throws ODataException {
 		this.edmProvider = edmProvider;
 
 		// Initialize the containers/collections
+		Map<String, EntitySetData> entitySets = new HashMap<>();
+		Map<FullQualifiedName, List<EntitySetData>> entitySetsByType = new HashMap<>();
 		for (Schema edmSchema : edmProvider.getSchemas()) {
 			for (EntityContainer edmContainer : edmSchema.getEntityContainers()) {
 				for (EntitySet edmES : edmContainer.getEntitySets()) {
-					data.put(edmES.getName(), new LinkedHashMap<>());
-
 					EntityType edmET = edmProvider.getEntityType(edmES.getEntityType());
 					entityTypes.put(edmES.getName(), edmET);
+
+					EntitySetData esData = new EntitySetData(MockRecordKey.extractor(edmET));
+					for (PropertyRef keyRef : edmET.getKey().getKeys())
+						esData.indexTypes.put(keyRef.getName(), IndexType.HASH);
+					entitySets.put(edmES.getName(), esData);
+					entitySetsByType.computeIfAbsent(edmES.getEntityType(), t -> new ArrayList<>()).add(esData);
 				}
 			}
 		}
+		this.data = Collections.unmodifiableMap(entitySets);
+
+		// Index foreign keys
+		for (Schema edmSchema : edmProvider.getSchemas()) {
+			if (edmSchema.getAssociations() == null)
+				continue;
+			for (Association association : edmSchema.getAssociations()) {
+				ReferentialConstraint constraint = association.getReferentialConstraint();
+				if (constraint == null)
+					continue;
+
+				String role = constraint.getDependent().getRole();
+				AssociationEnd end = role.equals(association.getEnd1().getRole()) ? association.getEnd1()
+						: association.getEnd2();
+				for (EntitySetData esData : entitySetsByType.getOrDefault(end.getType(), Collections.emptyList())) {
+					for (PropertyRef propertyRef : constraint.getDependent().getPropertyRefs())
+						esData.indexTypes.putIfAbsent(propertyRef.getName(), IndexType.HASH);
+				}
+			}
+		}
+
+		this.relationships = new MockRelationships(edmProvider, this);
 	}
 
 	/**
 	 * Get stored records for an Entity Set
 	 * @param entitySet Entity Set name
-	 * @return The stored records. Returned List is a copy of the actual stored data.
-	 * There are no guarantees on the type, mutability, serializability, or thread-safety of the List returned. 
+	 * @return The stored records. Returned List is an unmodifiable snapshot of the stored data, which is
+	 * not affected by later changes to the Entity Set. Reading it does not copy the records.
 	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service.
 	 */
 	public List<Map<String, Object>> getEntitySet(String entitySet) throws ODataApplicationException {
-		if (! data.containsKey(entitySet))
-			throw new ODataApplicationException(String.format("Entity Set %s not found", entitySet),
-					Locale.getDefault());
+		return getEntitySetData(entitySet).snapshot.list();
+	}
 
-		return data.get(entitySet).values().stream().collect(Collectors.toList());
+	/**
+	 * Get stored records of all Entity Sets, by their key fields
+	 * @return Entity Set name / Key fields / Record. Returned maps are unmodifiable copies of the current
+	 * snapshots, which are not affected by later changes.
+	 * @deprecated Records are stored in immutable snapshots, read them with getEntitySet or getRecordByKey
+	 */
+	@Deprecated
+	public Map<String, LinkedHashMap<Map<String, Object>, Map<String, Object>>> getData() {
+		Map<String, LinkedHashMap<Map<String, Object>, Map<String, Object>>> entitySets = new HashMap<>();
+		for (String entitySet : data.keySet()) {
+			List<String> keyProperties = new ArrayList<>();
+			for (PropertyRef keyRef : entityTypes.get(entitySet).getKey().getKeys())
+				keyProperties.add(keyRef.getName());
+
+			LinkedHashMap<Map<String, Object>, Map<String, Object>> records = new LinkedHashMap<>();
+			for (Map<String, Object> record : data.get(entitySet).snapshot.list()) {
+				Map<String, Object> key = new HashMap<>();
+				for (String keyProperty : keyProperties)
+					key.put(keyProperty, record.get(keyProperty));
+				records.put(Collections.unmodifiableMap(key), Collections.unmodifiableMap(record));
+			}
+			entitySets.put(entitySet, records);
+		}
+		return Collections.unmodifiableMap(entitySets);
+	}
+
+	/**
+	 * Get the current version of an Entity Set's data
+	 * @param entitySet Entity Set name
+	 * @return A number that increases every time the Entity Set is changed
+	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service.
+	 */
+	public long getVersion(String entitySet) throws ODataApplicationException {
+		return getEntitySetData(entitySet).snapshot.version;
 	}
 
 	/**
@@ -99,17 +205,14 @@ public class MockDataStore {
 	 *   or there's already an existing record with the same key.
 	 */
 	public void insert(String entitySet, Map<String, Object> record) throws ODataApplicationException {
-		LinkedHashMap<Map<String, Object>, Map<String, Object>>	esData = data.get(entitySet);
-		if (esData == null)
-			throw new ODataApplicationException(String.format("Entity Set %s not found", entitySet),
-					Locale.getDefault());
+		Object key = getRecordKey(entitySet, record);
+		write(entitySet, records -> {
+			if (records.containsKey(key))
+				throw new ODataApplicationException(String.format("Cannot insert duplicate record key in %s", entitySet),
+						Locale.getDefault());
 
-		Map<String, Object> key = getRecordKey(entitySet, record);
-		if (esData.containsKey(key))
-			throw new ODataApplicationException(String.format("Cannot insert duplicate record key in %s", entitySet),
-					Locale.getDefault());
-
-		esData.put(key, record);
+			return records.put(key, record);
+		});
 	}
 
 	/**
@@ -119,13 +222,8 @@ public class MockDataStore {
 	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service
 	 */
 	public void put(String entitySet, Map<String, Object> record) throws ODataApplicationException {
-		LinkedHashMap<Map<String, Object>, Map<String, Object>>	esData = data.get(entitySet);
-		if (esData == null)
-			throw new ODataApplicationException(String.format("Entity Set %s not found", entitySet),
-					Locale.getDefault());
-
-		Map<String, Object> key = getRecordKey(entitySet, record);
-		esData.put(key, record);
+		Object key = getRecordKey(entitySet, record);
+		write(entitySet, records -> records.put(key, record));
 	}
 
 	/**
@@ -135,15 +233,127 @@ public class MockDataStore {
 	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service
 	 */
 	public void putAll(String entitySet, Iterable<Map<String, Object>> records) throws ODataApplicationException {
-		LinkedHashMap<Map<String, Object>, Map<String, Object>>	esData = data.get(entitySet);
-		if (esData == null)
-			throw new ODataApplicationException(String.format("Entity Set %s not found", entitySet),
-					Locale.getDefault());
+		MockRecordKey.Extractor keyExtractor = getEntitySetData(entitySet).keyExtractor;
+		write(entitySet, esRecords -> {
+			for (Map<String, Object> record : records)
+				esRecords.put(keyExtractor.extract(record), record);
+			return null;
+		});
+	}
 
-		for (Map<String, Object> record : records) {
-			Map<String, Object> key = getRecordKey(entitySet, record);
-			esData.put(key, record);
+	/**
+	 * Inserts multiple records into an Entity Set, skipping records whose key is already stored
+	 * @param entitySet Entity Set name
+	 * @param records New records to be added to the stored data (maps of fields)
+	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service
+	 */
+	public void putAllIfAbsent(String entitySet, Iterable<Map<String, Object>> records)
+			throws ODataApplicationException {
+		MockRecordKey.Extractor keyExtractor = getEntitySetData(entitySet).keyExtractor;
+		write(entitySet, esRecords -> {
+			for (Map<String, Object> record : records)
+				esRecords.putIfAbsent(keyExtractor.extract(record), record);
+			return null;
+		});
+	}
+
+	/**
+	 * Replaces the records of an Entity Set with the given ones, changing only the records that differ:
+	 * records with new keys are inserted, records with other field values are updated and records whose keys
+	 * are not given are deleted. Unchanged records are kept as they are.
+	 * All changes are published at once: readers see either the previous or the new records.
+	 * @param entitySet Entity Set name
+	 * @param records New contents of the Entity Set (maps of fields)
+	 * @return The applied changes
+	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service
+	 */
+	public Changes sync(String entitySet, Iterable<Map<String, Object>> records) throws ODataApplicationException {
+		EntitySetData esData = getEntitySetData(entitySet);
+		LinkedHashMap<Object, Map<String, Object>> newRecords = new LinkedHashMap<>();
+		for (Map<String, Object> record : records)
+			newRecords.put(esData.keyExtractor.extract(record), record);
+
+		// Nothing is published (no new snapshot version) if nothing changed
+		if (diff(esData.snapshot.records, esData.keyExtractor, newRecords, null).isEmpty())
+			return new Changes();
+		return write(entitySet, esRecords -> diff(esData.snapshot.records, esData.keyExtractor, newRecords, esRecords));
+	}
+
+	/**
+	 * Compares stored records with new ones by key, optionally applying the changes to an editor of the
+	 * stored records
+	 */
+	private static Changes diff(MockRecords stored, MockRecordKey.Extractor keyExtractor,
+			LinkedHashMap<Object, Map<String, Object>> newRecords, MockRecords.Editor apply) {
+		Changes changes = new Changes();
+		for (Map<String, Object> record : stored) {
+			if (record == null)
+				continue;
+			Object key = keyExtractor.extract(record);
+			Map<String, Object> newRecord = newRecords.get(key);
+			if (newRecord == null) {
+				changes.deleted++;
+				if (apply != null)
+					apply.remove(key);
+			}
+			else if (!equalRecords(newRecord, record)) {
+				changes.updated++;
+				if (apply != null)
+					apply.put(key, newRecord);
+			}
+		}
+		for (Map.Entry<Object, Map<String, Object>> newRecord : newRecords.entrySet()) {
+			if (stored.position(newRecord.getKey()) < 0) {
+				changes.inserted++;
+				if (apply != null)
+					apply.put(newRecord.getKey(), newRecord.getValue());
+			}
 		}
+		return changes;
+	}
+
+	/**
+	 * Compares two records (or complex values) property by property, comparing arrays (Binary values)
+	 * by their contents
+	 */
+	@SuppressWarnings("unchecked")
+	static boolean equalRecords(Map<String, Object> record1, Map<String, Object> record2) {
+		if (record1.size() != record2.size())
+			return false;
+		for (Map.Entry<String, Object> field : record1.entrySet()) {
+			Object value1 = field.getValue();
+			Object value2 = record2.get(field.getKey());
+			if (value2 == null && !record2.containsKey(field.getKey()))
+				return false;
+			if (value1 instanceof Map && value2 instanceof Map
+					? !equalRecords((Map<String, Object>) value1, (Map<String, Object>) value2)
+					: !Objects.deepEquals(value1, value2))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces a stored record with a new version of it. Its position is kept, unless its key changed.
+	 * @param entitySet Entity Set name
+	 * @param record Stored record
+	 * @param newRecord New version of the record (map of fields)
+	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service
+	 *   or the key of the new version belongs to another record.
+	 */
+	protected void replace(String entitySet, Map<String, Object> record, Map<String, Object> newRecord)
+			throws ODataApplicationException {
+		Object key = getRecordKey(entitySet, record);
+		Object newKey = getRecordKey(entitySet, newRecord);
+		write(entitySet, records -> {
+			if (!key.equals(newKey)) {
+				if (records.containsKey(newKey))
+					throw new ODataApplicationException(String.format("Cannot update record key in %s, "
+							+ "the new key belongs to another record", entitySet), Locale.getDefault());
+				records.remove(key);
+			}
+			return records.put(newKey, newRecord);
+		});
 	}
 
 	/**
@@ -154,11 +364,8 @@ public class MockDataStore {
 	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service.
 	 */
 	public Map<String, Object> remove(String entitySet, Map<String, Object> key) throws ODataApplicationException {
-		LinkedHashMap<Map<String, Object>, Map<String, Object>>	esData = data.get(entitySet);
-		if (esData == null)
-			throw new ODataApplicationException(String.format("Entity Set %s not found", entitySet), Locale.getDefault());
-
-		return esData.remove(key);
+		Object recordKey = getRecordKey(entitySet, key);
+		return write(entitySet, records -> records.remove(recordKey));
 	}
 
 	/**
@@ -169,43 +376,451 @@ public class MockDataStore {
 	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service.
 	 */
 	public Map<String, Object> getRecordByKey(String entitySet, Map<String, Object> key) throws ODataApplicationException {
-		LinkedHashMap<Map<String, Object>, Map<String, Object>>	esData = data.get(entitySet);
-		if (esData == null)
-			throw new ODataApplicationException(String.format("Entity Set %s not found", entitySet), Locale.getDefault());
+		EntitySetData esData = getEntitySetData(entitySet);
+		return esData.snapshot.records.byKey(esData.keyExtractor.extract(key));
+	}
+
+	/**
+	 * Creates (or replaces) a secondary index on an Entity Set property
+	 * @param entitySet Entity Set name
+	 * @param property Property name
+	 * @param type Index type
+	 * @throws ODataApplicationException If the Entity Set or the property does not exist in the mocked OData service.
+	 */
+	public void createIndex(String entitySet, String property, @NonNull IndexType type)
+			throws ODataApplicationException {
+		EntitySetData esData = getEntitySetData(entitySet);
+		if (entityTypes.get(entitySet).getProperties().stream().noneMatch(p -> p.getName().equals(property)))
+			throw new ODataApplicationException(String.format("Property %s not found in Entity Set %s",
+					property, entitySet), Locale.getDefault());
+
+		esData.indexTypes.put(property, type);
+	}
+
+	/**
+	 * Get the secondary indexes of an Entity Set
+	 * @param entitySet Entity Set name
+	 * @return Index type by property name (unmodifiable)
+	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service.
+	 */
+	public Map<String, IndexType> getIndexes(String entitySet) throws ODataApplicationException {
+		return Collections.unmodifiableMap(getEntitySetData(entitySet).indexTypes);
+	}
+
+	/**
+	 * Runs a query against the current snapshot of an Entity Set
+	 * @param query Query with the Entity Set and system query options
+	 * @return The requested page of records
+	 * @throws ODataNotImplementedException If the query uses expressions not supported by MockQueryEngine
+	 */
+	protected MockQuery.Result query(MockQuery query) throws ODataException {
+		EntitySetData esData = getEntitySetData(query.entitySet().getName());
+		Snapshot snapshot = esData.snapshot;
+		if (query.filter() == null)
+			return MockQueryEngine.execute(snapshot.records, property -> null, query);
+
+		boolean[] indexed = { false };
+		MockQuery.Result result = MockQueryEngine.execute(snapshot.records, property -> {
+			MockIndex index = getIndex(esData, snapshot, property);
+			indexed[0] |= index != null;
+			return index;
+		}, query);
+		(indexed[0] ? esData.indexHits : esData.indexMisses).increment();
+		return result;
+	}
+
+	/**
+	 * Counts the records of the current snapshot of an Entity Set that match a query, without collecting them
+	 * @param query Query with the Entity Set and system query options ($filter, $skip and $top)
+	 * @return The number of records
+	 * @throws ODataNotImplementedException If the query uses expressions not supported by MockQueryEngine
+	 */
+	protected int count(MockQuery query) throws ODataException {
+		EntitySetData esData = getEntitySetData(query.entitySet().getName());
+		Snapshot snapshot = esData.snapshot;
+		if (query.filter() == null)
+			return MockQueryEngine.count(snapshot.records, property -> null, query);
+
+		boolean[] indexed = { false };
+		int count = MockQueryEngine.count(snapshot.records, property -> {
+			MockIndex index = getIndex(esData, snapshot, property);
+			indexed[0] |= index != null;
+			return index;
+		}, query);
+		(indexed[0] ? esData.indexHits : esData.indexMisses).increment();
+		return count;
+	}
+
+	/**
+	 * Find the records of an Entity Set with the given property values.
+	 * Uses the secondary index of one of the properties, if there is one.
+	 * @param entitySet Entity Set name
+	 * @param values Property values to match (property name / value)
+	 * @return The matching records, in insertion order
+	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service.
+	 */
+	public List<Map<String, Object>> findRecords(String entitySet, Map<String, Object> values)
+			throws ODataApplicationException {
+		EntitySetData esData = getEntitySetData(entitySet);
+		Snapshot snapshot = esData.snapshot;
+
+		int[] positions = null;
+		for (Map.Entry<String, Object> value : values.entrySet()) {
+			MockIndex index = getIndex(esData, snapshot, value.getKey());
+			if (index != null && (positions = index.equal(value.getValue())) != null)
+				break;
+		}
+		(positions != null ? esData.indexHits : esData.indexMisses).increment();
 
-		return esData.get(key);
+		List<Map<String, Object>> found = new ArrayList<>(positions == null ? 16 : positions.length);
+		if (positions != null) {
+			for (int position : positions)
+				addIfMatches(snapshot.records.get(position), values, found);
+		}
+		else {
+			for (Map<String, Object> record : snapshot.records) {
+				if (record != null)
+					addIfMatches(record, values, found);
+			}
+		}
+		return found;
+	}
+
+	private static void addIfMatches(Map<String, Object> record, Map<String, Object> values,
+			List<Map<String, Object>> found) {
+		for (Map.Entry<String, Object> value : values.entrySet()) {
+			if (!MockQueryEngine.equalValues(record.get(value.getKey()), value.getValue()))
+				return;
+		}
+		found.add(record);
 	}
 
 	/**
-	 * Removes all stored records for an Entity Set
+	 * Removes all stored records for an Entity Set, and their links to other records
 	 * @param entitySet Entity Set name
 	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service.
 	 */
 	public void truncate(String entitySet) throws ODataApplicationException {
-		LinkedHashMap<Map<String, Object>, Map<String, Object>>	esData = data.get(entitySet);
-		if (esData == null)
-			throw new ODataApplicationException(String.format("Entity Set %s not found", entitySet), Locale.getDefault());
+		truncateRecords(entitySet);
+		relationships.unlinkAll(entitySet);
+	}
 
-		esData.clear();
+	/**
+	 * Removes all stored records for an Entity Set, but keeps their links, for the records to be stored again
+	 * (see MockDataGenerator)
+	 */
+	void truncateRecords(String entitySet) throws ODataApplicationException {
+		getEntitySetData(entitySet).publish(MockRecords.EMPTY);
 	}
 
 	/**
-	 * Removes all stored data for ALL Entity Sets
+	 * Removes all stored data (records and links) for ALL Entity Sets
 	 */
 	public void clear() {
-		data.keySet().parallelStream().forEach(name -> data.get(name).clear());
+		data.values().parallelStream().forEach(esData -> {
+			esData.publish(MockRecords.EMPTY);
+			esData.materialized = true;
+		});
+		relationships.unlinkAll();
+	}
+
+	/**
+	 * Writes all stored data (records and relations) to a binary snapshot file, see MockDataSnapshot
+	 * @param file Snapshot file (replaced if it exists)
+	 * @throws IOException If the file cannot be written or the data has values of unsupported types
+	 * @throws ODataApplicationException
+	 */
+	public void saveSnapshot(@NonNull Path file) throws IOException, ODataApplicationException {
+		new MockDataSnapshot(this).save(file);
+	}
+
+	/**
+	 * Loads the data (records and relations) of a binary snapshot file written by saveSnapshot.
+	 * Records are added to / replace the stored records.
+	 * @param file Snapshot file
+	 * @throws IOException If the file cannot be read or is not a valid snapshot
+	 * @throws ODataApplicationException If the snapshot has Entity Sets that do not exist in the mocked OData service
+	 */
+	public void loadSnapshot(@NonNull Path file) throws IOException, ODataApplicationException {
+		new MockDataSnapshot(this).load(file);
 	}
 
 
-	protected Map<String, Object> getRecordKey(String entitySet, Map<String, Object> record)
+	/**
+	 * Materialize Entity Sets lazily: each Entity Set is loaded by the materializer the first time it is
+	 * accessed (and not before), exactly once even under concurrent first access.
+	 * Entity Sets that already have records are not materialized.
+	 * @param materializer Loads the records of an Entity Set into this data store
+	 */
+	protected void setMaterializer(@NonNull Materializer materializer) {
+		materializeLock.lock();
+		try {
+			this.materializer = materializer;
+			for (EntitySetData esData : data.values())
+				esData.materialized = esData.snapshot.records.count() > 0;
+		}
+		finally {
+			materializeLock.unlock();
+		}
+	}
+
+	/**
+	 * Whether an Entity Set is materialized (or its materializer is running), see setMaterializer
+	 */
+	protected boolean isMaterialized(String entitySet) {
+		EntitySetData esData = data.get(entitySet);
+		return esData != null && (esData.materialized || esData.materializing);
+	}
+
+	protected EntitySetData getEntitySetData(String entitySet) throws ODataApplicationException {
+		EntitySetData esData = data.get(entitySet);
+		if (esData == null)
+			throw new ODataApplicationException(String.format("Entity Set %s not found", entitySet),
+					Locale.getDefault());
+		if (!esData.materialized)
+			materialize(entitySet, esData);
+		return esData;
+	}
+
+	/**
+	 * Runs the materializer for an Entity Set, unless it already ran. Accesses to the Entity Set by the
+	 * materializer itself (directly, or through other Entity Sets) see the records stored so far.
+	 * If the materializer fails, the Entity Set is emptied and materialized again on next access.
+	 */
+	protected void materialize(String entitySet, EntitySetData esData) throws ODataApplicationException {
+		materializeLock.lock();
+		try {
+			if (esData.materialized || esData.materializing)
+				return;
+
+			esData.materializing = true;
+			try {
+				materializer.materialize(entitySet);
+				esData.materialized = true;
+			}
+			catch (ODataException e) {
+				esData.publish(MockRecords.EMPTY);
+				if (e instanceof ODataApplicationException)
+					throw (ODataApplicationException) e;
+				throw new ODataApplicationException(String.format("Error loading data for %s: %s",
+						entitySet, e.getMessage()), Locale.getDefault(), e);
+			}
+			finally {
+				esData.materializing = false;
+			}
+		}
+		finally {
+			materializeLock.unlock();
+		}
+	}
+
+	/**
+	 * Applies a change to a copy of the Entity Set records while holding its write lock, then publishes
+	 * the copy to readers as a new snapshot. If the change fails, nothing is published.
+	 * The copy shares the parts of the records that the change does not modify (see MockRecords), and
+	 * the indexes built for the current snapshot are updated with the changed records.
+	 */
+	protected <T> T write(String entitySet, Change<T> change) throws ODataApplicationException {
+		EntitySetData esData = getEntitySetData(entitySet);
+		esData.writeLock.lock();
+		try {
+			Snapshot current = esData.snapshot;
+			MockRecords.Editor editor = current.records.edit();
+			T result = change.apply(editor);
+			MockRecords records = editor.build();
+			esData.snapshot = new Snapshot(current.version + 1, records, current.updateIndexes(editor.changes()));
+			return result;
+		}
+		finally {
+			esData.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs an action while holding the write lock of an Entity Set, so no other writer changes the
+	 * Entity Set while it runs. The action itself can write to the Entity Set.
+	 */
+	protected <T> T locked(String entitySet, Action<T> action) throws ODataException {
+		EntitySetData esData = getEntitySetData(entitySet);
+		esData.writeLock.lock();
+		try {
+			return action.run();
+		}
+		finally {
+			esData.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Get the index of a property for a snapshot, building it if no previous snapshot had it
+	 * @return The index, or null if the property is not indexed
+	 */
+	protected MockIndex getIndex(EntitySetData esData, Snapshot snapshot, String property) {
+		IndexType type = esData.indexTypes.get(property);
+		if (type == null)
+			return null;
+
+		MockIndex index = snapshot.indexes.computeIfAbsent(property,
+				p -> MockIndex.build(snapshot.records, p, type));
+		if (index.type != type) {
+			index = MockIndex.build(snapshot.records, property, type);
+			snapshot.indexes.put(property, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Build all indexes of an Entity Set for its current snapshot, instead of on first use
+	 */
+	protected void buildIndexes(String entitySet) throws ODataApplicationException {
+		EntitySetData esData = getEntitySetData(entitySet);
+		Snapshot snapshot = esData.snapshot;
+		for (String property : esData.indexTypes.keySet())
+			getIndex(esData, snapshot, property);
+	}
+
+	/**
+	 * Get the current version of an Entity Set without materializing it (see getVersion)
+	 * @return The version, or -1 if the Entity Set does not exist
+	 */
+	protected long peekVersion(String entitySet) {
+		EntitySetData esData = data.get(entitySet);
+		return esData == null ? -1 : esData.snapshot.version;
+	}
+
+	/**
+	 * Read an Entity Set record by its record key (see MockRecordKey)
+	 */
+	protected Map<String, Object> getRecord(String entitySet, Object recordKey) throws ODataApplicationException {
+		return getEntitySetData(entitySet).snapshot.records.byKey(recordKey);
+	}
+
+	protected MockRelationships getRelationships() {
+		return relationships;
+	}
+
+	protected Object getRecordKey(String entitySet, Map<String, Object> record)
 			throws ODataApplicationException {
-		Map<String, Object> keyFields = new HashMap<>();
-		EntityType entityType = entityTypes.get(entitySet);
-		for (PropertyRef keyProp : entityType.getKey().getKeys()) {
-			String propName = keyProp.getName();
-			keyFields.put(propName, record.get(propName));
+		return getEntitySetData(entitySet).keyExtractor.extract(record);
+	}
+
+
+	/**
+	 * Numbers of records changed by sync
+	 */
+	@Getter
+	public static class Changes {
+		protected int inserted;
+		protected int updated;
+		protected int deleted;
+
+		public boolean isEmpty() {
+			return inserted == 0 && updated == 0 && deleted == 0;
+		}
+	}
+
+	/**
+	 * Stored records of a single Entity Set.
+	 * Writers replace the published snapshot while holding writeLock.
+	 */
+	protected static class EntitySetData {
+		protected final MockRecordKey.Extractor keyExtractor;
+		protected final Lock writeLock = new ReentrantLock();
+		protected final Map<String, IndexType> indexTypes = new ConcurrentHashMap<>();
+		protected volatile Snapshot snapshot = new Snapshot(0, MockRecords.EMPTY);
+		/** Whether the records are loaded (see setMaterializer) */
+		protected volatile boolean materialized = true;
+		/** Whether the materializer is running (guarded by materializeLock) */
+		protected boolean materializing;
+		/** Lookups (filtered queries and findRecords) served by an index / by a scan (see MockMetrics) */
+		protected final LongAdder indexHits = new LongAdder();
+		protected final LongAdder indexMisses = new LongAdder();
+
+		protected EntitySetData(MockRecordKey.Extractor keyExtractor) {
+			this.keyExtractor = keyExtractor;
+		}
+
+		protected void publish(MockRecords newRecords) {
+			writeLock.lock();
+			try {
+				snapshot = new Snapshot(snapshot.version + 1, newRecords);
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Immutable view of an Entity Set at a given version.
+	 * Indexes are built from the records on first use, or updated from the ones of the previous snapshot.
+	 */
+	protected static class Snapshot {
+		protected final long version;
+		/** Records by position (null at the positions of removed records) */
+		protected final MockRecords records;
+		protected final Map<String, MockIndex> indexes;
+		/** Records without the empty positions, see list() */
+		private volatile List<Map<String, Object>> list;
+
+		protected Snapshot(long version, MockRecords records) {
+			this(version, records, new ConcurrentHashMap<>());
 		}
-		return keyFields;
+
+		protected Snapshot(long version, MockRecords records, Map<String, MockIndex> indexes) {
+			this.version = version;
+			this.records = records;
+			this.indexes = indexes;
+		}
+
+		/**
+		 * Updates the indexes built for this snapshot with the changes of a write
+		 * @param changes Changed records by position, or null to drop the indexes (they are rebuilt on first use)
+		 * @return The indexes for the snapshot of the write
+		 */
+		protected Map<String, MockIndex> updateIndexes(List<MockRecords.Change> changes) {
+			Map<String, MockIndex> updated = new ConcurrentHashMap<>();
+			if (changes != null)
+				indexes.forEach((property, index) -> updated.put(property, index.update(changes)));
+			return updated;
+		}
+
+		/**
+		 * Get the records in insertion order (without empty positions), as an unmodifiable list.
+		 * The list is the records themselves if no record was removed, or else a copy made on first use.
+		 */
+		protected List<Map<String, Object>> list() {
+			List<Map<String, Object>> list = this.list;
+			if (list == null) {
+				if (records.count() == records.size())
+					list = Collections.unmodifiableList(records);
+				else {
+					List<Map<String, Object>> compact = new ArrayList<>(records.count());
+					for (Map<String, Object> record : records) {
+						if (record != null)
+							compact.add(record);
+					}
+					list = Collections.unmodifiableList(compact);
+				}
+				this.list = list;
+			}
+			return list;
+		}
+	}
+
+	@FunctionalInterface
+	protected interface Materializer {
+		void materialize(String entitySet) throws ODataException;
+	}
+
+	@FunctionalInterface
+	protected interface Action<T> {
+		T run() throws ODataException;
+	}
+
+	@FunctionalInterface
+	protected interface Change<T> {
+		T apply(MockRecords.Editor records) throws ODataApplicationException;
 	}
 
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.olingo.odata2.api.exception.ODataException;
+
+import lombok.NonNull;
+
+/**
+ * OData Mock Data Watcher
+ * Reloads the data of an Entity Set when its JSON file in the local directory is created or changed (hot reload).
+ *
+ * Only the changed file is parsed. Its records are compared by key with the stored ones, and just the
+ * inserts, updates and deletes are applied to the Entity Set, at once (see MockDataStore.sync):
+ * readers are served from the previous snapshot until then.
+ * Deleted files are ignored (the records are kept), since editors often replace files on save.
+ */
+class MockDataWatcher implements Closeable {
+
+	/** Time to wait for more changes before reloading, so that files being written are read once complete */
+	protected final static long SETTLE_MILLIS = 100;
+
+	protected final MockDataLoader loader;
+	protected final MockMetrics metrics;
+
+	protected WatchService watchService;
+	protected Thread thread;
+
+	MockDataWatcher(final @NonNull MockDataLoader loader, final @NonNull MockMetrics metrics) {
+		this.loader = loader;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Start watching the local directory (in a daemon thread)
+	 * @throws IOException If the directory cannot be watched
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null)
+			return; // Already started
+
+		watchService = loader.directory.getFileSystem().newWatchService();
+		loader.directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+		thread = new Thread(() -> watch(watchService), "odata-mock-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop watching the local directory
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (thread == null)
+			return;
+
+		watchService.close();
+		thread.interrupt();
+		thread = null;
+	}
+
+	protected void watch(WatchService watchService) {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Set<String> entitySets = new LinkedHashSet<>();
+				do {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == OVERFLOW) {
+							// Events were lost: reload all Entity Sets
+							entitySets.addAll(loader.dataStore.data.keySet());
+							continue;
+						}
+						String file = event.context().toString();
+						if (file.endsWith(".json"))
+							entitySets.add(StringUtils.removeEnd(file, ".json"));
+					}
+					key.reset();
+				} while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+
+				for (String entitySet : entitySets)
+					reload(entitySet);
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException e) {
+			// Stopped
+		}
+	}
+
+	/**
+	 * Reload an Entity Set. If it fails, the previous records are kept until the file changes again,
+	 * and the failure is recorded in the metrics (see MockMetrics.getLastReloadErrors).
+	 */
+	protected void reload(String entitySet) {
+		try {
+			loader.reload(entitySet);
+		}
+		catch (ODataException | RuntimeException e) {
+			metrics.recordReloadFailure(entitySet, e);
+		}
+	}
+
+}
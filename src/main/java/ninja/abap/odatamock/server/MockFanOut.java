@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.util.SplittableRandom;
+
+/**
+ * Fan-out distribution of generated relationships: how the generated records of a dependent
+ * Entity Set are spread over the records of the principal Entity Set
+ * (e.g. how many Order_Details each Order has).
+ * The average fan-out is the ratio of the record counts of both Entity Sets.
+ */
+public enum MockFanOut {
+
+	/** Each principal has the same number of dependents, in consecutive blocks (1, 1, 2, 2, 3, 3...) */
+	UNIFORM {
+		@Override
+		int pick(int index, int count, int principals, SplittableRandom random) {
+			return (int) ((long) index * principals / count);
+		}
+	},
+
+	/** Each dependent has a random principal */
+	RANDOM {
+		@Override
+		int pick(int index, int count, int principals, SplittableRandom random) {
+			return random.nextInt(principals);
+		}
+	},
+
+	/** Few principals have most of the dependents (power law: the k-th principal has about 1/k of the first one's) */
+	SKEWED {
+		@Override
+		int pick(int index, int count, int principals, SplittableRandom random) {
+			return (int) Math.pow(principals + 1, random.nextDouble()) - 1;
+		}
+	};
+
+	/**
+	 * Pick the principal of a dependent record
+	 * @param index Dependent record position (0 to count - 1)
+	 * @param count Number of dependent records
+	 * @param principals Number of principal records (greater than 0)
+	 * @param random Random number generator of the dependent record
+	 * @return Principal record position (0 to principals - 1)
+	 */
+	abstract int pick(int index, int count, int principals, SplittableRandom random);
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.olingo.odata2.api.edm.EdmComplexType;
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.edm.EdmException;
+import org.apache.olingo.odata2.api.edm.EdmLiteralKind;
+import org.apache.olingo.odata2.api.edm.EdmMultiplicity;
+import org.apache.olingo.odata2.api.edm.EdmNavigationProperty;
+import org.apache.olingo.odata2.api.edm.EdmProperty;
+import org.apache.olingo.odata2.api.edm.EdmSimpleType;
+import org.apache.olingo.odata2.api.edm.EdmSimpleTypeKind;
+import org.apache.olingo.odata2.api.edm.EdmStructuralType;
+import org.apache.olingo.odata2.api.edm.EdmTyped;
+import org.apache.olingo.odata2.api.ep.EntityProviderException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming reader of OData V2 JSON feeds
+ * Reads entries straight into record maps (the same maps Olingo's feed consumer would produce),
+ * without building the intermediate feed/entry tree.
+ * Accepted formats are {"d":{"results":[...]}}, {"d":[...]}, {"results":[...]} and plain arrays.
+ * Inline data of navigation properties is read as nested records (to-one) or record lists (to-many).
+ * Simple values are more lenient than in Olingo's consumer, which suits hand-written mock data: any type
+ * accepts its value as a JSON string, number or boolean (e.g. a Decimal as 32.38 or "32.38", a String as
+ * 12345), as long as it is a valid literal of the type.
+ */
+class MockFeedReader {
+
+	protected final JsonReader reader;
+
+	MockFeedReader(Reader reader) {
+		this.reader = new JsonReader(reader);
+	}
+
+	/**
+	 * Read all entries of a feed
+	 * @param entitySet Entity Set of the feed entries
+	 * @return Records read
+	 * @throws IOException
+	 * @throws EdmException
+	 * @throws EntityProviderException
+	 */
+	public List<Map<String, Object>> readFeed(EdmEntitySet entitySet) throws IOException, EdmException, EntityProviderException {
+		List<Map<String, Object>> records;
+		if (reader.peek() == JsonToken.BEGIN_ARRAY)
+			records = readEntries(entitySet);
+		else {
+			reader.beginObject();
+			String name = reader.nextName();
+			if ("d".equals(name)) {
+				if (reader.peek() == JsonToken.BEGIN_ARRAY)
+					records = readEntries(entitySet);
+				else {
+					reader.beginObject();
+					records = readFeedContent(entitySet, null);
+					reader.endObject();
+				}
+			}
+			else
+				records = readFeedContent(entitySet, name);
+			reader.endObject();
+		}
+
+		if (reader.peek() != JsonToken.END_DOCUMENT)
+			throw new EntityProviderException(EntityProviderException.END_DOCUMENT_EXPECTED
+				.addContent(reader.peek().toString()));
+		return records;
+	}
+
+	private List<Map<String, Object>> readFeedContent(EdmEntitySet entitySet, String name)
+			throws IOException, EdmException, EntityProviderException {
+		List<Map<String, Object>> records = null;
+		while (name != null || reader.hasNext()) {
+			if (name == null)
+				name = reader.nextName();
+
+			if ("results".equals(name))
+				records = readEntries(entitySet);
+			else if ("__count".equals(name) || "__next".equals(name) || "__delta".equals(name))
+				reader.skipValue();
+			else
+				throw new EntityProviderException(EntityProviderException.INVALID_CONTENT
+					.addContent(name).addContent("JsonFeed"));
+			name = null;
+		}
+
+		if (records == null)
+			throw new EntityProviderException(EntityProviderException.MISSING_RESULTS_ARRAY);
+		return records;
+	}
+
+	private List<Map<String, Object>> readEntries(EdmEntitySet entitySet) throws IOException, EdmException, EntityProviderException {
+		List<Map<String, Object>> records = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			reader.beginObject();
+			records.add(readEntryContent(entitySet, null));
+			reader.endObject();
+		}
+		reader.endArray();
+		return records;
+	}
+
+	private Map<String, Object> readEntryContent(EdmEntitySet entitySet, String name)
+			throws IOException, EdmException, EntityProviderException {
+		Map<String, Object> record = new HashMap<>();
+		while (name != null || reader.hasNext()) {
+			if (name == null)
+				name = reader.nextName();
+
+			if ("__metadata".equals(name))
+				reader.skipValue();
+			else {
+				EdmTyped property = entitySet.getEntityType().getProperty(name);
+				if (property instanceof EdmNavigationProperty)
+					readNavigationProperty(entitySet, (EdmNavigationProperty) property, record);
+				else if (property instanceof EdmProperty)
+					putProperty(record, (EdmProperty) property);
+				else
+					throw new EntityProviderException(EntityProviderException.ILLEGAL_ARGUMENT.addContent(name));
+			}
+			name = null;
+		}
+		return record;
+	}
+
+	private void readNavigationProperty(EdmEntitySet entitySet, EdmNavigationProperty navigationProperty,
+			Map<String, Object> record) throws IOException, EdmException, EntityProviderException {
+		EdmEntitySet targetEntitySet = entitySet.getRelatedEntitySet(navigationProperty);
+		boolean toMany = navigationProperty.getMultiplicity() == EdmMultiplicity.MANY;
+
+		switch (reader.peek()) {
+		case NULL:
+			reader.nextNull();
+			break;
+		case BEGIN_ARRAY:
+			record.put(navigationProperty.getName(), readEntries(targetEntitySet));
+			break;
+		case BEGIN_OBJECT:
+			reader.beginObject();
+			String name = reader.nextName();
+			if ("__deferred".equals(name))
+				reader.skipValue();
+			else if (toMany)
+				record.put(navigationProperty.getName(), readFeedContent(targetEntitySet, name));
+			else
+				record.put(navigationProperty.getName(), readEntryContent(targetEntitySet, name));
+			reader.endObject();
+			break;
+		default:
+			throw new EntityProviderException(EntityProviderException.INVALID_PROPERTY_VALUE
+				.addContent(navigationProperty.getName()));
+		}
+	}
+
+	private void putProperty(Map<String, Object> data, EdmProperty property)
+			throws IOException, EdmException, EntityProviderException {
+		if (data.containsKey(property.getName()))
+			throw new EntityProviderException(EntityProviderException.DOUBLE_PROPERTY.addContent(property.getName()));
+
+		if (property.isSimple())
+			data.put(property.getName(), readSimpleValue(property));
+		else
+			data.put(property.getName(), readComplexValue(property));
+	}
+
+	private Object readSimpleValue(EdmProperty property) throws IOException, EdmException, EntityProviderException {
+		EdmSimpleType type = (EdmSimpleType) property.getType();
+		String value;
+		switch (reader.peek()) {
+		case NULL:
+			reader.nextNull();
+			value = null;
+			break;
+		case BOOLEAN:
+			value = String.valueOf(reader.nextBoolean());
+			break;
+		case NUMBER:
+			// Same literal forms as Olingo's consumer (e.g. 1.0E10 for doubles)
+			if (type == EdmSimpleTypeKind.Double.getEdmSimpleTypeInstance()
+					|| type == EdmSimpleTypeKind.Single.getEdmSimpleTypeInstance())
+				value = String.valueOf(reader.nextDouble());
+			else
+				value = reader.nextString();
+			break;
+		case STRING:
+			value = reader.nextString();
+			break;
+		default:
+			throw new EntityProviderException(EntityProviderException.INVALID_PROPERTY_VALUE
+				.addContent(property.getName()));
+		}
+		return type.valueOfString(value, EdmLiteralKind.JSON, property.getFacets(), type.getDefaultType());
+	}
+
+	private Map<String, Object> readComplexValue(EdmProperty property) throws IOException, EdmException, EntityProviderException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			if (property.getFacets() != null && Boolean.FALSE.equals(property.getFacets().isNullable()))
+				throw new EntityProviderException(EntityProviderException.INVALID_PROPERTY_VALUE
+					.addContent(property.getName()));
+			return null;
+		}
+
+		EdmStructuralType type = (EdmComplexType) property.getType();
+		Map<String, Object> data = new HashMap<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("__metadata".equals(name)) {
+				reader.skipValue();
+				continue;
+			}
+			EdmTyped child = type.getProperty(name);
+			if (!(child instanceof EdmProperty))
+				throw new EntityProviderException(EntityProviderException.INVALID_PROPERTY.addContent(name));
+			putProperty(data, (EdmProperty) child);
+		}
+		reader.endObject();
+		return data;
+	}
+
+}
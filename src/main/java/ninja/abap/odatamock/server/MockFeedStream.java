@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.ep.EntityProviderException;
+import org.apache.olingo.odata2.api.ep.EntityProviderWriteProperties;
+import org.apache.olingo.odata2.core.commons.ContentType;
+import org.apache.olingo.odata2.core.ep.aggregator.EntityInfoAggregator;
+import org.apache.olingo.odata2.core.ep.producer.JsonFeedEntityProducer;
+
+/**
+ * Entity of a JSON feed response that is serialized while it is sent.
+ *
+ * EntityProvider.writeFeed serializes the whole feed into memory before the response is sent; instead,
+ * MockServlet writes this entity straight to the servlet output stream (see writeTo), through a small
+ * buffer that is flushed every FLUSH_INTERVAL entries. The feed is written by the same Olingo producer,
+ * so the output is identical, but memory use does not depend on the size of the feed.
+ * Errors after the first flush cannot change the response status anymore.
+ *
+ * Where the entity is read as an InputStream instead (eg in $batch responses), the feed is serialized
+ * into memory on first read.
+ */
+class MockFeedStream extends InputStream {
+
+	/** Entries written between flushes of the output */
+	protected static final int FLUSH_INTERVAL = 1000;
+	protected static final int BUFFER_SIZE = 8192;
+
+	protected final EdmEntitySet entitySet;
+	protected final List<Map<String, Object>> records;
+	protected final EntityProviderWriteProperties properties;
+
+	/** Serialized feed, if read as an InputStream */
+	protected InputStream serialized;
+
+	MockFeedStream(EdmEntitySet entitySet, List<Map<String, Object>> records,
+			EntityProviderWriteProperties properties) {
+		this.entitySet = entitySet;
+		this.records = records;
+		this.properties = properties;
+	}
+
+	/**
+	 * Check whether feeds of a content type can be streamed
+	 */
+	static boolean isSupported(String contentType) {
+		return ContentType.createAsCustom(contentType).getODataFormat() == ContentType.ODataFormat.JSON;
+	}
+
+	/**
+	 * Serialize the feed to an output stream
+	 * @param out Output stream (not closed)
+	 * @throws IOException If the feed cannot be written
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+		try {
+			EntityInfoAggregator entityInfo = EntityInfoAggregator.create(entitySet, properties.getExpandSelectTree());
+			new JsonFeedEntityProducer(properties).appendAsObject(writer, entityInfo,
+					new FlushingList(records, writer), true);
+		}
+		catch (EntityProviderException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		writer.flush();
+	}
+
+	protected InputStream serialized() throws IOException {
+		if (serialized == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeTo(out);
+			serialized = new ByteArrayInputStream(out.toByteArray());
+		}
+		return serialized;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return serialized().read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		return serialized().read(b, off, len);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return serialized == null ? 0 : serialized.available();
+	}
+
+
+	/**
+	 * Records to write, flushing the writer while they are iterated
+	 */
+	protected static class FlushingList extends AbstractList<Map<String, Object>> {
+		protected final List<Map<String, Object>> records;
+		protected final Writer writer;
+
+		protected FlushingList(List<Map<String, Object>> records, Writer writer) {
+			this.records = records;
+			this.writer = writer;
+		}
+
+		@Override
+		public Map<String, Object> get(int index) {
+			return records.get(index);
+		}
+
+		@Override
+		public int size() {
+			return records.size();
+		}
+
+		@Override
+		public Iterator<Map<String, Object>> iterator() {
+			Iterator<Map<String, Object>> iterator = records.iterator();
+			return new Iterator<Map<String, Object>>() {
+				int count;
+
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public Map<String, Object> next() {
+					if (++count % FLUSH_INTERVAL == 0) {
+						try {
+							writer.flush();
+						}
+						catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+					return iterator.next();
+				}
+			};
+		}
+	}
+
+}
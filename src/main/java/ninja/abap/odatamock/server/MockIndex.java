@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import ninja.abap.odatamock.server.MockDataStore.IndexType;
+
+/**
+ * Secondary index on a property of an Entity Set snapshot.
+ * The index holds the positions of the records in the snapshot, so records found through it can be
+ * returned in insertion order.
+ *
+ * A HASH index serves equality; a SORTED index serves equality and ranges.
+ * Values are matched the same way MockQueryEngine compares them (e.g. 5, 5L and 5.00M are equal).
+ *
+ * Indexes are immutable. The index of a changed snapshot is derived from the previous one (see update),
+ * copying only the shards (HASH) or blocks (SORTED) that hold changed positions.
+ */
+final class MockIndex {
+
+	/** Target number of entries in a block of a SORTED index (blocks are split at twice this size) */
+	static final int BLOCK = 512;
+
+	private static final int[] NONE = new int[0];
+	private static final Object NULL = new Object();
+
+	final String property;
+	final IndexType type;
+
+	/** HASH: record positions (ascending) by normalized value, in 2^shardBits shards by value hash */
+	private final Map<Object, int[]>[] shards;
+	private final int shardBits;
+	/** HASH: number of distinct values */
+	private final int values;
+
+	/** SORTED: blocks of non-null values in ascending order (then by position) */
+	private final Block[] blocks;
+	/** SORTED: number of entries before each block, and the total number of entries at the end */
+	private final int[] starts;
+
+	private MockIndex(String property, Map<Object, int[]>[] shards, int shardBits, int values) {
+		this.property = property;
+		this.type = IndexType.HASH;
+		this.shards = shards;
+		this.shardBits = shardBits;
+		this.values = values;
+		this.blocks = null;
+		this.starts = null;
+	}
+
+	private MockIndex(String property, Block[] blocks) {
+		this.property = property;
+		this.type = IndexType.SORTED;
+		this.shards = null;
+		this.shardBits = 0;
+		this.values = 0;
+		this.blocks = blocks;
+		this.starts = new int[blocks.length + 1];
+		for (int i = 0; i < blocks.length; i++)
+			starts[i + 1] = starts[i] + blocks[i].positions.length;
+	}
+
+	/**
+	 * Builds an index over a list of records
+	 * @param records Records of the Entity Set snapshot by position (null at the positions of removed records)
+	 * @param property Property (field) name
+	 * @param type Index type
+	 * @return The new index
+	 */
+	@SuppressWarnings("unchecked")
+	static MockIndex build(List<Map<String, Object>> records, String property, IndexType type) {
+		if (type == IndexType.HASH) {
+			Map<Object, List<Integer>> positions = new HashMap<>();
+			for (int i = 0; i < records.size(); i++) {
+				if (records.get(i) != null)
+					positions.computeIfAbsent(normalize(records.get(i).get(property)), v -> new ArrayList<>(1)).add(i);
+			}
+
+			int bits = MockRecords.shardBits(positions.size());
+			Map<Object, int[]>[] shards = new Map[1 << bits];
+			positions.forEach((value, list) -> {
+				int shard = MockRecords.shard(value, bits);
+				if (shards[shard] == null)
+					shards[shard] = new HashMap<>();
+				shards[shard].put(value, list.stream().mapToInt(Integer::intValue).toArray());
+			});
+			return new MockIndex(property, shards, bits, positions.size());
+		}
+
+		Integer[] order = new Integer[records.size()];
+		int count = 0;
+		for (int i = 0; i < records.size(); i++) {
+			if (records.get(i) != null && records.get(i).get(property) != null)
+				order[count++] = i;
+		}
+		order = Arrays.copyOf(order, count);
+		// Stable sort, so equal values stay in position order
+		Arrays.sort(order, (p1, p2) -> MockQueryEngine.compareValues(records.get(p1).get(property),
+				records.get(p2).get(property)));
+
+		Block[] blocks = new Block[(count + BLOCK - 1) / BLOCK];
+		for (int b = 0; b < blocks.length; b++) {
+			int from = b * BLOCK, length = Math.min(BLOCK, count - from);
+			Object[] blockValues = new Object[length];
+			int[] blockPositions = new int[length];
+			for (int i = 0; i < length; i++) {
+				blockPositions[i] = order[from + i];
+				blockValues[i] = records.get(order[from + i]).get(property);
+			}
+			blocks[b] = new Block(blockValues, blockPositions);
+		}
+		return new MockIndex(property, blocks);
+	}
+
+	/**
+	 * Derives the index of a changed snapshot from this one
+	 * @param changes Changes of the records by position (see MockRecords.Editor.changes)
+	 * @return The index of the changed records
+	 */
+	MockIndex update(List<MockRecords.Change> changes) {
+		if (changes.isEmpty())
+			return this;
+		return type == IndexType.HASH ? updateHash(changes) : updateSorted(changes);
+	}
+
+	/**
+	 * Finds the records with a property value equal to a value
+	 * @return Positions of the records found, in ascending order,
+	 *   or null if the index cannot answer (null values in SORTED indexes)
+	 */
+	int[] equal(Object value) {
+		if (type == IndexType.HASH) {
+			int[] positions = bucket(normalize(value));
+			return positions == null ? NONE : positions;
+		}
+		return value == null ? null : range(value, true, value, true);
+	}
+
+	/**
+	 * Finds the records with a property value in a range (SORTED indexes only).
+	 * Records with null values are never found.
+	 * @param lower Lower bound, or null for no lower bound
+	 * @param upper Upper bound, or null for no upper bound
+	 * @return Positions of the records found, in ascending order
+	 */
+	int[] range(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+		int from = lower == null ? 0 : search(lower, !lowerInclusive);
+		int to = upper == null ? size() : search(upper, upperInclusive);
+		if (from >= to)
+			return NONE;
+
+		int[] positions = new int[to - from];
+		int b = block(from);
+		for (int copied = 0; copied < positions.length; b++) {
+			int offset = from + copied - starts[b];
+			int length = Math.min(blocks[b].positions.length - offset, positions.length - copied);
+			System.arraycopy(blocks[b].positions, offset, positions, copied, length);
+			copied += length;
+		}
+		Arrays.sort(positions);
+		return positions;
+	}
+
+	/**
+	 * Counts the records with a property value equal to a non-null value, without collecting them
+	 */
+	int countEqual(Object value) {
+		if (type == IndexType.HASH) {
+			int[] positions = bucket(normalize(value));
+			return positions == null ? 0 : positions.length;
+		}
+		return countRange(value, true, value, true);
+	}
+
+	/**
+	 * Counts the records with a property value in a range (SORTED indexes only), without collecting them
+	 */
+	int countRange(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+		int from = lower == null ? 0 : search(lower, !lowerInclusive);
+		int to = upper == null ? size() : search(upper, upperInclusive);
+		return Math.max(0, to - from);
+	}
+
+	/**
+	 * Get the number of values in the index
+	 */
+	int size() {
+		return type == IndexType.HASH ? values : starts[blocks.length];
+	}
+
+	private int[] bucket(Object normalized) {
+		Map<Object, int[]> shard = shards[MockRecords.shard(normalized, shardBits)];
+		return shard == null ? null : shard.get(normalized);
+	}
+
+	/**
+	 * Get the block of the entry with a rank (number of entries before it)
+	 */
+	private int block(int rank) {
+		int low = 0, high = blocks.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (starts[middle] <= rank)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Binary search for the rank of the first value greater than (or equal to, if not after) a value
+	 */
+	private int search(Object value, boolean after) {
+		// First block with a last value that is not before the value
+		int low = 0, high = blocks.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			Object[] middleValues = blocks[middle].values;
+			if (before(middleValues[middleValues.length - 1], value, after))
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		if (low == blocks.length)
+			return size();
+
+		Object[] blockValues = blocks[low].values;
+		int block = low;
+		low = 0;
+		high = blockValues.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (before(blockValues[middle], value, after))
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return starts[block] + low;
+	}
+
+	private static boolean before(Object indexed, Object value, boolean orEqual) {
+		int result = MockQueryEngine.compareValues(indexed, value);
+		return result < 0 || (orEqual && result == 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private MockIndex updateHash(List<MockRecords.Change> changes) {
+		Map<Object, int[]>[] newShards = shards.clone();
+		BitSet ownShards = new BitSet();
+		int newValues = values;
+		for (MockRecords.Change change : changes) {
+			Object before = change.before == null ? null : normalize(change.before.get(property));
+			Object after = change.after == null ? null : normalize(change.after.get(property));
+			if (Objects.equals(before, after))
+				continue;
+
+			if (before != null) {
+				Map<Object, int[]> shard = ownShard(newShards, ownShards, before);
+				int[] positions = shard.get(before);
+				int i = Arrays.binarySearch(positions, change.position);
+				if (positions.length == 1) {
+					shard.remove(before);
+					newValues--;
+				}
+				else {
+					int[] newPositions = new int[positions.length - 1];
+					System.arraycopy(positions, 0, newPositions, 0, i);
+					System.arraycopy(positions, i + 1, newPositions, i, newPositions.length - i);
+					shard.put(before, newPositions);
+				}
+			}
+			if (after != null) {
+				Map<Object, int[]> shard = ownShard(newShards, ownShards, after);
+				int[] positions = shard.get(after);
+				if (positions == null) {
+					shard.put(after, new int[] { change.position });
+					newValues++;
+				}
+				else {
+					int i = -Arrays.binarySearch(positions, change.position) - 1;
+					int[] newPositions = new int[positions.length + 1];
+					System.arraycopy(positions, 0, newPositions, 0, i);
+					newPositions[i] = change.position;
+					System.arraycopy(positions, i, newPositions, i + 1, positions.length - i);
+					shard.put(after, newPositions);
+				}
+			}
+		}
+
+		int bits = MockRecords.shardBits(newValues);
+		if (bits <= shardBits)
+			return new MockIndex(property, newShards, shardBits, newValues);
+
+		// Redistribute the values over more shards
+		Map<Object, int[]>[] reshards = new Map[1 << bits];
+		for (Map<Object, int[]> shard : newShards) {
+			if (shard == null)
+				continue;
+			shard.forEach((value, positions) -> {
+				int index = MockRecords.shard(value, bits);
+				if (reshards[index] == null)
+					reshards[index] = new HashMap<>();
+				reshards[index].put(value, positions);
+			});
+		}
+		return new MockIndex(property, reshards, bits, newValues);
+	}
+
+	private Map<Object, int[]> ownShard(Map<Object, int[]>[] newShards, BitSet ownShards, Object value) {
+		int index = MockRecords.shard(value, shardBits);
+		if (!ownShards.get(index)) {
+			newShards[index] = newShards[index] == null ? new HashMap<>() : new HashMap<>(newShards[index]);
+			ownShards.set(index);
+		}
+		return newShards[index];
+	}
+
+	private MockIndex updateSorted(List<MockRecords.Change> changes) {
+		List<Block> newBlocks = new ArrayList<>(Arrays.asList(blocks));
+		for (MockRecords.Change change : changes) {
+			Object before = change.before == null ? null : change.before.get(property);
+			Object after = change.after == null ? null : change.after.get(property);
+			if (Objects.equals(before, after))
+				continue;
+
+			if (before != null && !newBlocks.isEmpty()) {
+				int b = Math.min(findBlock(newBlocks, before, change.position), newBlocks.size() - 1);
+				Block block = newBlocks.get(b);
+				int i = block.find(before, change.position);
+				if (i == block.positions.length || block.positions[i] != change.position)
+					continue;
+				if (block.positions.length == 1)
+					newBlocks.remove(b);
+				else
+					newBlocks.set(b, block.without(i));
+			}
+			if (after != null) {
+				if (newBlocks.isEmpty()) {
+					newBlocks.add(new Block(new Object[] { after }, new int[] { change.position }));
+					continue;
+				}
+				int b = Math.min(findBlock(newBlocks, after, change.position), newBlocks.size() - 1);
+				Block block = newBlocks.get(b).with(after, change.position);
+				if (block.positions.length <= 2 * BLOCK)
+					newBlocks.set(b, block);
+				else {
+					newBlocks.set(b, block.slice(0, BLOCK));
+					newBlocks.add(b + 1, block.slice(BLOCK, block.positions.length));
+				}
+			}
+		}
+		return new MockIndex(property, newBlocks.toArray(new Block[0]));
+	}
+
+	/**
+	 * Get the first block with a last entry that is not before an entry (value, position),
+	 * or the number of blocks if there is none
+	 */
+	private static int findBlock(List<Block> blocks, Object value, int position) {
+		int low = 0, high = blocks.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			Block block = blocks.get(middle);
+			int last = block.positions.length - 1;
+			if (compareEntries(block.values[last], block.positions[last], value, position) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private static int compareEntries(Object value1, int position1, Object value2, int position2) {
+		int result = MockQueryEngine.compareValues(value1, value2);
+		return result != 0 ? result : Integer.compare(position1, position2);
+	}
+
+	/**
+	 * Entries of a SORTED index, in ascending order of value, then position. Blocks are immutable.
+	 */
+	private static final class Block {
+		final Object[] values;
+		final int[] positions;
+
+		Block(Object[] values, int[] positions) {
+			this.values = values;
+			this.positions = positions;
+		}
+
+		/**
+		 * Get the index of the first entry that is not before an entry (value, position)
+		 */
+		int find(Object value, int position) {
+			int low = 0, high = positions.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (compareEntries(values[middle], positions[middle], value, position) < 0)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+
+		Block with(Object value, int position) {
+			int i = find(value, position);
+			Object[] newValues = new Object[values.length + 1];
+			int[] newPositions = new int[positions.length + 1];
+			System.arraycopy(values, 0, newValues, 0, i);
+			System.arraycopy(positions, 0, newPositions, 0, i);
+			newValues[i] = value;
+			newPositions[i] = position;
+			System.arraycopy(values, i, newValues, i + 1, values.length - i);
+			System.arraycopy(positions, i, newPositions, i + 1, positions.length - i);
+			return new Block(newValues, newPositions);
+		}
+
+		Block without(int i) {
+			Object[] newValues = new Object[values.length - 1];
+			int[] newPositions = new int[positions.length - 1];
+			System.arraycopy(values, 0, newValues, 0, i);
+			System.arraycopy(positions, 0, newPositions, 0, i);
+			System.arraycopy(values, i + 1, newValues, i, newValues.length - i);
+			System.arraycopy(positions, i + 1, newPositions, i, newPositions.length - i);
+			return new Block(newValues, newPositions);
+		}
+
+		Block slice(int from, int to) {
+			return new Block(Arrays.copyOfRange(values, from, to), Arrays.copyOfRange(positions, from, to));
+		}
+	}
+
+	/**
+	 * Normalizes a value to a hash key with the same equality as MockQueryEngine.equalValues
+	 */
+	static Object normalize(Object value) {
+		if (value == null)
+			return NULL;
+		if (value instanceof Long)
+			return value;
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return ((Number) value).longValue();
+		if (value instanceof Double || value instanceof Float) {
+			double number = ((Number) value).doubleValue();
+			if (Double.isNaN(number) || Double.isInfinite(number))
+				return number;
+		}
+		if (value instanceof Number) {
+			BigDecimal decimal = value instanceof BigDecimal ? (BigDecimal) value
+					: new BigDecimal(value.toString());
+			try {
+				return decimal.longValueExact();
+			}
+			catch (ArithmeticException e) {
+				return decimal.stripTrailingZeros();
+			}
+		}
+		if (value instanceof Calendar)
+			return new Date(((Calendar) value).getTimeInMillis());
+		if (value instanceof Date)
+			return new Date(((Date) value).getTime());
+		if (value instanceof byte[])
+			return ByteBuffer.wrap((byte[]) value);
+		return value;
+	}
+
+}
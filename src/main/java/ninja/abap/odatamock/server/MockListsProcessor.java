@@ -15,14 +15,423 @@
  */
 package ninja.abap.odatamock.server;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
 import org.apache.olingo.odata2.annotation.processor.core.ListsProcessor;
 import org.apache.olingo.odata2.annotation.processor.core.datasource.DataSource;
 import org.apache.olingo.odata2.annotation.processor.core.datasource.ValueAccess;
+import org.apache.olingo.odata2.api.ODataService;
+import org.apache.olingo.odata2.api.batch.BatchHandler;
+import org.apache.olingo.odata2.api.batch.BatchRequestPart;
+import org.apache.olingo.odata2.api.batch.BatchResponsePart;
+import org.apache.olingo.odata2.api.commons.HttpStatusCodes;
+import org.apache.olingo.odata2.api.commons.InlineCount;
+import org.apache.olingo.odata2.api.commons.ODataHttpMethod;
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.ep.EntityProvider;
+import org.apache.olingo.odata2.api.ep.EntityProviderBatchProperties;
+import org.apache.olingo.odata2.api.ep.EntityProviderWriteProperties;
+import org.apache.olingo.odata2.api.exception.ODataException;
+import org.apache.olingo.odata2.api.exception.ODataNotImplementedException;
+import org.apache.olingo.odata2.api.processor.ODataContext;
+import org.apache.olingo.odata2.api.processor.ODataRequest;
+import org.apache.olingo.odata2.api.processor.ODataResponse;
+import org.apache.olingo.odata2.api.uri.NavigationSegment;
+import org.apache.olingo.odata2.api.uri.PathSegment;
+import org.apache.olingo.odata2.api.uri.UriParser;
+import org.apache.olingo.odata2.api.uri.info.DeleteUriInfo;
+import org.apache.olingo.odata2.api.uri.info.GetEntitySetCountUriInfo;
+import org.apache.olingo.odata2.api.uri.info.GetEntitySetUriInfo;
+import org.apache.olingo.odata2.api.uri.info.PutMergePatchUriInfo;
+import org.apache.olingo.odata2.core.batch.BatchHandlerImpl;
+
+import lombok.RequiredArgsConstructor;
 
 class MockListsProcessor extends ListsProcessor {
 
-	public MockListsProcessor(DataSource dataSource, ValueAccess valueAccess) {
+	/** Default maximum number of records per feed response, same as in ListsProcessor */
+	protected static final int SERVER_PAGING_SIZE = 100;
+
+	/** Maximum number of records per feed response (0 = no paging) */
+	protected final int pageSize;
+	/** Page sizes of specific Entity Sets (Entity Set name / page size), overriding pageSize */
+	protected final Map<String, Integer> pageSizes;
+
+	/** Executor of the retrieve operations of $batch requests, or null to run them one after another */
+	protected final Executor batchExecutor;
+
+	/** Metrics where the operations of $batch requests are recorded, or null */
+	protected final MockMetrics metrics;
+
+	/** Whether the operations of $batch requests may get Olingo's debug output (see MockTracer) */
+	protected final boolean debugOutput;
+
+	public MockListsProcessor(DataSource dataSource, ValueAccess valueAccess, MockMetrics metrics,
+			boolean debugOutput, int pageSize, Map<String, Integer> pageSizes, Executor batchExecutor) {
 		super(dataSource, valueAccess);
+		this.metrics = metrics;
+		this.debugOutput = debugOutput;
+		this.pageSize = pageSize;
+		this.pageSizes = pageSizes;
+		this.batchExecutor = batchExecutor;
+	}
+
+	/**
+	 * Reads an Entity Set feed.
+	 * Plain Entity Set requests are answered by a query on the data store, which applies
+	 * $filter, $orderby, $skip and $top without copying and sorting the whole Entity Set.
+	 * Feeds larger than the page size end with a next link, whose $skiptoken resumes after the last record.
+	 * Everything else (navigation, function imports, unsupported expressions) is handled by ListsProcessor,
+	 * which ignores pageSize and pageSizes: it pages by 100 records, with a $skiptoken of the key values of
+	 * the next record. As the same request falls back again, its next links still resume correctly.
+	 */
+	@Override
+	public ODataResponse readEntitySet(GetEntitySetUriInfo uriInfo, String contentType) throws ODataException {
+		MockDataStore dataStore = getDataStore();
+		if (dataStore == null || uriInfo.getFunctionImport() != null || !uriInfo.getNavigationSegments().isEmpty()
+				|| uriInfo.getTargetEntitySet().getEntityType().getMapping() != null)
+			return super.readEntitySet(uriInfo, contentType);
+
+		EdmEntitySet entitySet = uriInfo.getTargetEntitySet();
+		int pageSize = pageSizes.getOrDefault(entitySet.getName(), this.pageSize);
+		InlineCount inlineCountType = uriInfo.getInlineCount();
+		MockQuery query = new MockQuery(entitySet)
+				.filter(uriInfo.getFilter())
+				.orderBy(uriInfo.getOrderBy())
+				.skipToken(uriInfo.getSkipToken())
+				.skip(uriInfo.getSkip())
+				.top(uriInfo.getTop())
+				.maxRows(pageSize > 0 ? pageSize : null)
+				.countAll(inlineCountType == InlineCount.ALLPAGES);
+
+		ODataContext context = getContext();
+		MockQuery.Result result;
+		int timingHandle = context.startRuntimeMeasurement(getClass().getSimpleName(), "query");
+		try {
+			result = dataStore.query(query);
+		}
+		catch (ODataNotImplementedException e) {
+			// Expression not supported by the query engine, paged by ListsProcessor (see above)
+			return super.readEntitySet(uriInfo, contentType);
+		}
+		finally {
+			context.stopRuntimeMeasurement(timingHandle);
+		}
+
+		List<Map<String, Object>> records = result.records();
+		String nextLink = null;
+		if (result.nextSkipToken() != null) {
+			nextLink = context.getPathInfo().getServiceRoot().relativize(context.getPathInfo().getRequestUri()).toString();
+			nextLink = removeSkipOptions(nextLink);
+			nextLink = nextLink + (nextLink.contains("?") ? "&" : "?") + "$skiptoken=" + result.nextSkipToken();
+		}
+
+		EntityProviderWriteProperties feedProperties = EntityProviderWriteProperties
+				.serviceRoot(context.getPathInfo().getServiceRoot())
+				.inlineCountType(inlineCountType)
+				.inlineCount(result.count())
+				.expandSelectTree(UriParser.createExpandSelectTree(uriInfo.getSelect(), uriInfo.getExpand()))
+				.callbacks(MockWriteCallback.create(context, dataSource, dataStore, context.getPathInfo().getServiceRoot(),
+						records, entitySet.getEntityType()))
+				.nextLink(nextLink)
+				.build();
+
+		// JSON feeds are serialized while they are sent (see MockServlet), except when the request is traced,
+		//  as serialization would happen after the runtime measurements are collected (see MockTracer)
+		if (MockFeedStream.isSupported(contentType) && !context.isInDebugMode())
+			return ODataResponse.entity(new MockFeedStream(entitySet, records, feedProperties)).build();
+
+		timingHandle = context.startRuntimeMeasurement("EntityProvider", "writeFeed");
+		ODataResponse response = EntityProvider.writeFeed(contentType, entitySet, records, feedProperties);
+		context.stopRuntimeMeasurement(timingHandle);
+
+		return ODataResponse.fromResponse(response).build();
+	}
+
+	/**
+	 * Counts the records of an Entity Set ($count).
+	 * Plain Entity Set requests are counted by the data store, from the size of the Entity Set or from an
+	 * index, instead of copying all records and filtering them like ListsProcessor.
+	 */
+	@Override
+	public ODataResponse countEntitySet(GetEntitySetCountUriInfo uriInfo, String contentType) throws ODataException {
+		MockDataStore dataStore = getDataStore();
+		if (dataStore == null || uriInfo.getFunctionImport() != null || !uriInfo.getNavigationSegments().isEmpty()
+				|| uriInfo.getTargetEntitySet().getEntityType().getMapping() != null)
+			return super.countEntitySet(uriInfo, contentType);
+
+		MockQuery query = new MockQuery(uriInfo.getTargetEntitySet())
+				.filter(uriInfo.getFilter())
+				.skip(uriInfo.getSkip())
+				.top(uriInfo.getTop());
+
+		int count;
+		int timingHandle = getContext().startRuntimeMeasurement(getClass().getSimpleName(), "count");
+		try {
+			count = dataStore.count(query);
+		}
+		catch (ODataNotImplementedException e) {
+			// Expression not supported by the query engine
+			return super.countEntitySet(uriInfo, contentType);
+		}
+		finally {
+			getContext().stopRuntimeMeasurement(timingHandle);
+		}
+
+		return ODataResponse.fromResponse(EntityProvider.writeText(String.valueOf(count))).build();
+	}
+
+	/**
+	 * Executes a $batch request.
+	 * Consecutive retrieve operations (GET requests outside of change sets) run concurrently on the batch
+	 * executor, each with its own processor, as processors hold the request context. Change sets and other
+	 * operations wait for the operations before them and run alone, so every operation sees the same data
+	 * as in sequence. Responses keep the order of the request parts.
+	 * Each operation is recorded in the metrics as a request of its own (see MockBatchHandler).
+	 */
+	@Override
+	public ODataResponse executeBatch(BatchHandler handler, String contentType, InputStream content)
+			throws ODataException {
+		handler = wrap(handler);
+		if (batchExecutor == null)
+			return super.executeBatch(handler, contentType, content);
+
+		ODataContext context = getContext();
+		EntityProviderBatchProperties batchProperties = EntityProviderBatchProperties.init()
+				.pathInfo(context.getPathInfo()).build();
+		List<BatchRequestPart> parts = EntityProvider.parseBatchRequest(contentType, content, batchProperties);
+
+		List<BatchResponsePart> responseParts = new ArrayList<>(parts.size());
+		for (int i = 0; i < parts.size(); i++) {
+			int end = i;
+			while (end < parts.size() && isRetrieve(parts.get(end)))
+				end++;
+			if (end - i < 2) {
+				responseParts.add(handler.handleBatchPart(parts.get(i)));
+				continue;
+			}
+
+			// The first operation runs on this thread, while the others run on the executor
+			List<FutureTask<BatchResponsePart>> tasks = new ArrayList<>(end - i - 1);
+			for (int j = i + 1; j < end; j++) {
+				BatchRequestPart part = parts.get(j);
+				FutureTask<BatchResponsePart> task = new FutureTask<>(
+						() -> wrap(createBatchHandler(context)).handleBatchPart(part));
+				batchExecutor.execute(task);
+				tasks.add(task);
+			}
+			responseParts.add(handler.handleBatchPart(parts.get(i)));
+			for (FutureTask<BatchResponsePart> task : tasks)
+				responseParts.add(await(task));
+			i = end - 1;
+		}
+
+		return EntityProvider.writeBatchResponse(responseParts);
+	}
+
+	@Override
+	public BatchResponsePart executeChangeSet(BatchHandler handler, List<ODataRequest> requests)
+			throws ODataException {
+		return super.executeChangeSet(wrap(handler), requests);
+	}
+
+	/**
+	 * Wraps a handler of $batch operations so the operations are recorded in the metrics, and get no
+	 * debug output unless enabled
+	 */
+	protected BatchHandler wrap(BatchHandler handler) {
+		return (metrics == null && debugOutput) || handler instanceof MockBatchHandler ? handler
+				: new MockBatchHandler(handler, metrics, debugOutput);
+	}
+
+	/**
+	 * Whether a $batch part is a retrieve operation, which can run concurrently with others
+	 */
+	protected static boolean isRetrieve(BatchRequestPart part) {
+		return !part.isChangeSet() && part.getRequests().size() == 1
+				&& part.getRequests().get(0).getMethod() == ODataHttpMethod.GET;
+	}
+
+	/**
+	 * Creates a handler of $batch operations with its own service (and processor)
+	 * @param batchContext Context of the $batch request
+	 */
+	protected static BatchHandler createBatchHandler(ODataContext batchContext) throws ODataException {
+		ODataService service = batchContext.getServiceFactory().createService(batchContext);
+		service.getProcessor().setContext(batchContext);
+		return new BatchHandlerImpl(batchContext.getServiceFactory(), service);
+	}
+
+	/**
+	 * Waits for a $batch operation running on the batch executor and returns its response
+	 */
+	protected static BatchResponsePart await(FutureTask<BatchResponsePart> task) throws ODataException {
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ODataException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof ODataException)
+				throw (ODataException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new ODataException(e.getCause());
+		}
+	}
+
+	/*
+	 * ListsProcessor updates the records it reads in place, so updates run on copies of the stored
+	 * records, which are stored afterwards (see MockDataSource.update).
+	 * updateEntitySimpleProperty runs updateEntityComplexProperty.
+	 */
+
+	@Override
+	public ODataResponse updateEntity(PutMergePatchUriInfo uriInfo, InputStream content, String requestContentType,
+			boolean merge, String contentType) throws ODataException {
+		return update(uriInfo.getStartEntitySet(), uriInfo.getNavigationSegments(), uriInfo.getTargetEntitySet(),
+				() -> super.updateEntity(uriInfo, content, requestContentType, merge, contentType));
+	}
+
+	@Override
+	public ODataResponse updateEntityComplexProperty(PutMergePatchUriInfo uriInfo, InputStream content,
+			String requestContentType, boolean merge, String contentType) throws ODataException {
+		return update(uriInfo.getStartEntitySet(), uriInfo.getNavigationSegments(), uriInfo.getTargetEntitySet(),
+				() -> super.updateEntityComplexProperty(uriInfo, content, requestContentType, merge, contentType));
+	}
+
+	@Override
+	public ODataResponse updateEntitySimplePropertyValue(PutMergePatchUriInfo uriInfo, InputStream content,
+			String requestContentType, String contentType) throws ODataException {
+		return update(uriInfo.getStartEntitySet(), uriInfo.getNavigationSegments(), uriInfo.getTargetEntitySet(),
+				() -> super.updateEntitySimplePropertyValue(uriInfo, content, requestContentType, contentType));
+	}
+
+	@Override
+	public ODataResponse deleteEntitySimplePropertyValue(DeleteUriInfo uriInfo, String contentType)
+			throws ODataException {
+		return update(uriInfo.getStartEntitySet(), uriInfo.getNavigationSegments(), uriInfo.getTargetEntitySet(),
+				() -> super.deleteEntitySimplePropertyValue(uriInfo, contentType));
+	}
+
+	protected ODataResponse update(EdmEntitySet startEntitySet, List<NavigationSegment> navigationSegments,
+			EdmEntitySet entitySet, MockDataStore.Action<ODataResponse> update) throws ODataException {
+		MockDataStore dataStore = getDataStore();
+		if (dataStore == null)
+			return update.run();
+
+		// The Entity Sets read by the update are loaded before it locks the updated Entity Set,
+		//  as loading them (see MockDataStore.setMaterializer) can write to it
+		dataStore.getVersion(startEntitySet.getName());
+		for (NavigationSegment navigationSegment : navigationSegments)
+			dataStore.getVersion(navigationSegment.getEntitySet().getName());
+
+		return ((MockDataSource) dataSource).update(entitySet.getName(), update);
+	}
+
+	/**
+	 * Get the data store behind the data source, if it is a MockDataSource
+	 */
+	protected MockDataStore getDataStore() {
+		return dataSource instanceof MockDataSource ? ((MockDataSource) dataSource).dataStore : null;
+	}
+
+	/**
+	 * Removes $skiptoken and $skip from a request URI, to build the next link (same as ListsProcessor)
+	 */
+	protected static String removeSkipOptions(String link) {
+		return link.replaceAll("\\$skiptoken=.+?(?:&|$)", "")
+				.replaceAll("\\$skip=.+?(?:&|$)", "")
+				.replaceFirst("(?:\\?|&)$", "");
+	}
+
+
+	/**
+	 * Handler of the operations of a $batch request, which records them in the metrics (if any) by operation
+	 * and Entity Set, as if they were requests of their own, and removes their odata-debug query option
+	 * unless debugOutput. Change sets are handled request by request, by executeChangeSet.
+	 */
+	@RequiredArgsConstructor
+	protected static class MockBatchHandler implements BatchHandler {
+		protected final BatchHandler handler;
+		protected final MockMetrics metrics;
+		protected final boolean debugOutput;
+
+		@Override
+		public BatchResponsePart handleBatchPart(BatchRequestPart part) throws ODataException {
+			if (part.isChangeSet() || part.getRequests().size() != 1)
+				return handler.handleBatchPart(part);
+
+			ODataRequest request = debugOutput ? part.getRequests().get(0)
+					: MockTracer.withoutDebugOption(part.getRequests().get(0));
+			if (request != part.getRequests().get(0))
+				part = part(request);
+			if (metrics == null)
+				return handler.handleBatchPart(part);
+
+			long start = System.nanoTime();
+			try {
+				BatchResponsePart response = handler.handleBatchPart(part);
+				record(request, response.getResponses().get(0).getStatus().getStatusCode(), start);
+				return response;
+			}
+			catch (ODataException | RuntimeException | Error e) {
+				record(request, HttpStatusCodes.INTERNAL_SERVER_ERROR.getStatusCode(), start);
+				throw e;
+			}
+		}
+
+		@Override
+		public ODataResponse handleRequest(ODataRequest request) throws ODataException {
+			if (!debugOutput)
+				request = MockTracer.withoutDebugOption(request);
+			if (metrics == null)
+				return handler.handleRequest(request);
+
+			long start = System.nanoTime();
+			try {
+				ODataResponse response = handler.handleRequest(request);
+				record(request, response.getStatus().getStatusCode(), start);
+				return response;
+			}
+			catch (ODataException | RuntimeException | Error e) {
+				record(request, HttpStatusCodes.INTERNAL_SERVER_ERROR.getStatusCode(), start);
+				throw e;
+			}
+		}
+
+		/**
+		 * Query part of a single request
+		 */
+		protected static BatchRequestPart part(ODataRequest request) {
+			return new BatchRequestPart() {
+				@Override
+				public boolean isChangeSet() {
+					return false;
+				}
+
+				@Override
+				public List<ODataRequest> getRequests() {
+					return Collections.singletonList(request);
+				}
+			};
+		}
+
+		protected void record(ODataRequest request, int status, long start) {
+			StringBuilder path = new StringBuilder();
+			for (PathSegment segment : request.getPathInfo().getODataSegments())
+				path.append('/').append(segment.getPath());
+			metrics.recordRequest(request.getMethod().name(), path.toString(), status, System.nanoTime() - start);
+		}
 	}
 
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.olingo.odata2.api.edm.Edm;
+import org.apache.olingo.odata2.api.edm.EdmAssociation;
+import org.apache.olingo.odata2.api.edm.EdmComplexType;
+import org.apache.olingo.odata2.api.edm.EdmEntityContainer;
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.edm.EdmEntityType;
+import org.apache.olingo.odata2.api.edm.EdmException;
+import org.apache.olingo.odata2.api.edm.EdmFunctionImport;
+import org.apache.olingo.odata2.api.edm.EdmNavigationProperty;
+import org.apache.olingo.odata2.api.edm.EdmProperty;
+import org.apache.olingo.odata2.api.edm.EdmStructuralType;
+import org.apache.olingo.odata2.api.edm.EdmTyped;
+import org.apache.olingo.odata2.api.edm.provider.EntityContainer;
+import org.apache.olingo.odata2.api.edm.provider.EntitySet;
+import org.apache.olingo.odata2.api.edm.provider.FunctionImport;
+import org.apache.olingo.odata2.api.edm.provider.Schema;
+import org.apache.olingo.odata2.api.exception.ODataException;
+import org.apache.olingo.odata2.api.rt.RuntimeDelegate;
+import org.apache.olingo.odata2.core.edm.provider.EdmxProvider;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Parsed Edmx metadata (Edm and EdmProvider)
+ * Instances are cached by Edmx content hash, so servers with the same metadata in a JVM parse it
+ * only once and share the result.
+ *
+ * Olingo's Edm fills its lookup caches lazily, which is not safe for concurrent use; the shared Edm
+ * is fully materialized on creation, so later lookups only read it.
+ */
+@Getter
+final class MockMetadata {
+
+	private static final Map<String, SoftReference<MockMetadata>> cache = new ConcurrentHashMap<>();
+
+	private final EdmxProvider edmProvider;
+	private final Edm edm;
+
+	private MockMetadata(String edmx) throws ODataException {
+		this.edmProvider = new EdmxProvider().parse(IOUtils.toInputStream(edmx, StandardCharsets.UTF_8), true);
+		this.edm = RuntimeDelegate.createEdm(edmProvider);
+		materialize();
+	}
+
+	/**
+	 * Get the parsed metadata of an Edmx, parsing it on first use
+	 * @param edmx Edmx (metadata) contents
+	 * @return Shared parsed metadata
+	 * @throws ODataException If the Edmx is not valid
+	 */
+	static MockMetadata of(@NonNull String edmx) throws ODataException {
+		String key = hash(edmx);
+		MockMetadata metadata = get(key);
+		if (metadata != null)
+			return metadata;
+
+		synchronized (cache) {
+			metadata = get(key);
+			if (metadata == null) {
+				metadata = new MockMetadata(edmx);
+				cache.put(key, new SoftReference<>(metadata));
+			}
+			return metadata;
+		}
+	}
+
+	private static MockMetadata get(String key) {
+		SoftReference<MockMetadata> reference = cache.get(key);
+		return reference == null ? null : reference.get();
+	}
+
+	private static String hash(String edmx) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(edmx.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Walks the whole Edm so all of its lazily created elements and lookup caches are filled
+	 */
+	private void materialize() throws ODataException {
+		Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		edm.getServiceMetadata().getDataServiceVersion();
+		edm.getServiceMetadata().getEntitySetInfos();
+		edm.getDefaultEntityContainer();
+		edm.getEntitySets();
+		edm.getFunctionImports();
+
+		for (Schema schema : edmProvider.getSchemas()) {
+			for (EntityContainer container : schema.getEntityContainers()) {
+				EdmEntityContainer edmContainer = edm.getEntityContainer(container.getName());
+				for (EntitySet entitySet : container.getEntitySets())
+					materialize(edmContainer, edmContainer.getEntitySet(entitySet.getName()), visited);
+				for (FunctionImport functionImport : container.getFunctionImports())
+					materialize(edmContainer.getFunctionImport(functionImport.getName()), visited);
+			}
+		}
+	}
+
+	private void materialize(EdmEntityContainer container, EdmEntitySet entitySet, Set<Object> visited)
+			throws EdmException {
+		entitySet.getAnnotations();
+		entitySet.getMapping();
+		EdmEntityType entityType = entitySet.getEntityType();
+		materialize(entityType, visited);
+
+		for (String name : entityType.getNavigationPropertyNames()) {
+			EdmNavigationProperty navigationProperty = (EdmNavigationProperty) entityType.getProperty(name);
+			navigationProperty.getAnnotations();
+			navigationProperty.getType();
+			EdmAssociation association = navigationProperty.getRelationship();
+			association.getAnnotations();
+			association.getReferentialConstraint();
+			association.getEnd1().getEntityType();
+			association.getEnd1().getAnnotations();
+			association.getEnd2().getEntityType();
+			association.getEnd2().getAnnotations();
+			container.getAssociationSet(entitySet, navigationProperty).getAnnotations();
+			entitySet.getRelatedEntitySet(navigationProperty);
+		}
+	}
+
+	private void materialize(EdmStructuralType type, Set<Object> visited) throws EdmException {
+		if (type == null || !visited.add(type))
+			return;
+
+		type.getAnnotations();
+		type.getMapping();
+		materialize(type.getBaseType(), visited);
+		for (String name : type.getPropertyNames()) {
+			EdmTyped property = type.getProperty(name);
+			((EdmProperty) property).getAnnotations();
+			if (property.getType() instanceof EdmComplexType)
+				materialize((EdmComplexType) property.getType(), visited);
+		}
+
+		if (type instanceof EdmEntityType) {
+			EdmEntityType entityType = (EdmEntityType) type;
+			entityType.getKeyPropertyNames();
+			entityType.getKeyProperties();
+			entityType.getNavigationPropertyNames();
+		}
+	}
+
+	private void materialize(EdmFunctionImport functionImport, Set<Object> visited) throws EdmException {
+		functionImport.getAnnotations();
+		functionImport.getMapping();
+		functionImport.getEntitySet();
+		if (functionImport.getReturnType() != null && functionImport.getReturnType().getType() instanceof EdmStructuralType)
+			materialize((EdmStructuralType) functionImport.getReturnType().getType(), visited);
+		for (String name : functionImport.getParameterNames()) {
+			functionImport.getParameter(name).getAnnotations();
+			functionImport.getParameter(name).getType();
+		}
+	}
+
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.olingo.odata2.api.edm.Edm;
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.edm.EdmException;
+import org.apache.olingo.odata2.api.edm.EdmFunctionImport;
+
+import lombok.NonNull;
+
+/**
+ * Metrics of an OData mock server, in Prometheus text exposition format (see write):
+ * - Request counts and latency histograms by operation (read, create, update, delete, function, batch,
+ *   metadata, service, other) and Entity Set (or Function Import). The operations of a $batch request are
+ *   recorded each by its own operation and Entity Set (see MockListsProcessor), besides the $batch itself;
+ * - Requests answered with an error status;
+ * - Records stored per Entity Set and index hits/misses of the data store (see MockDataStore.EntitySetData);
+ * - Snapshot files that failed to load (see ODataMockServer.loadData), and hot reloads of Entity Sets
+ *   that failed (see MockDataWatcher).
+ *
+ * Recording is lock-free: histograms have fixed buckets of striped counters (LongAdder), looked up in
+ * concurrent maps without allocating. Only the Entity Sets and Function Imports of the metadata are used
+ * as labels, so requests to arbitrary paths cannot grow the metrics.
+ */
+public class MockMetrics {
+
+	/** Content type of the text exposition format */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/** Upper bounds of the latency histogram buckets, in seconds */
+	protected static final double[] BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+			1, 2.5, 5, 10 };
+	protected static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	static {
+		for (int i = 0; i < BUCKETS.length; i++)
+			BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+	}
+
+	protected final MockDataStore dataStore;
+	protected final Set<String> entitySets = new HashSet<>();
+	protected final Set<String> functionImports = new HashSet<>();
+
+	/** Operation / Entity Set (or Function Import, or "") / metrics */
+	protected final Map<String, Map<String, RequestMetrics>> requests = new ConcurrentHashMap<>();
+
+	/** Snapshot files that failed to load, and the error of the last one */
+	protected final LongAdder snapshotFailures = new LongAdder();
+	protected volatile Exception lastSnapshotError;
+
+	/** Hot reloads that failed, and the error of the last failure, by Entity Set */
+	protected final Map<String, LongAdder> reloadFailures = new ConcurrentHashMap<>();
+	protected final Map<String, Exception> lastReloadErrors = new ConcurrentHashMap<>();
+
+	MockMetrics(final @NonNull Edm edm, final @NonNull MockDataStore dataStore) throws EdmException {
+		this.dataStore = dataStore;
+		for (EdmEntitySet entitySet : edm.getEntitySets())
+			entitySets.add(entitySet.getName());
+		for (EdmFunctionImport functionImport : edm.getFunctionImports())
+			functionImports.add(functionImport.getName());
+	}
+
+	/**
+	 * Record a served OData request
+	 * @param method HTTP method (after X-HTTP-Method tunneling)
+	 * @param pathInfo Request path within the OData service (eg "/Orders(1)/Order_Details")
+	 * @param status HTTP response status
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void recordRequest(String method, String pathInfo, int status, long nanos) {
+		String path = pathInfo == null ? "" : StringUtils.removeStart(pathInfo, "/");
+		int end = StringUtils.indexOfAny(path, '/', '(');
+		String segment = end < 0 ? path : path.substring(0, end);
+
+		String operation;
+		if (segment.isEmpty())
+			operation = "service";
+		else if (segment.equals("$metadata"))
+			operation = "metadata";
+		else if (segment.equals("$batch"))
+			operation = "batch";
+		else if (functionImports.contains(segment))
+			operation = "function";
+		else if (entitySets.contains(segment))
+			operation = operation(method);
+		else
+			operation = "other";
+		if (!operation.equals("function") && !entitySets.contains(segment))
+			segment = "";
+
+		requestMetrics(operation, segment).observe(nanos, status >= 400);
+	}
+
+	/**
+	 * Record a snapshot file that failed to load (the data was loaded from the local directory instead)
+	 * @param error Error of the snapshot load
+	 */
+	public void recordSnapshotFailure(@NonNull Exception error) {
+		snapshotFailures.increment();
+		lastSnapshotError = error;
+	}
+
+	/**
+	 * Get the error of the last snapshot file that failed to load
+	 * @return The error, or null if no snapshot failed to load
+	 */
+	public Exception getLastSnapshotError() {
+		return lastSnapshotError;
+	}
+
+	/**
+	 * Record a failed hot reload of an Entity Set (its previous records were kept)
+	 * @param entitySet Entity Set name
+	 * @param error Error of the reload
+	 */
+	public void recordReloadFailure(@NonNull String entitySet, @NonNull Exception error) {
+		reloadFailures.computeIfAbsent(entitySet, es -> new LongAdder()).increment();
+		lastReloadErrors.put(entitySet, error);
+	}
+
+	/**
+	 * Get the error of the last failed hot reload of each Entity Set
+	 * @return Errors by Entity Set name (unmodifiable), without the Entity Sets that never failed to reload
+	 */
+	public Map<String, Exception> getLastReloadErrors() {
+		return Collections.unmodifiableMap(lastReloadErrors);
+	}
+
+	protected static String operation(String method) {
+		switch (method) {
+		case "GET":
+		case "HEAD":
+			return "read";
+		case "POST":
+			return "create";
+		case "PUT":
+		case "PATCH":
+		case "MERGE":
+			return "update";
+		case "DELETE":
+			return "delete";
+		default:
+			return "other";
+		}
+	}
+
+	protected RequestMetrics requestMetrics(String operation, String entitySet) {
+		Map<String, RequestMetrics> byEntitySet = requests.get(operation);
+		if (byEntitySet == null)
+			byEntitySet = requests.computeIfAbsent(operation, o -> new ConcurrentHashMap<>());
+		RequestMetrics metrics = byEntitySet.get(entitySet);
+		if (metrics == null)
+			metrics = byEntitySet.computeIfAbsent(entitySet, es -> new RequestMetrics());
+		return metrics;
+	}
+
+	/**
+	 * Write all metrics in Prometheus text exposition format (version 0.0.4)
+	 * @param out Writer
+	 * @throws IOException
+	 */
+	public void write(Writer out) throws IOException {
+		Map<String, RequestMetrics> sorted = new TreeMap<>();
+		requests.forEach((operation, byEntitySet) -> byEntitySet.forEach((entitySet, metrics) ->
+			sorted.put("operation=\"" + escape(operation) + "\",entity_set=\"" + escape(entitySet) + "\"", metrics)));
+
+		out.write("# HELP odata_mock_request_duration_seconds Duration of OData requests\n");
+		out.write("# TYPE odata_mock_request_duration_seconds histogram\n");
+		for (Map.Entry<String, RequestMetrics> metrics : sorted.entrySet()) {
+			String labels = metrics.getKey();
+			long count = 0;
+			for (int i = 0; i <= BUCKETS.length; i++) {
+				count += metrics.getValue().buckets[i].sum();
+				String le = i < BUCKETS.length ? BigDecimal.valueOf(BUCKETS[i]).stripTrailingZeros().toPlainString() : "+Inf";
+				out.write("odata_mock_request_duration_seconds_bucket{" + labels + ",le=\"" + le + "\"} " + count + "\n");
+			}
+			out.write("odata_mock_request_duration_seconds_sum{" + labels + "} "
+					+ metrics.getValue().nanos.sum() / 1e9 + "\n");
+			out.write("odata_mock_request_duration_seconds_count{" + labels + "} " + count + "\n");
+		}
+
+		out.write("# HELP odata_mock_request_errors_total OData requests answered with an error status (4xx/5xx)\n");
+		out.write("# TYPE odata_mock_request_errors_total counter\n");
+		for (Map.Entry<String, RequestMetrics> metrics : sorted.entrySet())
+			out.write("odata_mock_request_errors_total{" + metrics.getKey() + "} " + metrics.getValue().errors.sum() + "\n");
+
+		Map<String, MockDataStore.EntitySetData> esData = new TreeMap<>(dataStore.data);
+		out.write("# HELP odata_mock_entity_set_records Records stored in an Entity Set\n");
+		out.write("# TYPE odata_mock_entity_set_records gauge\n");
+		for (Map.Entry<String, MockDataStore.EntitySetData> entitySet : esData.entrySet())
+			out.write("odata_mock_entity_set_records{entity_set=\"" + escape(entitySet.getKey()) + "\"} "
+					+ entitySet.getValue().snapshot.records.count() + "\n");
+
+		out.write("# HELP odata_mock_index_lookups_total Record lookups of $filter conditions and navigations "
+				+ "(hit: served by an index, miss: scan)\n");
+		out.write("# TYPE odata_mock_index_lookups_total counter\n");
+		for (Map.Entry<String, MockDataStore.EntitySetData> entitySet : esData.entrySet()) {
+			String labels = "entity_set=\"" + escape(entitySet.getKey()) + "\"";
+			out.write("odata_mock_index_lookups_total{" + labels + ",result=\"hit\"} "
+					+ entitySet.getValue().indexHits.sum() + "\n");
+			out.write("odata_mock_index_lookups_total{" + labels + ",result=\"miss\"} "
+					+ entitySet.getValue().indexMisses.sum() + "\n");
+		}
+
+		out.write("# HELP odata_mock_snapshot_load_failures_total Snapshot files that failed to load "
+				+ "(the data was loaded from the local directory and the snapshot rewritten)\n");
+		out.write("# TYPE odata_mock_snapshot_load_failures_total counter\n");
+		out.write("odata_mock_snapshot_load_failures_total " + snapshotFailures.sum() + "\n");
+
+		out.write("# HELP odata_mock_reload_failures_total Hot reloads of Entity Sets that failed "
+				+ "(the previous records were kept)\n");
+		out.write("# TYPE odata_mock_reload_failures_total counter\n");
+		for (Map.Entry<String, LongAdder> failures : new TreeMap<>(reloadFailures).entrySet())
+			out.write("odata_mock_reload_failures_total{entity_set=\"" + escape(failures.getKey()) + "\"} "
+					+ failures.getValue().sum() + "\n");
+		out.flush();
+	}
+
+	/**
+	 * Get all metrics in Prometheus text exposition format (see write)
+	 */
+	public String scrape() {
+		StringWriter out = new StringWriter();
+		try {
+			write(out);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e); // Not thrown by StringWriter
+		}
+		return out.toString();
+	}
+
+	protected static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+
+	/**
+	 * Request metrics of an operation on an Entity Set
+	 */
+	protected static class RequestMetrics {
+		/** Requests per latency bucket (not cumulative); the last bucket is +Inf */
+		protected final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+		protected final LongAdder nanos = new LongAdder();
+		protected final LongAdder errors = new LongAdder();
+
+		protected RequestMetrics() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		protected void observe(long duration, boolean error) {
+			int bucket = 0;
+			while (bucket < BUCKET_NANOS.length && duration > BUCKET_NANOS[bucket])
+				bucket++;
+			buckets[bucket].increment();
+			nanos.add(duration);
+			if (error)
+				errors.increment();
+		}
+	}
+
+}
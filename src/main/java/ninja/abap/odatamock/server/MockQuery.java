@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.uri.expression.FilterExpression;
+import org.apache.olingo.odata2.api.uri.expression.OrderByExpression;
+
+import lombok.Data;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+/**
+ * Query on a single Entity Set, executed by the data store (see MockQueryEngine).
+ * Mirrors the system query options of an OData feed request.
+ */
+@Data
+@Accessors(fluent = true)
+class MockQuery {
+
+	protected final @NonNull EdmEntitySet entitySet;
+
+	/** $filter (null = all records) */
+	protected FilterExpression filter;
+
+	/** $orderby (null = insertion order) */
+	protected OrderByExpression orderBy;
+
+	/** $skiptoken - of a next link (see MockQueryEngine.skipToken), or the key values of the first record to return */
+	protected String skipToken;
+
+	/** $skip */
+	protected Integer skip;
+
+	/** $top */
+	protected Integer top;
+
+	/**
+	 * Maximum number of records to return after $skip/$top are applied - the server page size (null = unlimited).
+	 * If the page is cut before $top, Result.nextSkipToken continues after it.
+	 */
+	protected Integer maxRows;
+
+	/** Count all records matching $filter, for $inlinecount=allpages */
+	protected boolean countAll;
+
+
+	/**
+	 * Records found by a query
+	 */
+	@Data
+	static class Result {
+		/** The requested page of records (the stored record maps, not copies) */
+		protected final List<Map<String, Object>> records;
+
+		/** Number of records matching $filter, if requested by MockQuery.countAll */
+		protected final Integer count;
+
+		/** Opaque $skiptoken of the next page, if the page was cut by MockQuery.maxRows */
+		protected String nextSkipToken;
+	}
+
+}
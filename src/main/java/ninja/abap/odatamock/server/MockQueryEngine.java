@@ -0,0 +1,1099 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.edm.EdmLiteralKind;
+import org.apache.olingo.odata2.api.edm.EdmProperty;
+import org.apache.olingo.odata2.api.edm.EdmSimpleType;
+import org.apache.olingo.odata2.api.edm.EdmTypeKind;
+import org.apache.olingo.odata2.api.edm.EdmTyped;
+import org.apache.olingo.odata2.api.exception.ODataException;
+import org.apache.olingo.odata2.api.exception.ODataNotImplementedException;
+import org.apache.olingo.odata2.api.uri.expression.BinaryExpression;
+import org.apache.olingo.odata2.api.uri.expression.BinaryOperator;
+import org.apache.olingo.odata2.api.uri.expression.CommonExpression;
+import org.apache.olingo.odata2.api.uri.expression.ExpressionKind;
+import org.apache.olingo.odata2.api.uri.expression.FilterExpression;
+import org.apache.olingo.odata2.api.uri.expression.LiteralExpression;
+import org.apache.olingo.odata2.api.uri.expression.MemberExpression;
+import org.apache.olingo.odata2.api.uri.expression.MethodExpression;
+import org.apache.olingo.odata2.api.uri.expression.OrderByExpression;
+import org.apache.olingo.odata2.api.uri.expression.OrderExpression;
+import org.apache.olingo.odata2.api.uri.expression.PropertyExpression;
+import org.apache.olingo.odata2.api.uri.expression.SortOrder;
+import org.apache.olingo.odata2.api.uri.expression.UnaryExpression;
+
+/**
+ * Executes MockQuery objects against the records of an Entity Set.
+ *
+ * $filter and $orderby expressions are compiled once per query into functions that work on the
+ * typed field values of the records, instead of being interpreted as strings for every record
+ * like Olingo's ListsProcessor does. Records are streamed in insertion order:
+ * - without $orderby, the scan stops as soon as the requested page is complete;
+ * - with $orderby, only the best $skip + $top records are kept in a bounded heap.
+ * So a page of a large Entity Set costs O(n) comparisons and O(skip + top) memory, instead of
+ * copying and sorting the whole Entity Set. A $skiptoken of a sorted page resumes after the last record
+ * of the previous page by its sort position, so deep pages cost the same as the first one.
+ *
+ * Records without $orderby are returned in insertion order, not sorted by key.
+ *
+ * If the filter compares indexed properties to literals in its top-level "and" conditions
+ * (e.g. CustomerID eq 'ALFKI' and OrderDate ge datetime'1996-07-01T00:00:00'), only the records found
+ * in the most selective index are scanned.
+ *
+ * Expressions that cannot be compiled throw ODataNotImplementedException, so callers can fall
+ * back to Olingo's own implementation.
+ */
+class MockQueryEngine {
+
+	private MockQueryEngine() {
+	}
+
+	/**
+	 * Runs a query
+	 * @param records Records of the Entity Set by position (insertion order), with null at the positions of
+	 *   removed records (see MockRecords)
+	 * @param indexes Index lookup by property name (returns null for properties without index)
+	 * @param query Query to be executed
+	 * @return Records found
+	 * @throws ODataNotImplementedException If the query uses expressions that are not supported
+	 */
+	static MockQuery.Result execute(List<Map<String, Object>> records, Function<String, MockIndex> indexes,
+			MockQuery query) throws ODataException {
+		Predicate<Map<String, Object>> filter = null;
+		if (query.filter() != null) {
+			Range lookup = exactLookup(query.filter().getExpression(), indexes);
+			if (lookup != null) {
+				// The index finds exactly the matching records, so they need no filtering
+				records = new Positions(records, lookup.find());
+			}
+			else {
+				filter = compileCondition(query.filter().getExpression());
+				int[] candidates = indexCandidates(query.filter().getExpression(), indexes);
+				if (candidates != null)
+					records = new Positions(records, candidates);
+			}
+		}
+		Comparator<Map<String, Object>> order = query.orderBy() == null ? null
+				: compileOrderBy(query.orderBy());
+
+		int skip = query.skip() == null ? 0 : query.skip();
+		int limit = Math.min(query.top() == null ? Integer.MAX_VALUE : query.top(),
+				query.maxRows() == null ? Integer.MAX_VALUE : query.maxRows());
+		// Server paging: the page is cut by maxRows before $top is reached
+		boolean paged = query.maxRows() != null && (query.top() == null || query.top() > query.maxRows());
+
+		if (order == null)
+			return scan(records, query, filter, skip, limit, paged);
+		if ((long) skip + limit + 1 < Integer.MAX_VALUE) {
+			SkipToken token = query.skipToken() == null ? null : SkipToken.parse(query.skipToken());
+			Ranked after = token == null ? null : lastOfPage(records, query, token);
+			if (query.skipToken() == null || after != null)
+				return topN(records, query, filter, order, after, after == null ? -1 : token.rank, skip, limit, paged);
+		}
+		return sort(records, query, filter, order, skip, limit, paged);
+	}
+
+	/**
+	 * Counts the records matching a query ($count) without collecting them: the records of the Entity Set,
+	 * or the records found by an index if the filter is exactly an index lookup (see exactLookup).
+	 * Other filters are tested on the records (only on the index candidates, if any).
+	 * $skip and $top are applied to the count; $orderby and maxRows do not change it.
+	 * @param records Records of the Entity Set by position (see execute)
+	 * @param indexes Index lookup by property name (returns null for properties without index)
+	 * @param query Query to be counted
+	 * @return Number of records
+	 * @throws ODataNotImplementedException If the query uses expressions that are not supported
+	 */
+	static int count(List<Map<String, Object>> records, Function<String, MockIndex> indexes, MockQuery query)
+			throws ODataException {
+		int count = count(records);
+		if (query.filter() != null) {
+			CommonExpression expression = query.filter().getExpression();
+			Range lookup = exactLookup(expression, indexes);
+			if (lookup != null) {
+				count = lookup.count();
+			}
+			else {
+				Predicate<Map<String, Object>> filter = compileCondition(expression);
+				int[] candidates = indexCandidates(expression, indexes);
+				if (candidates != null)
+					records = new Positions(records, candidates);
+				count = 0;
+				for (Map<String, Object> record : records) {
+					if (record != null && filter.test(record))
+						count++;
+				}
+			}
+		}
+
+		if (query.skip() != null)
+			count = Math.max(0, count - query.skip());
+		return query.top() == null ? count : Math.min(count, query.top());
+	}
+
+	/**
+	 * Get the key of a record as literal, in the same format as the $skiptoken of Olingo's ListsProcessor
+	 */
+	static String keyLiteral(EdmEntitySet entitySet, Map<String, Object> record) throws ODataException {
+		StringBuilder key = new StringBuilder();
+		for (EdmProperty property : entitySet.getEntityType().getKeyProperties()) {
+			EdmSimpleType type = (EdmSimpleType) property.getType();
+			key.append(type.valueToString(record.get(property.getName()), EdmLiteralKind.DEFAULT,
+					property.getFacets()));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Create the (opaque) $skiptoken of the page after a record
+	 * @param position Position of the last record of the page in the Entity Set
+	 * @param rank Index of the last record of the page in the sorted matches, or -1 if the records are not sorted
+	 * @param record Last record of the page
+	 */
+	static String skipToken(EdmEntitySet entitySet, int position, int rank, Map<String, Object> record)
+			throws ODataException {
+		String token = (rank < 0 ? position : position + "." + rank) + ":" + keyLiteral(entitySet, record);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Find where the page of a $skiptoken starts.
+	 * The record at the position (or rank, for sorted records) in the token is checked against its key,
+	 * and looked up by key if the records have changed since the token was created.
+	 * Tokens in Olingo's format (key of the first record of the page) are also accepted.
+	 * @param records Records in the order of the pages (insertion order, or sorted matches)
+	 * @param sorted Whether the records are the sorted matches
+	 * @return Index of the first record of the page
+	 */
+	protected static int resume(List<Map<String, Object>> records, MockQuery query, boolean sorted)
+			throws ODataException {
+		EdmEntitySet entitySet = query.entitySet();
+		SkipToken token = SkipToken.parse(query.skipToken());
+		if (token == null) {
+			// Olingo's format: the page starts with the record
+			for (int i = 0; i < records.size(); i++) {
+				if (records.get(i) != null && query.skipToken().equals(keyLiteral(entitySet, records.get(i))))
+					return i;
+			}
+			return records.size();
+		}
+
+		int index = sorted ? (token.rank >= 0 ? token.rank : token.position)
+				: records instanceof Positions ? ((Positions) records).indexOf(token.position) : token.position;
+		if (index >= 0 && index < records.size() && records.get(index) != null
+				&& token.key.equals(keyLiteral(entitySet, records.get(index))))
+			return index + 1;
+
+		for (int i = 0; i < records.size(); i++) {
+			if (records.get(i) != null && token.key.equals(keyLiteral(entitySet, records.get(i))))
+				return i + 1;
+		}
+		// Record of the token deleted - continue with the records that followed it
+		return Math.min(index < 0 ? -index - 1 : index, records.size());
+	}
+
+	/**
+	 * Get the last record of the previous page of a sorted $skiptoken, if it is still at the position of the token
+	 * @param records Records of the Entity Set by position, or a view of some of its positions
+	 * @return The record with its position in the Entity Set, or null if it cannot be found by position
+	 */
+	private static Ranked lastOfPage(List<Map<String, Object>> records, MockQuery query, SkipToken token)
+			throws ODataException {
+		if (token == null || token.rank < 0)
+			return null;
+		List<Map<String, Object>> entitySet = records instanceof Positions ? ((Positions) records).records : records;
+		Map<String, Object> record = token.position < entitySet.size() ? entitySet.get(token.position) : null;
+		return record != null && token.key.equals(keyLiteral(query.entitySet(), record))
+				? new Ranked(record, token.position) : null;
+	}
+
+	/**
+	 * Streams the records in insertion order, stopping once the page is complete.
+	 * A $skiptoken resumes right after the last record of the previous page, so deep pages
+	 * cost O(page size) instead of scanning the pages before them (unless all matches must be counted).
+	 */
+	protected static MockQuery.Result scan(List<Map<String, Object>> records, MockQuery query,
+			Predicate<Map<String, Object>> filter, int skip, int limit, boolean paged) throws ODataException {
+		List<Map<String, Object>> page = new ArrayList<>(Math.min(limit, 128));
+		int from = query.skipToken() == null ? 0 : resume(records, query, false);
+		boolean countAll = query.countAll() && filter != null;
+		int count = query.countAll() && filter == null ? count(records) : 0;
+		String nextSkipToken = null;
+
+		if (countAll) {
+			for (int i = 0; i < from; i++) {
+				if (records.get(i) != null && filter.test(records.get(i)))
+					count++;
+			}
+		}
+
+		int last = -1;
+		for (int i = from; i < records.size(); i++) {
+			Map<String, Object> record = records.get(i);
+			if (record == null || (filter != null && !filter.test(record)))
+				continue;
+			if (countAll)
+				count++;
+
+			if (skip > 0)
+				skip--;
+			else if (page.size() < limit) {
+				page.add(record);
+				last = i;
+			}
+			else {
+				if (paged && nextSkipToken == null)
+					nextSkipToken = skipToken(query.entitySet(), position(records, last), -1, records.get(last));
+				if (!countAll)
+					break;
+			}
+		}
+
+		MockQuery.Result result = new MockQuery.Result(page, query.countAll() ? count : null);
+		result.nextSkipToken(nextSkipToken);
+		return result;
+	}
+
+	/**
+	 * Number of records in a list of records by position, without the empty positions
+	 */
+	private static int count(List<Map<String, Object>> records) {
+		return records instanceof MockRecords ? ((MockRecords) records).count() : records.size();
+	}
+
+	/**
+	 * Position of a record of the Entity Set, from its index in the scanned records
+	 */
+	private static int position(List<Map<String, Object>> records, int index) {
+		return records instanceof Positions ? ((Positions) records).positions[index] : index;
+	}
+
+	/**
+	 * Keeps the first skip + limit records by $orderby in a bounded max-heap.
+	 * Ties are resolved by insertion order, so the result is the same as a stable sort.
+	 * @param after Last record of the previous page ($skiptoken): only the records sorted after it are kept
+	 * @param afterRank Index of the last record of the previous page in the sorted matches, or -1 if there is none
+	 */
+	protected static MockQuery.Result topN(List<Map<String, Object>> records, MockQuery query,
+			Predicate<Map<String, Object>> filter, Comparator<Map<String, Object>> order, Ranked after,
+			int afterRank, int skip, int limit, boolean paged) throws ODataException {
+		Comparator<Ranked> ranking = (r1, r2) -> {
+			int result = order.compare(r1.record, r2.record);
+			return result != 0 ? result : Integer.compare(r1.position, r2.position);
+		};
+		int n = skip + limit + (paged ? 1 : 0); // One more to know if there is a next page
+		PriorityQueue<Ranked> heap = new PriorityQueue<>(Math.max(1, Math.min(n, 1024)), ranking.reversed());
+		int count = 0;
+
+		for (int i = 0; i < records.size(); i++) {
+			Map<String, Object> record = records.get(i);
+			if (record == null || (filter != null && !filter.test(record)))
+				continue;
+			count++;
+			int position = position(records, i);
+			if (after != null) {
+				int result = order.compare(record, after.record);
+				if (result < 0 || (result == 0 && position <= after.position))
+					continue;
+			}
+
+			if (heap.size() < n)
+				heap.add(new Ranked(record, position));
+			else if (n > 0 && order.compare(record, heap.peek().record) < 0) {
+				// Later records lose ties, so only strictly better records replace the worst one
+				heap.poll();
+				heap.add(new Ranked(record, position));
+			}
+		}
+
+		List<Ranked> best = new ArrayList<>(heap);
+		best.sort(ranking);
+		int to = Math.min(best.size(), skip + limit);
+		List<Map<String, Object>> page = new ArrayList<>(Math.max(0, to - skip));
+		for (int i = skip; i < to; i++)
+			page.add(best.get(i).record);
+
+		MockQuery.Result result = new MockQuery.Result(page, query.countAll() ? count : null);
+		if (paged && to < best.size() && to > skip) {
+			Ranked last = best.get(to - 1);
+			result.nextSkipToken(skipToken(query.entitySet(), last.position, afterRank + to, last.record));
+		}
+		return result;
+	}
+
+	/**
+	 * Sorts all matching records. Used when the page is unbounded, or the last record of the previous page
+	 * ($skiptoken) is no longer at the position of the token.
+	 */
+	protected static MockQuery.Result sort(List<Map<String, Object>> records, MockQuery query,
+			Predicate<Map<String, Object>> filter, Comparator<Map<String, Object>> order, int skip, int limit,
+			boolean paged) throws ODataException {
+		List<Ranked> ranked = new ArrayList<>();
+		for (int i = 0; i < records.size(); i++) {
+			Map<String, Object> record = records.get(i);
+			if (record != null && (filter == null || filter.test(record)))
+				ranked.add(new Ranked(record, position(records, i)));
+		}
+		ranked.sort((r1, r2) -> order.compare(r1.record, r2.record));
+		List<Map<String, Object>> matches = new ArrayList<>(ranked.size());
+		for (Ranked match : ranked)
+			matches.add(match.record);
+
+		int from = query.skipToken() == null ? 0 : resume(matches, query, true);
+		from = (int) Math.min(matches.size(), (long) from + skip);
+		int to = (int) Math.min(matches.size(), (long) from + limit);
+
+		MockQuery.Result result = new MockQuery.Result(new ArrayList<>(matches.subList(from, to)),
+				query.countAll() ? matches.size() : null);
+		if (paged && to < matches.size() && to > from)
+			result.nextSkipToken(skipToken(query.entitySet(), ranked.get(to - 1).position, to - 1, matches.get(to - 1)));
+		return result;
+	}
+
+	/**
+	 * Uses the indexes to narrow down the records that can match a filter
+	 * @return Positions of the candidate records in ascending order, or null if no index can be used
+	 */
+	protected static int[] indexCandidates(CommonExpression expression, Function<String, MockIndex> indexes)
+			throws ODataException {
+		List<BinaryExpression> comparisons = new ArrayList<>();
+		collectComparisons(expression, comparisons);
+
+		int[] candidates = null;
+		Map<String, Range> ranges = new HashMap<>();
+		for (BinaryExpression comparison : comparisons) {
+			BinaryOperator operator = comparison.getOperator();
+			CommonExpression property = comparison.getLeftOperand();
+			CommonExpression literal = comparison.getRightOperand();
+			if (property.getKind() == ExpressionKind.LITERAL) {
+				property = comparison.getRightOperand();
+				literal = comparison.getLeftOperand();
+				operator = mirror(operator);
+			}
+			if (property.getKind() != ExpressionKind.PROPERTY || literal.getKind() != ExpressionKind.LITERAL)
+				continue;
+
+			String name = propertyName((PropertyExpression) property);
+			MockIndex index = indexes.apply(name);
+			if (index == null)
+				continue;
+			Object value = compile(literal).evaluate(null);
+
+			if (operator == BinaryOperator.EQ) {
+				int[] found = index.equal(value);
+				if (found != null && (candidates == null || found.length < candidates.length))
+					candidates = found;
+			}
+			else if (index.type == MockDataStore.IndexType.SORTED && value != null && operator != BinaryOperator.NE)
+				ranges.computeIfAbsent(name, n -> new Range(index)).restrict(operator, value);
+		}
+
+		for (Range range : ranges.values()) {
+			int[] found = range.find();
+			if (candidates == null || found.length < candidates.length)
+				candidates = found;
+		}
+		return candidates;
+	}
+
+	/**
+	 * Finds the index lookup that matches exactly the same records as a filter, if there is one:
+	 * an equality of an indexed property with a literal, or comparisons of a property with a SORTED index
+	 * with literals joined by "and" (a range). Comparisons with null never qualify.
+	 * @return The lookup, or null if the filter is not exactly an index lookup
+	 */
+	private static Range exactLookup(CommonExpression expression, Function<String, MockIndex> indexes)
+			throws ODataException {
+		if (!isConjunction(expression))
+			return null;
+		List<BinaryExpression> comparisons = new ArrayList<>();
+		collectComparisons(expression, comparisons);
+
+		Range lookup = null;
+		for (BinaryExpression comparison : comparisons) {
+			BinaryOperator operator = comparison.getOperator();
+			CommonExpression property = comparison.getLeftOperand();
+			CommonExpression literal = comparison.getRightOperand();
+			if (property.getKind() == ExpressionKind.LITERAL) {
+				property = comparison.getRightOperand();
+				literal = comparison.getLeftOperand();
+				operator = mirror(operator);
+			}
+			if (property.getKind() != ExpressionKind.PROPERTY || literal.getKind() != ExpressionKind.LITERAL
+					|| operator == BinaryOperator.NE)
+				return null;
+
+			MockIndex index = indexes.apply(propertyName((PropertyExpression) property));
+			Object value = compile(literal).evaluate(null);
+			if (index == null || value == null || (lookup != null && lookup.index != index))
+				return null;
+			if (lookup == null)
+				lookup = new Range(index);
+
+			if (operator == BinaryOperator.EQ) {
+				if (comparisons.size() > 1)
+					return null;
+				lookup.equal = value;
+			}
+			else if (index.type == MockDataStore.IndexType.SORTED)
+				lookup.restrict(operator, value);
+			else
+				return null;
+		}
+		return lookup;
+	}
+
+	/**
+	 * Whether an expression only consists of comparisons joined by "and"
+	 */
+	private static boolean isConjunction(CommonExpression expression) {
+		if (expression.getKind() != ExpressionKind.BINARY)
+			return false;
+
+		BinaryExpression binary = (BinaryExpression) expression;
+		switch (binary.getOperator()) {
+		case AND:
+			return isConjunction(binary.getLeftOperand()) && isConjunction(binary.getRightOperand());
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+		case GT:
+		case GE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Get the operator of a comparison with swapped operands (eg 5 lt Price is Price gt 5)
+	 */
+	private static BinaryOperator mirror(BinaryOperator operator) {
+		return operator == BinaryOperator.LT ? BinaryOperator.GT
+				: operator == BinaryOperator.LE ? BinaryOperator.GE
+				: operator == BinaryOperator.GT ? BinaryOperator.LT
+				: operator == BinaryOperator.GE ? BinaryOperator.LE
+				: operator;
+	}
+
+	/**
+	 * Collects the comparisons that must all be true for an expression to be true
+	 */
+	private static void collectComparisons(CommonExpression expression, List<BinaryExpression> comparisons) {
+		if (expression.getKind() != ExpressionKind.BINARY)
+			return;
+
+		BinaryExpression binary = (BinaryExpression) expression;
+		switch (binary.getOperator()) {
+		case AND:
+			collectComparisons(binary.getLeftOperand(), comparisons);
+			collectComparisons(binary.getRightOperand(), comparisons);
+			break;
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+		case GT:
+		case GE:
+			comparisons.add(binary);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Compiles a boolean expression into a record predicate.
+	 * Records for which the expression cannot be evaluated do not match, like in ListsProcessor.
+	 */
+	static Predicate<Map<String, Object>> compileCondition(CommonExpression expression) throws ODataException {
+		Operand operand = compile(expression);
+		return record -> Boolean.TRUE.equals(evaluate(operand, record));
+	}
+
+	/**
+	 * Compiles $orderby into a record comparator. Null values are sorted last.
+	 */
+	static Comparator<Map<String, Object>> compileOrderBy(OrderByExpression orderBy) throws ODataException {
+		List<OrderExpression> orders = orderBy.getOrders();
+		Operand[] operands = new Operand[orders.size()];
+		boolean[] descending = new boolean[orders.size()];
+		for (int i = 0; i < operands.length; i++) {
+			operands[i] = compile(orders.get(i).getExpression());
+			descending[i] = orders.get(i).getSortOrder() == SortOrder.desc;
+		}
+
+		return (record1, record2) -> {
+			for (int i = 0; i < operands.length; i++) {
+				Object value1 = evaluate(operands[i], record1);
+				Object value2 = evaluate(operands[i], record2);
+				int result = value1 == null ? (value2 == null ? 0 : 1)
+						: value2 == null ? -1 : compareValues(value1, value2);
+				if (result != 0)
+					return descending[i] ? -result : result;
+			}
+			return 0;
+		};
+	}
+
+	/**
+	 * Compares two non-null field values by their type, e.g. numbers numerically and dates chronologically
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compareValues(Object value1, Object value2) {
+		if (value1 instanceof Number && value2 instanceof Number)
+			return compareNumbers((Number) value1, (Number) value2);
+		if (isDate(value1) && isDate(value2))
+			return Long.compare(toMillis(value1), toMillis(value2));
+		if (value1 instanceof byte[] && value2 instanceof byte[])
+			return compareBytes((byte[]) value1, (byte[]) value2);
+		if (value1.getClass() == value2.getClass() && value1 instanceof Comparable)
+			return ((Comparable) value1).compareTo(value2);
+		return value1.toString().compareTo(value2.toString());
+	}
+
+	/**
+	 * Checks two field values for equality by their type. Null is only equal to null.
+	 */
+	static boolean equalValues(Object value1, Object value2) {
+		if (value1 == null || value2 == null)
+			return value1 == value2;
+		return compareValues(value1, value2) == 0;
+	}
+
+
+	/**
+	 * Compiled expression, evaluated against a record
+	 */
+	@FunctionalInterface
+	interface Operand {
+		Object evaluate(Map<String, Object> record);
+	}
+
+	/**
+	 * Evaluates an expression against a record. Null operands propagate as null, so an error here is a value
+	 * of the wrong type (e.g. a string in a numeric property), which leaves the expression unknown (null).
+	 */
+	protected static Object evaluate(Operand operand, Map<String, Object> record) {
+		try {
+			return operand.evaluate(record);
+		}
+		catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	static Operand compile(CommonExpression expression) throws ODataException {
+		switch (expression.getKind()) {
+		case FILTER:
+			return compile(((FilterExpression) expression).getExpression());
+
+		case LITERAL: {
+			LiteralExpression literal = (LiteralExpression) expression;
+			EdmSimpleType type = (EdmSimpleType) literal.getEdmType();
+			Object value = type.valueOfString(literal.getUriLiteral(), EdmLiteralKind.URI, null,
+					type.getDefaultType());
+			return record -> value;
+		}
+
+		case PROPERTY: {
+			String name = propertyName((PropertyExpression) expression);
+			return record -> record.get(name);
+		}
+
+		case MEMBER:
+			return compileMember((MemberExpression) expression);
+
+		case UNARY:
+			return compileUnary((UnaryExpression) expression);
+
+		case BINARY:
+			return compileBinary((BinaryExpression) expression);
+
+		case METHOD:
+			return compileMethod((MethodExpression) expression);
+
+		default:
+			throw new ODataNotImplementedException();
+		}
+	}
+
+	/**
+	 * Property path of a complex type, e.g. Address/City
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Operand compileMember(MemberExpression expression) throws ODataException {
+		List<String> path = new ArrayList<>();
+		CommonExpression current = expression;
+		while (current.getKind() == ExpressionKind.MEMBER) {
+			MemberExpression member = (MemberExpression) current;
+			if (member.getProperty().getKind() != ExpressionKind.PROPERTY)
+				throw new ODataNotImplementedException();
+			path.add(0, propertyName((PropertyExpression) member.getProperty()));
+			current = member.getPath();
+		}
+		if (current.getKind() != ExpressionKind.PROPERTY)
+			throw new ODataNotImplementedException();
+		path.add(0, propertyName((PropertyExpression) current));
+
+		String[] names = path.toArray(new String[0]);
+		return record -> {
+			Object value = record;
+			for (String name : names) {
+				if (!(value instanceof Map))
+					return null;
+				value = ((Map<String, Object>) value).get(name);
+			}
+			return value;
+		};
+	}
+
+	protected static String propertyName(PropertyExpression expression) throws ODataException {
+		EdmTyped property = expression.getEdmProperty();
+		EdmTypeKind kind = property.getType().getKind();
+		if (kind != EdmTypeKind.SIMPLE && kind != EdmTypeKind.COMPLEX)
+			throw new ODataNotImplementedException();
+		return property.getName();
+	}
+
+	protected static Operand compileUnary(UnaryExpression expression) throws ODataException {
+		Operand operand = compile(expression.getOperand());
+		switch (expression.getOperator()) {
+		case NOT:
+			return record -> {
+				Object value = operand.evaluate(record);
+				return value == null ? null : !(Boolean) value;
+			};
+		case MINUS:
+			return record -> {
+				Object value = operand.evaluate(record);
+				return value == null ? null : negate((Number) value);
+			};
+		default:
+			throw new ODataNotImplementedException();
+		}
+	}
+
+	protected static Operand compileBinary(BinaryExpression expression) throws ODataException {
+		Operand left = compile(expression.getLeftOperand());
+		Operand right = compile(expression.getRightOperand());
+
+		switch (expression.getOperator()) {
+		case AND:
+			return record -> Boolean.TRUE.equals(left.evaluate(record)) && Boolean.TRUE.equals(right.evaluate(record));
+		case OR:
+			return record -> Boolean.TRUE.equals(left.evaluate(record)) || Boolean.TRUE.equals(right.evaluate(record));
+		case EQ:
+			return record -> equalValues(left.evaluate(record), right.evaluate(record));
+		case NE:
+			return record -> !equalValues(left.evaluate(record), right.evaluate(record));
+		case LT:
+			return record -> compare(left.evaluate(record), right.evaluate(record), result -> result < 0);
+		case LE:
+			return record -> compare(left.evaluate(record), right.evaluate(record), result -> result <= 0);
+		case GT:
+			return record -> compare(left.evaluate(record), right.evaluate(record), result -> result > 0);
+		case GE:
+			return record -> compare(left.evaluate(record), right.evaluate(record), result -> result >= 0);
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case MODULO:
+			return record -> arithmetic(expression.getOperator(), left.evaluate(record), right.evaluate(record));
+		default:
+			throw new ODataNotImplementedException();
+		}
+	}
+
+	/**
+	 * Method call. As in OData, a null argument makes the result null (e.g. substringof('x',ShipRegion) of a
+	 * record without ShipRegion), so the other side of an and/or is still evaluated.
+	 */
+	protected static Operand compileMethod(MethodExpression expression) throws ODataException {
+		List<CommonExpression> parameters = expression.getParameters();
+		Operand[] params = new Operand[parameters.size()];
+		for (int i = 0; i < params.length; i++)
+			params[i] = compile(parameters.get(i));
+
+		Method method;
+		switch (expression.getMethod()) {
+		case ENDSWITH:
+			method = args -> string(args[0]).endsWith(string(args[1]));
+			break;
+		case STARTSWITH:
+			method = args -> string(args[0]).startsWith(string(args[1]));
+			break;
+		case SUBSTRINGOF:
+			method = args -> string(args[1]).contains(string(args[0]));
+			break;
+		case INDEXOF:
+			method = args -> string(args[0]).indexOf(string(args[1]));
+			break;
+		case TOLOWER:
+			method = args -> string(args[0]).toLowerCase(Locale.ROOT);
+			break;
+		case TOUPPER:
+			method = args -> string(args[0]).toUpperCase(Locale.ROOT);
+			break;
+		case TRIM:
+			method = args -> string(args[0]).trim();
+			break;
+		case LENGTH:
+			method = args -> string(args[0]).length();
+			break;
+		case CONCAT:
+			method = args -> string(args[0]).concat(string(args[1]));
+			break;
+		case SUBSTRING:
+			method = args -> {
+				String value = string(args[0]);
+				int begin = ((Number) args[1]).intValue();
+				return args.length > 2 ? value.substring(begin, begin + ((Number) args[2]).intValue())
+						: value.substring(begin);
+			};
+			break;
+		case YEAR:
+			method = args -> calendar(args[0]).get(Calendar.YEAR);
+			break;
+		case MONTH:
+			method = args -> calendar(args[0]).get(Calendar.MONTH) + 1;
+			break;
+		case DAY:
+			method = args -> calendar(args[0]).get(Calendar.DAY_OF_MONTH);
+			break;
+		case HOUR:
+			method = args -> calendar(args[0]).get(Calendar.HOUR_OF_DAY);
+			break;
+		case MINUTE:
+			method = args -> calendar(args[0]).get(Calendar.MINUTE);
+			break;
+		case SECOND:
+			method = args -> calendar(args[0]).get(Calendar.SECOND);
+			break;
+		case ROUND:
+			method = args -> toBigDecimal((Number) args[0]).setScale(0, RoundingMode.HALF_UP);
+			break;
+		case FLOOR:
+			method = args -> toBigDecimal((Number) args[0]).setScale(0, RoundingMode.FLOOR);
+			break;
+		case CEILING:
+			method = args -> toBigDecimal((Number) args[0]).setScale(0, RoundingMode.CEILING);
+			break;
+		default:
+			throw new ODataNotImplementedException();
+		}
+
+		return record -> {
+			Object[] args = new Object[params.length];
+			for (int i = 0; i < params.length; i++) {
+				args[i] = params[i].evaluate(record);
+				if (args[i] == null)
+					return null;
+			}
+			return method.apply(args);
+		};
+	}
+
+
+	/**
+	 * Method of a filter or order expression, applied to non-null arguments
+	 */
+	@FunctionalInterface
+	private interface Method {
+		Object apply(Object[] args);
+	}
+
+	@FunctionalInterface
+	private interface ComparisonResult {
+		boolean test(int result);
+	}
+
+	private static Boolean compare(Object value1, Object value2, ComparisonResult expected) {
+		if (value1 == null || value2 == null)
+			return false;
+		return expected.test(compareValues(value1, value2));
+	}
+
+	private static String string(Object value) {
+		return value instanceof String ? (String) value : value.toString();
+	}
+
+	private static Calendar calendar(Object value) {
+		if (value instanceof Calendar)
+			return (Calendar) value;
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime((Date) value);
+		return calendar;
+	}
+
+	private static boolean isDate(Object value) {
+		return value instanceof Calendar || value instanceof Date;
+	}
+
+	private static long toMillis(Object value) {
+		return value instanceof Calendar ? ((Calendar) value).getTimeInMillis() : ((Date) value).getTime();
+	}
+
+	private static boolean isIntegral(Number value) {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+
+	private static boolean isFloatingPoint(Number value) {
+		return value instanceof Double || value instanceof Float;
+	}
+
+	private static int compareNumbers(Number value1, Number value2) {
+		if (isIntegral(value1) && isIntegral(value2))
+			return Long.compare(value1.longValue(), value2.longValue());
+		if (isFloatingPoint(value1) || isFloatingPoint(value2))
+			return Double.compare(value1.doubleValue(), value2.doubleValue());
+		return toBigDecimal(value1).compareTo(toBigDecimal(value2));
+	}
+
+	private static BigDecimal toBigDecimal(Number value) {
+		if (value instanceof BigDecimal)
+			return (BigDecimal) value;
+		if (value instanceof BigInteger)
+			return new BigDecimal((BigInteger) value);
+		if (isIntegral(value))
+			return BigDecimal.valueOf(value.longValue());
+		return BigDecimal.valueOf(value.doubleValue());
+	}
+
+	private static int compareBytes(byte[] value1, byte[] value2) {
+		for (int i = 0; i < Math.min(value1.length, value2.length); i++) {
+			int result = Integer.compare(value1[i] & 0xff, value2[i] & 0xff);
+			if (result != 0)
+				return result;
+		}
+		return Integer.compare(value1.length, value2.length);
+	}
+
+	private static Number negate(Number value) {
+		if (isIntegral(value))
+			return -value.longValue();
+		if (isFloatingPoint(value))
+			return -value.doubleValue();
+		return toBigDecimal(value).negate();
+	}
+
+	private static Number arithmetic(BinaryOperator operator,
+			Object left, Object right) {
+		if (left == null || right == null)
+			return null;
+		Number value1 = (Number) left;
+		Number value2 = (Number) right;
+
+		if (isIntegral(value1) && isIntegral(value2) && operator != BinaryOperator.DIV) {
+			long long1 = value1.longValue();
+			long long2 = value2.longValue();
+			switch (operator) {
+			case ADD:
+				return long1 + long2;
+			case SUB:
+				return long1 - long2;
+			case MUL:
+				return long1 * long2;
+			default:
+				return long1 % long2;
+			}
+		}
+
+		if (isFloatingPoint(value1) || isFloatingPoint(value2)) {
+			double double1 = value1.doubleValue();
+			double double2 = value2.doubleValue();
+			switch (operator) {
+			case ADD:
+				return double1 + double2;
+			case SUB:
+				return double1 - double2;
+			case MUL:
+				return double1 * double2;
+			case DIV:
+				return double1 / double2;
+			default:
+				return double1 % double2;
+			}
+		}
+
+		BigDecimal decimal1 = toBigDecimal(value1);
+		BigDecimal decimal2 = toBigDecimal(value2);
+		switch (operator) {
+		case ADD:
+			return decimal1.add(decimal2);
+		case SUB:
+			return decimal1.subtract(decimal2);
+		case MUL:
+			return decimal1.multiply(decimal2);
+		case DIV:
+			return decimal1.divide(decimal2, MathContext.DECIMAL64);
+		default:
+			return decimal1.remainder(decimal2);
+		}
+	}
+
+
+	/**
+	 * Bounds on an indexed property, from all the range comparisons on it
+	 */
+	private static class Range {
+		final MockIndex index;
+		Object lower, upper;
+		boolean lowerInclusive, upperInclusive;
+		/** Value of an equality lookup (instead of lower/upper), see exactLookup */
+		Object equal;
+
+		Range(MockIndex index) {
+			this.index = index;
+		}
+
+		void restrict(BinaryOperator operator, Object value) {
+			boolean inclusive = operator == BinaryOperator.LE || operator == BinaryOperator.GE;
+			if (operator == BinaryOperator.GT || operator == BinaryOperator.GE) {
+				int result = lower == null ? 1 : compareValues(value, lower);
+				if (result > 0 || (result == 0 && !inclusive)) {
+					lower = value;
+					lowerInclusive = inclusive;
+				}
+			}
+			else {
+				int result = upper == null ? -1 : compareValues(value, upper);
+				if (result < 0 || (result == 0 && !inclusive)) {
+					upper = value;
+					upperInclusive = inclusive;
+				}
+			}
+		}
+
+		int[] find() {
+			return equal != null ? index.equal(equal) : index.range(lower, lowerInclusive, upper, upperInclusive);
+		}
+
+		int count() {
+			return equal != null ? index.countEqual(equal)
+					: index.countRange(lower, lowerInclusive, upper, upperInclusive);
+		}
+	}
+
+	/**
+	 * Read-only view of the records at some positions of a list
+	 */
+	private static class Positions extends AbstractList<Map<String, Object>> implements RandomAccess {
+		final List<Map<String, Object>> records;
+		final int[] positions;
+
+		Positions(List<Map<String, Object>> records, int[] positions) {
+			this.records = records;
+			this.positions = positions;
+		}
+
+		/**
+		 * Index of a record position, or (-(insertion point) - 1) if the position is not included
+		 */
+		int indexOf(int position) {
+			return Arrays.binarySearch(positions, position);
+		}
+
+		@Override
+		public Map<String, Object> get(int index) {
+			return records.get(positions[index]);
+		}
+
+		@Override
+		public int size() {
+			return positions.length;
+		}
+	}
+
+	/**
+	 * Record and its position in the Entity Set
+	 */
+	private static class Ranked {
+		final Map<String, Object> record;
+		final int position;
+
+		Ranked(Map<String, Object> record, int position) {
+			this.record = record;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Contents of a $skiptoken created by skipToken
+	 */
+	private static class SkipToken {
+		final int position;
+		final int rank;
+		final String key;
+
+		SkipToken(int position, int rank, String key) {
+			this.position = position;
+			this.rank = rank;
+			this.key = key;
+		}
+
+		/**
+		 * Parses a $skiptoken
+		 * @return The token contents, or null if it is not a token created by skipToken (e.g. Olingo's format)
+		 */
+		static SkipToken parse(String skipToken) {
+			String token;
+			try {
+				token = new String(Base64.getUrlDecoder().decode(skipToken), StandardCharsets.UTF_8);
+			}
+			catch (IllegalArgumentException e) {
+				return null;
+			}
+			int separator = token.indexOf(':');
+			int dot = token.indexOf('.');
+			dot = dot < 0 || dot > separator ? separator : dot;
+			if (dot <= 0 || dot > 9 || separator - dot > 10 || !StringUtils.isNumeric(token.substring(0, dot))
+					|| (dot < separator && !StringUtils.isNumeric(token.substring(dot + 1, separator))))
+				return null;
+
+			return new SkipToken(Integer.parseInt(token.substring(0, dot)),
+					dot < separator ? Integer.parseInt(token.substring(dot + 1, separator)) : -1,
+					token.substring(separator + 1));
+		}
+	}
+
+}
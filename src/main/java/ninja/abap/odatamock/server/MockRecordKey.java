@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.olingo.odata2.api.edm.provider.EntityType;
+import org.apache.olingo.odata2.api.edm.provider.PropertyRef;
+
+/**
+ * Immutable key of a record with a composite (multi-field) key.
+ * Records with a single key field are keyed by the raw field value instead.
+ */
+final class MockRecordKey {
+
+	private final Object[] values;
+	private final int hash;
+
+	MockRecordKey(Object[] values) {
+		this.values = values;
+		this.hash = Arrays.hashCode(values);
+	}
+
+	/**
+	 * Creates the key extractor for an Entity Type
+	 * @param entityType Entity Type definition
+	 * @return Extractor that reads the key fields of records (or of key field maps)
+	 */
+	static Extractor extractor(EntityType entityType) {
+		List<PropertyRef> keyRefs = entityType.getKey().getKeys();
+		if (keyRefs.size() == 1) {
+			String name = keyRefs.get(0).getName();
+			return record -> record.get(name);
+		}
+
+		String[] names = keyRefs.stream().map(PropertyRef::getName).toArray(String[]::new);
+		return record -> {
+			Object[] values = new Object[names.length];
+			for (int i = 0; i < names.length; i++)
+				values[i] = record.get(names[i]);
+			return new MockRecordKey(values);
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof MockRecordKey))
+			return false;
+		MockRecordKey other = (MockRecordKey) obj;
+		return hash == other.hash && Arrays.equals(values, other.values);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(values);
+	}
+
+
+	/**
+	 * Reads the key of a record.
+	 */
+	@FunctionalInterface
+	interface Extractor {
+		Object extract(Map<String, Object> record);
+	}
+
+}
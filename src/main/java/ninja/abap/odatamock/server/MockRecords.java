@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Immutable records of an Entity Set snapshot, by position (insertion order), with the position of each
+ * record key.
+ *
+ * Snapshots share structure: records are stored in chunks and positions by key in shards, and a change
+ * (see Editor) copies only the chunks and shards it modifies. So a single-record write costs about
+ * CHUNK + n / CHUNK + sqrt(n) instead of a copy of the whole Entity Set.
+ *
+ * Removed records leave an empty position (null), so the other records keep their positions, which
+ * indexes and skip tokens refer to. Positions are renumbered (compacted) once most of them are empty.
+ */
+final class MockRecords extends AbstractList<Map<String, Object>> implements RandomAccess {
+
+	static final int CHUNK_BITS = 10;
+	static final int CHUNK = 1 << CHUNK_BITS;
+
+	@SuppressWarnings("unchecked")
+	static final MockRecords EMPTY = new MockRecords(new Map[0][], 0, 0, new Map[1], 0);
+
+	/** Records by position, in chunks of CHUNK positions (null = removed) */
+	private final Map<String, Object>[][] chunks;
+	/** Number of positions */
+	private final int size;
+	/** Number of records */
+	private final int count;
+	/** Position by record key, in 2^shardBits shards by key hash (null = empty shard) */
+	private final Map<Object, Integer>[] shards;
+	private final int shardBits;
+
+	private MockRecords(Map<String, Object>[][] chunks, int size, int count, Map<Object, Integer>[] shards,
+			int shardBits) {
+		this.chunks = chunks;
+		this.size = size;
+		this.count = count;
+		this.shards = shards;
+		this.shardBits = shardBits;
+	}
+
+	/**
+	 * Get the record at a position
+	 * @return The record, or null if it was removed
+	 */
+	@Override
+	public Map<String, Object> get(int position) {
+		if (position < 0 || position >= size)
+			throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+		return chunks[position >>> CHUNK_BITS][position & (CHUNK - 1)];
+	}
+
+	/**
+	 * Get the number of positions, including the ones of removed records (see count)
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of records
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Get the position of a record by its key
+	 * @return The position, or -1 if there is no record with the key
+	 */
+	int position(Object key) {
+		Map<Object, Integer> shard = shards[shard(key, shardBits)];
+		Integer position = shard == null ? null : shard.get(key);
+		return position == null ? -1 : position;
+	}
+
+	/**
+	 * Get a record by its key
+	 * @return The record, or null if there is no record with the key
+	 */
+	Map<String, Object> byKey(Object key) {
+		int position = position(key);
+		return position < 0 ? null : get(position);
+	}
+
+	/**
+	 * Starts a change of the records
+	 * @return Editor of a copy of the records
+	 */
+	Editor edit() {
+		return new Editor(this);
+	}
+
+	static int shard(Object key, int shardBits) {
+		// The high bits of the hash select the shard, the low ones are left to the HashMap of the shard
+		return shardBits == 0 ? 0 : (Objects.hashCode(key) * 0x9E3779B9) >>> (32 - shardBits);
+	}
+
+	/**
+	 * Number of shard bits for a number of records, so shards hold about sqrt(count) keys
+	 */
+	static int shardBits(int count) {
+		int bits = 0;
+		while (bits < 12 && 1 << (2 * bits + 2) <= count)
+			bits++;
+		return bits;
+	}
+
+
+	/**
+	 * Changes a copy of the records, copying the chunks and shards of the original on first change.
+	 * Not thread-safe: an editor is used by a single writer, then discarded after build.
+	 */
+	static final class Editor {
+		private Map<String, Object>[][] chunks;
+		private final BitSet ownChunks = new BitSet();
+		private Map<Object, Integer>[] shards;
+		private final BitSet ownShards = new BitSet();
+		private int shardBits;
+		private int size;
+		private int count;
+		/** Records before the change by changed position, or null once there are too many changes to track */
+		private Map<Integer, Map<String, Object>> originals = new HashMap<>();
+		private final int trackLimit;
+
+		private Editor(MockRecords records) {
+			this.chunks = records.chunks.clone();
+			this.shards = records.shards.clone();
+			this.shardBits = records.shardBits;
+			this.size = records.size;
+			this.count = records.count;
+			this.trackLimit = Math.max(64, count / 8);
+		}
+
+		/**
+		 * Get the number of records
+		 */
+		int count() {
+			return count;
+		}
+
+		boolean containsKey(Object key) {
+			return position(key) >= 0;
+		}
+
+		/**
+		 * Get a record by its key
+		 */
+		Map<String, Object> get(Object key) {
+			int position = position(key);
+			return position < 0 ? null : chunks[position >>> CHUNK_BITS][position & (CHUNK - 1)];
+		}
+
+		/**
+		 * Stores a record under a key: at the position of the record with the same key, if there is one,
+		 * or else after the last position
+		 * @return The previous record with the key, or null
+		 */
+		Map<String, Object> put(Object key, Map<String, Object> record) {
+			int position = position(key);
+			if (position >= 0)
+				return set(position, record);
+
+			set(size, record);
+			ownShard(key).put(key, size++);
+			count++;
+			return null;
+		}
+
+		/**
+		 * Stores a record under a key, unless there is a record with the key already
+		 * @return The record with the key, or null if the record was stored
+		 */
+		Map<String, Object> putIfAbsent(Object key, Map<String, Object> record) {
+			Map<String, Object> existing = get(key);
+			if (existing == null)
+				put(key, record);
+			return existing;
+		}
+
+		/**
+		 * Removes the record with a key, leaving its position empty
+		 * @return The removed record, or null if there was no record with the key
+		 */
+		Map<String, Object> remove(Object key) {
+			int position = position(key);
+			if (position < 0)
+				return null;
+
+			ownShard(key).remove(key);
+			count--;
+			return set(position, null);
+		}
+
+		/**
+		 * Get the changes made so far, by position, so they can be applied to indexes (see MockIndex.update)
+		 * @return The changed positions with their records before and after the change (null if removed),
+		 *   or null if there are too many changes to apply them one by one or build renumbered the positions
+		 */
+		List<Change> changes() {
+			if (originals == null)
+				return null;
+
+			List<Change> changes = new ArrayList<>(originals.size());
+			originals.forEach((position, before) -> {
+				Map<String, Object> after = chunks[position >>> CHUNK_BITS][position & (CHUNK - 1)];
+				if (after != before)
+					changes.add(new Change(position, before, after));
+			});
+			return changes;
+		}
+
+		/**
+		 * Creates the changed records. Positions are compacted if most of them are empty.
+		 */
+		MockRecords build() {
+			int removed = size - count;
+			if (removed >= CHUNK && removed > count) {
+				originals = null;
+				return compact();
+			}
+
+			if (1 << (2 * shardBits + 2) <= count && shardBits < 12)
+				reshard(shardBits(count));
+			int chunkCount = (size + CHUNK - 1) >>> CHUNK_BITS;
+			return new MockRecords(chunkCount == chunks.length ? chunks : Arrays.copyOf(chunks, chunkCount),
+					size, count, shards, shardBits);
+		}
+
+		/**
+		 * Renumbers the positions of the records, leaving no empty positions
+		 */
+		@SuppressWarnings("unchecked")
+		private MockRecords compact() {
+			int[] newPositions = new int[size];
+			Map<String, Object>[][] newChunks = new Map[(count + CHUNK - 1) >>> CHUNK_BITS][];
+			int newSize = 0;
+			for (int position = 0; position < size; position++) {
+				Map<String, Object> record = chunks[position >>> CHUNK_BITS][position & (CHUNK - 1)];
+				if (record == null)
+					continue;
+				if ((newSize & (CHUNK - 1)) == 0)
+					newChunks[newSize >>> CHUNK_BITS] = new Map[CHUNK];
+				newChunks[newSize >>> CHUNK_BITS][newSize & (CHUNK - 1)] = record;
+				newPositions[position] = newSize++;
+			}
+
+			int bits = shardBits(count);
+			Map<Object, Integer>[] newShards = new Map[1 << bits];
+			for (Map<Object, Integer> shard : shards) {
+				if (shard == null)
+					continue;
+				for (Map.Entry<Object, Integer> entry : shard.entrySet()) {
+					int index = shard(entry.getKey(), bits);
+					if (newShards[index] == null)
+						newShards[index] = new HashMap<>();
+					newShards[index].put(entry.getKey(), newPositions[entry.getValue()]);
+				}
+			}
+			return new MockRecords(newChunks, newSize, count, newShards, bits);
+		}
+
+		/**
+		 * Redistributes the keys over a new number of shards
+		 */
+		@SuppressWarnings("unchecked")
+		private void reshard(int bits) {
+			Map<Object, Integer>[] newShards = new Map[1 << bits];
+			for (Map<Object, Integer> shard : shards) {
+				if (shard == null)
+					continue;
+				for (Map.Entry<Object, Integer> entry : shard.entrySet()) {
+					int index = shard(entry.getKey(), bits);
+					if (newShards[index] == null)
+						newShards[index] = new HashMap<>();
+					newShards[index].put(entry.getKey(), entry.getValue());
+				}
+			}
+			shards = newShards;
+			shardBits = bits;
+			ownShards.set(0, newShards.length);
+		}
+
+		private int position(Object key) {
+			Map<Object, Integer> shard = shards[shard(key, shardBits)];
+			Integer position = shard == null ? null : shard.get(key);
+			return position == null ? -1 : position;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Map<String, Object> set(int position, Map<String, Object> record) {
+			int chunk = position >>> CHUNK_BITS;
+			if (!ownChunks.get(chunk)) {
+				if (chunk >= chunks.length)
+					chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 3 / 2));
+				chunks[chunk] = chunks[chunk] == null ? new Map[CHUNK] : chunks[chunk].clone();
+				ownChunks.set(chunk);
+			}
+			Map<String, Object> previous = chunks[chunk][position & (CHUNK - 1)];
+			chunks[chunk][position & (CHUNK - 1)] = record;
+			if (originals != null && !originals.containsKey(position)) {
+				if (originals.size() < trackLimit)
+					originals.put(position, previous);
+				else
+					originals = null;
+			}
+			return previous;
+		}
+
+		private Map<Object, Integer> ownShard(Object key) {
+			int index = shard(key, shardBits);
+			if (!ownShards.get(index)) {
+				shards[index] = shards[index] == null ? new HashMap<>() : new HashMap<>(shards[index]);
+				ownShards.set(index);
+			}
+			return shards[index];
+		}
+	}
+
+	/**
+	 * Change of the record at a position
+	 */
+	@RequiredArgsConstructor
+	static final class Change {
+		final int position;
+		/** Record before the change, or null if it was inserted */
+		final Map<String, Object> before;
+		/** Record after the change, or null if it was removed */
+		final Map<String, Object> after;
+	}
+
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.olingo.odata2.api.edm.EdmMultiplicity;
+import org.apache.olingo.odata2.api.edm.provider.Association;
+import org.apache.olingo.odata2.api.edm.provider.AssociationEnd;
+import org.apache.olingo.odata2.api.edm.provider.AssociationSet;
+import org.apache.olingo.odata2.api.edm.provider.AssociationSetEnd;
+import org.apache.olingo.odata2.api.edm.provider.EdmProvider;
+import org.apache.olingo.odata2.api.edm.provider.EntityContainer;
+import org.apache.olingo.odata2.api.edm.provider.EntitySet;
+import org.apache.olingo.odata2.api.edm.provider.EntityType;
+import org.apache.olingo.odata2.api.edm.provider.NavigationProperty;
+import org.apache.olingo.odata2.api.edm.provider.PropertyRef;
+import org.apache.olingo.odata2.api.edm.provider.ReferentialConstraint;
+import org.apache.olingo.odata2.api.edm.provider.ReferentialConstraintRole;
+import org.apache.olingo.odata2.api.edm.provider.Schema;
+import org.apache.olingo.odata2.api.exception.ODataApplicationException;
+import org.apache.olingo.odata2.api.exception.ODataException;
+
+/**
+ * Relationships between the records of a MockDataStore, driven by the Associations of the EDMX.
+ *
+ * Records do not embed their related records. Navigation properties are resolved through:
+ * - Associations with a ReferentialConstraint: the foreign key values of the dependent record.
+ *   Dependent to principal is a key lookup; principal to dependents is a lookup in the
+ *   (automatic) hash index on the foreign key properties.
+ * - Associations without a ReferentialConstraint (e.g. many-to-many): a link table per Association Set,
+ *   with a forward and a reverse multimap of record keys.
+ * So reading the related records of a record costs an index lookup, not a scan of the target Entity Set.
+ */
+class MockRelationships {
+
+	protected final MockDataStore dataStore;
+
+	/** Source Entity Set name / navigation property name / navigation */
+	protected final Map<String, Map<String, Navigation>> navigations = new HashMap<>();
+
+	/**
+	 * Source Entity Set name / target Entity Set name / navigation.
+	 * If several navigation properties lead to the same Entity Set, the first declared one is used.
+	 */
+	protected final Map<String, Map<String, Navigation>> navigationsByTarget = new HashMap<>();
+
+	/**
+	 * Number of changes to the link tables, which are not versioned with the records of the Entity Sets
+	 * (see MockResponseCache)
+	 */
+	protected final LongAdder linkChanges = new LongAdder();
+
+	MockRelationships(EdmProvider edmProvider, MockDataStore dataStore) throws ODataException {
+		this.dataStore = dataStore;
+
+		for (Schema edmSchema : edmProvider.getSchemas()) {
+			for (EntityContainer edmContainer : edmSchema.getEntityContainers()) {
+				if (edmContainer.getAssociationSets() == null)
+					continue;
+
+				Map<String, LinkTable> linkTables = new HashMap<>();
+				for (EntitySet edmES : edmContainer.getEntitySets()) {
+					EntityType edmET = edmProvider.getEntityType(edmES.getEntityType());
+					if (edmET.getNavigationProperties() == null)
+						continue;
+
+					for (NavigationProperty navProp : edmET.getNavigationProperties()) {
+						AssociationSet associationSet = findAssociationSet(edmContainer, navProp, edmES.getName());
+						if (associationSet == null)
+							continue;
+
+						Association association = edmProvider.getAssociation(navProp.getRelationship());
+						Navigation navigation = createNavigation(navProp, edmES.getName(), associationSet,
+								association, linkTables);
+
+						navigations.computeIfAbsent(edmES.getName(), es -> new LinkedHashMap<>())
+							.put(navProp.getName(), navigation);
+						navigationsByTarget.computeIfAbsent(edmES.getName(), es -> new HashMap<>())
+							.putIfAbsent(navigation.targetEntitySet, navigation);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get a navigation by its navigation property
+	 * @param sourceEntitySet Source Entity Set name
+	 * @param navigationProperty Navigation property name
+	 * @return The navigation, or null if not found
+	 */
+	Navigation getNavigation(String sourceEntitySet, String navigationProperty) {
+		return navigations.getOrDefault(sourceEntitySet, Collections.emptyMap()).get(navigationProperty);
+	}
+
+	/**
+	 * Get the (first declared) navigation from an Entity Set to another
+	 * @param sourceEntitySet Source Entity Set name
+	 * @param targetEntitySet Target Entity Set name
+	 * @return The navigation, or null if not found
+	 */
+	Navigation findNavigation(String sourceEntitySet, String targetEntitySet) {
+		return navigationsByTarget.getOrDefault(sourceEntitySet, Collections.emptyMap()).get(targetEntitySet);
+	}
+
+	/**
+	 * Get all navigations of an Entity Set, in declaration order
+	 */
+	Map<String, Navigation> getNavigations(String sourceEntitySet) {
+		return navigations.getOrDefault(sourceEntitySet, Collections.emptyMap());
+	}
+
+	/**
+	 * Get the foreign keys of an Entity Set: one navigation per Association Set with a ReferentialConstraint
+	 * in which the Entity Set is the dependent, whichever end declares the navigation property
+	 * @param dependentEntitySet Dependent Entity Set name
+	 * @return Foreign key navigations (own navigation properties first)
+	 */
+	List<ForeignKeyNavigation> getForeignKeys(String dependentEntitySet) {
+		List<Navigation> candidates = new ArrayList<>(getNavigations(dependentEntitySet).values());
+		navigations.forEach((entitySet, esNavigations) -> {
+			if (!entitySet.equals(dependentEntitySet))
+				candidates.addAll(esNavigations.values());
+		});
+
+		Map<String, ForeignKeyNavigation> foreignKeys = new LinkedHashMap<>();
+		for (Navigation navigation : candidates) {
+			if (!(navigation instanceof ForeignKeyNavigation))
+				continue;
+			ForeignKeyNavigation foreignKey = (ForeignKeyNavigation) navigation;
+			if (foreignKey.dependentEntitySet().equals(dependentEntitySet))
+				foreignKeys.putIfAbsent(foreignKey.principalEntitySet() + " "
+						+ String.join(",", foreignKey.dependentProperties()), foreignKey);
+		}
+		return new ArrayList<>(foreignKeys.values());
+	}
+
+	/**
+	 * Get the navigations through link tables (Associations without ReferentialConstraint) from or to an
+	 * Entity Set, one per link table, whichever end declares the navigation property
+	 * @param entitySet Entity Set name
+	 * @return Link navigations (own navigation properties first)
+	 */
+	List<LinkNavigation> getLinkNavigations(String entitySet) {
+		List<Navigation> candidates = new ArrayList<>(getNavigations(entitySet).values());
+		navigations.forEach((sourceEntitySet, esNavigations) -> {
+			if (!sourceEntitySet.equals(entitySet))
+				candidates.addAll(esNavigations.values());
+		});
+
+		Map<LinkTable, LinkNavigation> linkNavigations = new LinkedHashMap<>();
+		for (Navigation navigation : candidates) {
+			if (navigation instanceof LinkNavigation && (navigation.sourceEntitySet.equals(entitySet)
+					|| navigation.targetEntitySet.equals(entitySet)))
+				linkNavigations.putIfAbsent(((LinkNavigation) navigation).linkTable, (LinkNavigation) navigation);
+		}
+		return new ArrayList<>(linkNavigations.values());
+	}
+
+	/**
+	 * Removes the links of all records of an Entity Set from the link tables, at either end
+	 * (e.g. when the Entity Set is truncated, so re-inserted keys do not get their old links back)
+	 * @param entitySet Entity Set name
+	 */
+	void unlinkAll(String entitySet) {
+		for (LinkNavigation navigation : getLinkNavigations(entitySet)) {
+			if (navigation.sourceEntitySet.equals(entitySet))
+				navigation.unlinkAll();
+			if (navigation.targetEntitySet.equals(entitySet))
+				navigation.unlinkAllTargets();
+		}
+		linkChanges.increment();
+	}
+
+	/**
+	 * Removes all links of all link tables
+	 */
+	void unlinkAll() {
+		for (Map<String, Navigation> esNavigations : navigations.values()) {
+			for (Navigation navigation : esNavigations.values()) {
+				if (navigation instanceof LinkNavigation) {
+					((LinkNavigation) navigation).linkTable.forward.clear();
+					((LinkNavigation) navigation).linkTable.reverse.clear();
+				}
+			}
+		}
+		linkChanges.increment();
+	}
+
+	/**
+	 * Moves the related records embedded in a record (under navigation property names, as in
+	 * OData JSON with inline data) out of it, relating them to the record through foreign keys or links.
+	 * Embedded records are normalized recursively.
+	 * @param entitySet Entity Set name of the record
+	 * @param record Record to be normalized (is changed)
+	 * @param related Receives the embedded records by Entity Set name, to be stored by the caller
+	 * @throws ODataApplicationException If the Entity Set does not exist in the mocked OData service
+	 */
+	@SuppressWarnings("unchecked")
+	void normalize(String entitySet, Map<String, Object> record, Map<String, List<Map<String, Object>>> related)
+			throws ODataApplicationException {
+		for (Navigation navigation : getNavigations(entitySet).values()) {
+			Object embedded = record.remove(navigation.name);
+			List<Map<String, Object>> targets;
+			if (embedded instanceof List)
+				targets = (List<Map<String, Object>>) embedded;
+			else if (embedded instanceof Map)
+				targets = Collections.singletonList((Map<String, Object>) embedded);
+			else
+				continue;
+
+			for (Map<String, Object> target : targets) {
+				normalize(navigation.targetEntitySet, target, related);
+				navigation.link(record, target, true);
+				related.computeIfAbsent(navigation.targetEntitySet, es -> new ArrayList<>()).add(target);
+			}
+		}
+	}
+
+
+	protected static AssociationSet findAssociationSet(EntityContainer edmContainer, NavigationProperty navProp,
+			String sourceEntitySet) {
+		for (AssociationSet associationSet : edmContainer.getAssociationSets()) {
+			if (!associationSet.getAssociation().equals(navProp.getRelationship()))
+				continue;
+			AssociationSetEnd sourceEnd = getEnd(associationSet, navProp.getFromRole());
+			if (sourceEnd != null && sourceEnd.getEntitySet().equals(sourceEntitySet))
+				return associationSet;
+		}
+		return null;
+	}
+
+	protected static AssociationSetEnd getEnd(AssociationSet associationSet, String role) {
+		return role.equals(associationSet.getEnd1().getRole()) ? associationSet.getEnd1()
+				: role.equals(associationSet.getEnd2().getRole()) ? associationSet.getEnd2()
+				: null;
+	}
+
+	protected Navigation createNavigation(NavigationProperty navProp, String sourceEntitySet,
+			AssociationSet associationSet, Association association, Map<String, LinkTable> linkTables) {
+		String targetEntitySet = getEnd(associationSet, navProp.getToRole()).getEntitySet();
+		AssociationEnd targetEnd = navProp.getToRole().equals(association.getEnd1().getRole())
+				? association.getEnd1() : association.getEnd2();
+		boolean toMany = targetEnd.getMultiplicity() == EdmMultiplicity.MANY;
+
+		ReferentialConstraint constraint = association.getReferentialConstraint();
+		if (constraint != null) {
+			boolean sourceIsDependent = navProp.getFromRole().equals(constraint.getDependent().getRole());
+			ReferentialConstraintRole sourceRole = sourceIsDependent ? constraint.getDependent() : constraint.getPrincipal();
+			ReferentialConstraintRole targetRole = sourceIsDependent ? constraint.getPrincipal() : constraint.getDependent();
+			return new ForeignKeyNavigation(navProp.getName(), sourceEntitySet, targetEntitySet, toMany,
+					sourceIsDependent, propertyNames(sourceRole), propertyNames(targetRole));
+		}
+
+		LinkTable linkTable = linkTables.computeIfAbsent(associationSet.getName(), a -> new LinkTable());
+		boolean forward = navProp.getFromRole().equals(associationSet.getEnd1().getRole());
+		return new LinkNavigation(navProp.getName(), sourceEntitySet, targetEntitySet, toMany, linkTable, forward);
+	}
+
+	protected static String[] propertyNames(ReferentialConstraintRole role) {
+		return role.getPropertyRefs().stream().map(PropertyRef::getName).toArray(String[]::new);
+	}
+
+
+	/**
+	 * Navigation property of an Entity Set
+	 */
+	abstract class Navigation {
+		final String name;
+		final String sourceEntitySet;
+		final String targetEntitySet;
+		final boolean toMany;
+
+		Navigation(String name, String sourceEntitySet, String targetEntitySet, boolean toMany) {
+			this.name = name;
+			this.sourceEntitySet = sourceEntitySet;
+			this.targetEntitySet = targetEntitySet;
+			this.toMany = toMany;
+		}
+
+		/**
+		 * Reads the records related to a source record
+		 * @return Related records, in insertion order
+		 */
+		abstract List<Map<String, Object>> read(Map<String, Object> source) throws ODataApplicationException;
+
+		/**
+		 * Relates two records. Foreign keys are set in the dependent record, which must be
+		 * stored again by the caller (see changesSource/changesTarget).
+		 * @param onlyMissing Only set foreign key values that are missing (null)
+		 */
+		abstract void link(Map<String, Object> source, Map<String, Object> target, boolean onlyMissing)
+				throws ODataApplicationException;
+
+		/**
+		 * Removes the relation between two records
+		 */
+		abstract void unlink(Map<String, Object> source, Map<String, Object> target) throws ODataApplicationException;
+
+		/** Whether link/unlink change the source record */
+		abstract boolean changesSource();
+
+		/** Whether link/unlink change the target record */
+		abstract boolean changesTarget();
+	}
+
+	/**
+	 * Navigation of an Association with a ReferentialConstraint
+	 */
+	class ForeignKeyNavigation extends Navigation {
+		final boolean sourceIsDependent;
+		final String[] sourceProperties;
+		final String[] targetProperties;
+
+		ForeignKeyNavigation(String name, String sourceEntitySet, String targetEntitySet, boolean toMany,
+				boolean sourceIsDependent, String[] sourceProperties, String[] targetProperties) {
+			super(name, sourceEntitySet, targetEntitySet, toMany);
+			this.sourceIsDependent = sourceIsDependent;
+			this.sourceProperties = sourceProperties;
+			this.targetProperties = targetProperties;
+		}
+
+		@Override
+		List<Map<String, Object>> read(Map<String, Object> source) throws ODataApplicationException {
+			Map<String, Object> values = new HashMap<>();
+			for (int i = 0; i < sourceProperties.length; i++) {
+				Object value = source.get(sourceProperties[i]);
+				if (value == null)
+					return Collections.emptyList();
+				values.put(targetProperties[i], value);
+			}
+
+			if (sourceIsDependent) {
+				// Principal properties are the key of the target
+				Map<String, Object> target = dataStore.getRecordByKey(targetEntitySet, values);
+				return target == null ? Collections.emptyList() : Collections.singletonList(target);
+			}
+			return dataStore.findRecords(targetEntitySet, values);
+		}
+
+		@Override
+		void link(Map<String, Object> source, Map<String, Object> target, boolean onlyMissing) {
+			Map<String, Object> principal = sourceIsDependent ? target : source;
+			Map<String, Object> dependent = sourceIsDependent ? source : target;
+			String[] principalProperties = sourceIsDependent ? targetProperties : sourceProperties;
+			String[] dependentProperties = sourceIsDependent ? sourceProperties : targetProperties;
+
+			for (int i = 0; i < dependentProperties.length; i++) {
+				if (!onlyMissing || dependent.get(dependentProperties[i]) == null)
+					dependent.put(dependentProperties[i], principal.get(principalProperties[i]));
+			}
+		}
+
+		@Override
+		void unlink(Map<String, Object> source, Map<String, Object> target) throws ODataApplicationException {
+			String dependentEntitySet = sourceIsDependent ? sourceEntitySet : targetEntitySet;
+			Map<String, Object> dependent = sourceIsDependent ? source : target;
+			String[] dependentProperties = sourceIsDependent ? sourceProperties : targetProperties;
+
+			Map<String, Object> key = new HashMap<>(dependent);
+			for (String property : dependentProperties)
+				key.put(property, null);
+			if (!dataStore.getRecordKey(dependentEntitySet, key).equals(dataStore.getRecordKey(dependentEntitySet, dependent)))
+				throw new ODataApplicationException(String.format("Cannot remove relation %s of %s, its foreign key is part of the key",
+						name, sourceEntitySet), Locale.getDefault());
+
+			for (String property : dependentProperties)
+				dependent.put(property, null);
+		}
+
+		@Override
+		boolean changesSource() {
+			return sourceIsDependent;
+		}
+
+		String principalEntitySet() {
+			return sourceIsDependent ? targetEntitySet : sourceEntitySet;
+		}
+
+		String dependentEntitySet() {
+			return sourceIsDependent ? sourceEntitySet : targetEntitySet;
+		}
+
+		String[] dependentProperties() {
+			return sourceIsDependent ? sourceProperties : targetProperties;
+		}
+
+		/**
+		 * Sets the foreign key of a dependent record to the key of a principal record
+		 */
+		void linkDependent(Map<String, Object> dependent, Map<String, Object> principal) {
+			if (sourceIsDependent)
+				link(dependent, principal, false);
+			else
+				link(principal, dependent, false);
+		}
+
+		@Override
+		boolean changesTarget() {
+			return !sourceIsDependent;
+		}
+	}
+
+	/**
+	 * Navigation of an Association without ReferentialConstraint, through a link table
+	 */
+	class LinkNavigation extends Navigation {
+		final LinkTable linkTable;
+		final boolean forward;
+
+		LinkNavigation(String name, String sourceEntitySet, String targetEntitySet, boolean toMany,
+				LinkTable linkTable, boolean forward) {
+			super(name, sourceEntitySet, targetEntitySet, toMany);
+			this.linkTable = linkTable;
+			this.forward = forward;
+		}
+
+		@Override
+		List<Map<String, Object>> read(Map<String, Object> source) throws ODataApplicationException {
+			Set<Object> targetKeys = links().get(dataStore.getRecordKey(sourceEntitySet, source));
+			if (targetKeys == null)
+				return Collections.emptyList();
+
+			List<Map<String, Object>> targets = new ArrayList<>(targetKeys.size());
+			for (Object targetKey : targetKeys) {
+				Map<String, Object> target = dataStore.getRecord(targetEntitySet, targetKey);
+				if (target != null)
+					targets.add(target);
+			}
+			return targets;
+		}
+
+		@Override
+		void link(Map<String, Object> source, Map<String, Object> target, boolean onlyMissing)
+				throws ODataApplicationException {
+			Object sourceKey = dataStore.getRecordKey(sourceEntitySet, source);
+			Object targetKey = dataStore.getRecordKey(targetEntitySet, target);
+			links().computeIfAbsent(sourceKey, k -> new CopyOnWriteArraySet<>()).add(targetKey);
+			reverseLinks().computeIfAbsent(targetKey, k -> new CopyOnWriteArraySet<>()).add(sourceKey);
+			linkChanges.increment();
+		}
+
+		@Override
+		void unlink(Map<String, Object> source, Map<String, Object> target) throws ODataApplicationException {
+			Object sourceKey = dataStore.getRecordKey(sourceEntitySet, source);
+			Object targetKey = dataStore.getRecordKey(targetEntitySet, target);
+			links().getOrDefault(sourceKey, Collections.emptySet()).remove(targetKey);
+			reverseLinks().getOrDefault(targetKey, Collections.emptySet()).remove(sourceKey);
+			linkChanges.increment();
+		}
+
+		/**
+		 * Removes the links of all source records
+		 */
+		void unlinkAll() {
+			unlinkAll(links(), reverseLinks());
+		}
+
+		/**
+		 * Removes the links of all target records
+		 */
+		void unlinkAllTargets() {
+			unlinkAll(reverseLinks(), links());
+		}
+
+		private void unlinkAll(Map<Object, Set<Object>> links, Map<Object, Set<Object>> reverseLinks) {
+			for (Map.Entry<Object, Set<Object>> entry : links.entrySet()) {
+				for (Object key : entry.getValue())
+					reverseLinks.getOrDefault(key, Collections.emptySet()).remove(entry.getKey());
+			}
+			links.clear();
+		}
+
+		@Override
+		boolean changesSource() {
+			return false;
+		}
+
+		@Override
+		boolean changesTarget() {
+			return false;
+		}
+
+		private Map<Object, Set<Object>> links() {
+			return forward ? linkTable.forward : linkTable.reverse;
+		}
+
+		private Map<Object, Set<Object>> reverseLinks() {
+			return forward ? linkTable.reverse : linkTable.forward;
+		}
+	}
+
+	/**
+	 * Links of an Association Set: record keys of End1 to record keys of End2 (forward) and vice versa.
+	 * Link sets keep insertion order.
+	 */
+	static class LinkTable {
+		final Map<Object, Set<Object>> forward = new ConcurrentHashMap<>();
+		final Map<Object, Set<Object>> reverse = new ConcurrentHashMap<>();
+	}
+
+}
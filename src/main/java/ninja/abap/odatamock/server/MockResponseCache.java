@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Cache of the responses to read (GET) requests, validated by the versions of the stored data.
+ *
+ * Cached responses are stamped with the versions of the Entity Sets the request reads, as found in its URI:
+ * the Entity Set of the resource path and the targets of its navigation properties and of $expand (or all
+ * Entity Sets, if $filter or $orderby follow navigation properties). Any change to those Entity Sets through
+ * the MockDataStore changes the stamp, which invalidates the response without tracking the entries to evict.
+ * Function Imports are never cached, as their handlers run arbitrary code.
+ *
+ * Responses carry a weak ETag derived from the same stamp, so clients revalidating with If-None-Match get a
+ * 304 Not Modified response while the data is unchanged, whether the response is still cached or not.
+ *
+ * Entries are evicted in approximately least recently used order once the cache exceeds its size in bytes:
+ * lookups only stamp the entry with its access time, without locking, and one thread at a time evicts the
+ * least recently accessed entries until the cache is back under 7/8 of its size.
+ */
+public class MockResponseCache {
+
+	/** Headers that belong to a single response, and are not replayed from the cache */
+	protected static final Set<String> UNCACHED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+	static {
+		UNCACHED_HEADERS.addAll(Arrays.asList("Content-Type", "Content-Length", "Date", "ETag", "Set-Cookie",
+				"X-Request-ID", "Server-Timing"));
+	}
+
+	/** Approximate memory used by an entry besides its key and body, in bytes */
+	protected static final int ENTRY_OVERHEAD = 256;
+
+	protected final MockDataStore dataStore;
+	protected final long maxSize;
+
+	/** Distinguishes the ETags of this cache from those of other servers (and of earlier runs) */
+	protected final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+	/** Request key / cached response */
+	protected final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	/** Total size of the entries in bytes */
+	protected final AtomicLong size = new AtomicLong();
+	/** Held by the thread evicting entries */
+	protected final Lock evicting = new ReentrantLock();
+
+	protected final LongAdder hits = new LongAdder();
+	protected final LongAdder misses = new LongAdder();
+	protected final LongAdder notModified = new LongAdder();
+
+	MockResponseCache(final @NonNull MockDataStore dataStore, long maxSize) {
+		this.dataStore = dataStore;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Serve a request from the cache, or by the handler (caching its response if possible)
+	 * @param req HTTP request
+	 * @param resp HTTP response
+	 * @param handler Request processing, on a miss
+	 * @throws IOException If the response cannot be written
+	 */
+	public void service(HttpServletRequest req, HttpServletResponse resp, Handler handler) throws IOException {
+		long stamp = stamp(req);
+		if (stamp < 0) {
+			handler.service(req, resp);
+			return;
+		}
+
+		String key = key(req);
+		String etag = String.format("W/\"%s-%x-%x\"", epoch, key.hashCode(), stamp);
+		if (matches(req.getHeader("If-None-Match"), etag)) {
+			notModified.increment();
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			resp.setHeader("ETag", etag);
+			return;
+		}
+
+		Entry entry = get(key);
+		if (entry != null && entry.stamp == stamp) {
+			hits.increment();
+			entry.writeTo(resp, etag);
+			return;
+		}
+
+		misses.increment();
+		CachingResponse caching = new CachingResponse(resp, key, stamp, etag);
+		handler.service(req, caching);
+		caching.complete();
+	}
+
+	/**
+	 * Get the version stamp of the data read by a request: the sum of the versions of the Entity Sets
+	 * (and of the link tables, if navigation properties are followed), which grows with every change.
+	 * @param req HTTP request
+	 * @return The stamp, or -1 if the request cannot be cached
+	 */
+	protected long stamp(HttpServletRequest req) {
+		if (!"GET".equals(MockServlet.method(req)))
+			return -1;
+		String path = req.getPathInfo() == null ? "" : StringUtils.removeStart(req.getPathInfo(), "/");
+		if (path.isEmpty() || path.equals("$metadata"))
+			return 0; // Never changes
+
+		String[] segments = path.split("/");
+		String entitySet = name(segments[0]);
+		if (dataStore.peekVersion(entitySet) < 0)
+			return -1; // Function Import, $batch or unknown resource
+
+		Set<String> entitySets = new HashSet<>();
+		entitySets.add(entitySet);
+		boolean navigates = false;
+		for (int i = 1; i < segments.length; i++) {
+			if (segments[i].equals("$links"))
+				continue;
+			MockRelationships.Navigation navigation = dataStore.getRelationships()
+					.getNavigation(entitySet, name(segments[i]));
+			if (navigation == null)
+				break; // Property, $count or $value
+			entitySet = navigation.targetEntitySet;
+			entitySets.add(entitySet);
+			navigates = true;
+		}
+
+		String expand = req.getParameter("$expand");
+		if (expand != null) {
+			for (String expandPath : expand.split(",")) {
+				String source = entitySet;
+				for (String navigationProperty : expandPath.trim().split("/")) {
+					MockRelationships.Navigation navigation = dataStore.getRelationships()
+							.getNavigation(source, navigationProperty);
+					if (navigation == null)
+						break;
+					source = navigation.targetEntitySet;
+					entitySets.add(source);
+					navigates = true;
+				}
+			}
+		}
+
+		if (StringUtils.contains(req.getParameter("$filter"), '/')
+				|| StringUtils.contains(req.getParameter("$orderby"), '/')) {
+			entitySets = dataStore.data.keySet();
+			navigates = true;
+		}
+
+		long stamp = navigates ? dataStore.getRelationships().linkChanges.sum() : 0;
+		for (String name : entitySets)
+			stamp += dataStore.peekVersion(name);
+		return stamp;
+	}
+
+	/**
+	 * Name of a resource path segment, without its key predicate (eg "Orders" of "Orders(1)")
+	 */
+	protected static String name(String segment) {
+		int keyStart = segment.indexOf('(');
+		return keyStart < 0 ? segment : segment.substring(0, keyStart);
+	}
+
+	/**
+	 * Get the cache key of a request: its URL (with the host, as feeds contain absolute URIs), the query
+	 * options in a normalized order and the headers that select the representation
+	 */
+	protected static String key(HttpServletRequest req) {
+		StringBuilder key = new StringBuilder(req.getRequestURL());
+		if (req.getQueryString() != null) {
+			String[] options = req.getQueryString().split("&");
+			Arrays.sort(options);
+			key.append('?').append(String.join("&", options));
+		}
+		return key.append('\n').append(StringUtils.defaultString(req.getHeader("Accept")))
+				.append('\n').append(StringUtils.defaultString(req.getHeader("Accept-Language")))
+				.toString();
+	}
+
+	/**
+	 * Whether an If-None-Match header matches an ETag
+	 */
+	protected static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String candidate : ifNoneMatch.split(",")) {
+			if (candidate.trim().equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	protected Entry get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null)
+			entry.lastAccess = System.nanoTime();
+		return entry;
+	}
+
+	protected void put(String key, Entry entry) {
+		Entry previous = entries.put(key, entry);
+		size.addAndGet(previous == null ? entry.size : entry.size - previous.size);
+		if (size.get() > maxSize)
+			evict();
+	}
+
+	/**
+	 * Evicts the least recently accessed entries until the cache is under 7/8 of its size, so evictions are
+	 * batched. Left to the thread already evicting, if any, which checks the size again when done.
+	 */
+	protected void evict() {
+		while (size.get() > maxSize && evicting.tryLock()) {
+			try {
+				evictLeastRecent();
+			}
+			finally {
+				evicting.unlock();
+			}
+		}
+	}
+
+	private void evictLeastRecent() {
+		// Access times are copied, as they change while sorting
+		List<Candidate> candidates = new ArrayList<>(entries.size());
+		for (Map.Entry<String, Entry> entry : entries.entrySet())
+			candidates.add(new Candidate(entry.getKey(), entry.getValue(), entry.getValue().lastAccess));
+		candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+
+		long target = maxSize - maxSize / 8;
+		for (Candidate candidate : candidates) {
+			if (size.get() <= target)
+				break;
+			remove(candidate.key, candidate.entry);
+		}
+	}
+
+	/**
+	 * Removes an entry, unless it was replaced meanwhile
+	 */
+	protected void remove(String key, Entry entry) {
+		if (entries.remove(key, entry))
+			size.addAndGet(-entry.size);
+	}
+
+	/**
+	 * Removes all cached responses
+	 */
+	public void clear() {
+		entries.forEach(this::remove);
+	}
+
+	/**
+	 * Get the number of cached responses
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the memory used by the cached responses, in bytes (approximate)
+	 */
+	public long getSizeInBytes() {
+		return size.get();
+	}
+
+	/**
+	 * Get the number of requests served from the cache
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of cacheable requests that were processed (not cached, or changed data)
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of requests answered with 304 Not Modified
+	 */
+	public long getNotModified() {
+		return notModified.sum();
+	}
+
+
+	/**
+	 * Request processing behind the cache
+	 */
+	@FunctionalInterface
+	public interface Handler {
+		void service(HttpServletRequest req, HttpServletResponse resp) throws IOException;
+	}
+
+	/**
+	 * Cached response (always with status 200 OK)
+	 */
+	protected static class Entry {
+		protected final long stamp;
+		protected final String contentType;
+		protected final List<String[]> headers = new ArrayList<>();
+		protected final byte[] body;
+		protected final long size;
+		/** Time of the last lookup (see System.nanoTime) */
+		protected volatile long lastAccess = System.nanoTime();
+
+		protected Entry(String key, long stamp, HttpServletResponse resp, byte[] body) {
+			this.stamp = stamp;
+			this.contentType = resp.getContentType();
+			for (String name : resp.getHeaderNames()) {
+				if (UNCACHED_HEADERS.contains(name))
+					continue;
+				for (String value : resp.getHeaders(name))
+					headers.add(new String[] { name, value });
+			}
+			this.body = body;
+			this.size = ENTRY_OVERHEAD + 2L * key.length() + body.length;
+		}
+
+		protected void writeTo(HttpServletResponse resp, String etag) throws IOException {
+			resp.setStatus(HttpServletResponse.SC_OK);
+			resp.setContentType(contentType);
+			for (String[] header : headers)
+				resp.addHeader(header[0], header[1]);
+			resp.setHeader("ETag", etag);
+			resp.setContentLength(body.length);
+			resp.getOutputStream().write(body);
+		}
+	}
+
+	/**
+	 * Entry to be evicted, with its access time when eviction started
+	 */
+	@RequiredArgsConstructor
+	protected static class Candidate {
+		protected final String key;
+		protected final Entry entry;
+		protected final long lastAccess;
+	}
+
+	/**
+	 * Response that adds the ETag to successful responses and caches a copy of the body written,
+	 * unless it is larger than 1/8 of the cache, written as characters or already has an ETag
+	 * (eg of an Entity Type with concurrency tokens).
+	 * The response is cached once its body is complete (closed, or as long as its Content-Length), before the
+	 * client receives its end.
+	 */
+	protected class CachingResponse extends HttpServletResponseWrapper {
+		protected final String key;
+		protected final long stamp;
+		protected final String etag;
+		protected ByteArrayOutputStream body = new ByteArrayOutputStream();
+		protected ServletOutputStream out;
+
+		protected CachingResponse(HttpServletResponse response, String key, long stamp, String etag) {
+			super(response);
+			this.key = key;
+			this.stamp = stamp;
+			this.etag = etag;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (out != null)
+				return out;
+
+			if (getStatus() != SC_OK || containsHeader("ETag"))
+				body = null;
+			else
+				setHeader("ETag", etag);
+
+			ServletOutputStream target = super.getOutputStream();
+			out = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					target.write(b);
+					if (body != null) {
+						body.write(b);
+						checkSize();
+					}
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					target.write(b, off, len);
+					if (body != null) {
+						body.write(b, off, len);
+						checkSize();
+					}
+				}
+
+				@Override
+				public void flush() throws IOException {
+					target.flush();
+				}
+
+				@Override
+				public void close() throws IOException {
+					complete();
+					target.close();
+				}
+
+				@Override
+				public boolean isReady() {
+					return target.isReady();
+				}
+
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+					target.setWriteListener(writeListener);
+				}
+			};
+			return out;
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			setContentLengthLong(len);
+		}
+
+		@Override
+		public void setContentLengthLong(long len) {
+			// Set after writing the body (as ODataServlet does), it completes the response
+			if (body != null && body.size() == len)
+				complete();
+			super.setContentLengthLong(len);
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			body = null;
+			return super.getWriter();
+		}
+
+		protected void checkSize() {
+			if (body.size() > maxSize / 8)
+				body = null;
+		}
+
+		/**
+		 * Caches the response, if possible (once)
+		 */
+		protected void complete() {
+			if (out != null && body != null && getStatus() == SC_OK)
+				put(key, new Entry(key, stamp, (HttpServletResponse) getResponse(), body.toByteArray()));
+			body = null;
+		}
+	}
+
+}
@@ -16,10 +16,14 @@
 package ninja.abap.odatamock.server;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.apache.olingo.odata2.annotation.processor.core.datasource.DataSource;
+import org.apache.olingo.odata2.api.ODataCallback;
 import org.apache.olingo.odata2.api.ODataService;
 import org.apache.olingo.odata2.api.ODataServiceFactory;
+import org.apache.olingo.odata2.api.edm.Edm;
 import org.apache.olingo.odata2.api.exception.ODataException;
 import org.apache.olingo.odata2.api.processor.ODataContext;
 import org.apache.olingo.odata2.core.edm.provider.EdmxProvider;
@@ -29,24 +33,61 @@ import lombok.NonNull;
 
 class MockServiceFactory extends ODataServiceFactory {
 
+	protected final Edm edm;
 	protected final EdmxProvider edmProvider;
 	protected final DataSource dataSource;
 
 	protected final MapValueAccess valueAccess;
-	protected final MockListsProcessor processor;
 
-	MockServiceFactory(final @NonNull EdmxProvider edmProvider, DataSource dataSource)
-			throws ODataException, IOException {
+	/** Tracer of the request phases, or null if tracing is disabled */
+	protected final MockTracer tracer;
+
+	/** Metrics of the operations of $batch requests (see MockListsProcessor), or null */
+	protected final MockMetrics metrics;
+
+	/** Server page size (see MockListsProcessor) */
+	protected final int pageSize;
+	protected final Map<String, Integer> pageSizes;
+
+	/** Executor of the retrieve operations of $batch requests, or null (see MockListsProcessor.executeBatch) */
+	protected final Executor batchExecutor;
+
+	MockServiceFactory(final @NonNull Edm edm, final @NonNull EdmxProvider edmProvider, DataSource dataSource,
+			MockTracer tracer, MockMetrics metrics, int pageSize, final @NonNull Map<String, Integer> pageSizes,
+			Executor batchExecutor) throws ODataException, IOException {
+		this.edm = edm;
 		this.edmProvider = edmProvider;
 		this.dataSource = dataSource;
+		this.tracer = tracer;
+		this.metrics = metrics;
+		this.pageSize = pageSize;
+		this.pageSizes = pageSizes;
+		this.batchExecutor = batchExecutor;
 
 		this.valueAccess = new MapValueAccess();
-		this.processor = new MockListsProcessor(dataSource, valueAccess);
 	}
 
 	@Override
 	public ODataService createService(ODataContext ctx) throws ODataException {
-		return new ODataSingleProcessorService(edmProvider, processor);
+		// Processors hold the request context, so concurrent requests must not share one
+		// The (fully materialized) Edm is shared instead of building a new one for every request
+		return new ODataSingleProcessorService(edmProvider,
+				new MockListsProcessor(dataSource, valueAccess, metrics, tracer != null && tracer.isDebugOutput(),
+						pageSize, pageSizes, batchExecutor)) {
+			@Override
+			public Edm getEntityDataModel() throws ODataException {
+				return edm;
+			}
+		};
+	}
+
+	@Override
+	public <T extends ODataCallback> T getCallback(Class<T> callbackInterface) {
+		// The tracer enables (ODataDebugCallback) and collects (ODataDebugResponseWrapperCallback)
+		//  the runtime measurements of each request
+		if (tracer != null && callbackInterface.isInstance(tracer))
+			return callbackInterface.cast(tracer);
+		return super.getCallback(callbackInterface);
 	}
 
-}
\ No newline at end of file
+}
@@ -15,12 +15,24 @@
  */
 package ninja.abap.odatamock.server;
 
+import java.io.IOException;
+import java.util.StringJoiner;
+import java.util.concurrent.Executor;
+
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
 import org.apache.olingo.odata2.api.ODataServiceFactory;
+import org.apache.olingo.odata2.api.processor.ODataResponse;
+import org.apache.olingo.odata2.core.commons.Decoder;
 import org.apache.olingo.odata2.core.servlet.ODataServlet;
 
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 @RequiredArgsConstructor
 @SuppressWarnings("serial")
@@ -28,10 +40,180 @@ class MockServlet extends ODataServlet {
 
 	@Getter
 	protected final ODataServiceFactory serviceFactory;
+	protected final MockMetrics metrics;
+
+	/**
+	 * Executor to process the requests on instead of the Jetty thread pool (eg virtual threads), or null.
+	 * Requires async support in the servlet holder.
+	 */
+	@Setter
+	protected Executor executor;
+
+	/**
+	 * Cache of read responses, or null
+	 */
+	@Setter
+	protected MockResponseCache responseCache;
+
+	/**
+	 * Whether requests with an odata-debug query option get the Olingo debug output (see MockTracer).
+	 * If not, the option is removed.
+	 */
+	@Setter
+	protected boolean debugOutput;
 
 	@Override
 	protected ODataServiceFactory getServiceFactory(HttpServletRequest request) {
 		return serviceFactory;
 	}
 
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if (executor == null) {
+			process(req, resp);
+			return;
+		}
+
+		// Release the Jetty thread while the request is processed, so blocking handlers don't starve the pool
+		AsyncContext async = req.startAsync();
+		async.setTimeout(0);
+		HttpServletRequest asyncReq = new AsyncRequest(req);
+		executor.execute(() -> {
+			try {
+				process(asyncReq, resp);
+			}
+			catch (Throwable e) {
+				// Not handled by Olingo (eg an Error in a handler, or the client connection was lost):
+				//  fail the request, as the container does for errors thrown by synchronous requests
+				if (!resp.isCommitted()) {
+					try {
+						resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					}
+					catch (IOException | IllegalStateException sendError) {
+						// Client connection lost
+					}
+				}
+			}
+			finally {
+				async.complete();
+			}
+		});
+	}
+
+	protected void process(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if (!debugOutput && StringUtils.contains(req.getQueryString(), "debug"))
+			req = new NoDebugOptionRequest(req);
+
+		long start = System.nanoTime();
+		try {
+			if (responseCache != null)
+				responseCache.service(req, resp, super::service);
+			else
+				super.service(req, resp);
+		}
+		catch (Throwable e) {
+			// Answered with status 500 once it leaves the servlet (see service, or by the container)
+			metrics.recordRequest(method(req), req.getPathInfo(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					System.nanoTime() - start);
+			throw e;
+		}
+		metrics.recordRequest(method(req), req.getPathInfo(), resp.getStatus(), System.nanoTime() - start);
+	}
+
+	@Override
+	protected void createResponse(HttpServletResponse resp, ODataResponse response, boolean omitResponseBody)
+			throws IOException {
+		if (!(response.getEntity() instanceof MockFeedStream)) {
+			super.createResponse(resp, response, omitResponseBody);
+			return;
+		}
+
+		// Same as ODataServlet, but the feed is written straight to the output (without Content-Length)
+		resp.setStatus(response.getStatus().getStatusCode());
+		resp.setContentType(response.getContentHeader());
+		for (String headerName : response.getHeaderNames())
+			resp.setHeader(headerName, response.getHeader(headerName));
+		if (!omitResponseBody)
+			((MockFeedStream) response.getEntity()).writeTo(resp.getOutputStream());
+	}
+
+	/**
+	 * Get the HTTP method of a request, considering tunneling in POST requests (as ODataServlet does)
+	 */
+	protected static String method(HttpServletRequest req) {
+		String method = req.getMethod();
+		if ("POST".equals(method)) {
+			String tunneled = req.getHeader("X-HTTP-Method");
+			if (tunneled == null)
+				tunneled = req.getHeader("X-HTTP-Method-Override");
+			if (tunneled != null)
+				return tunneled;
+		}
+		return method;
+	}
+
+
+	/**
+	 * Request without the odata-debug query option, decoded as ODataServlet does (see RestUtil)
+	 */
+	protected static class NoDebugOptionRequest extends HttpServletRequestWrapper {
+		protected final String queryString;
+
+		protected NoDebugOptionRequest(HttpServletRequest request) {
+			super(request);
+			StringJoiner options = new StringJoiner("&");
+			for (String option : request.getQueryString().split("&")) {
+				if (!MockTracer.DEBUG_OPTION.equals(StringUtils.substringBefore(decode(option), "=")))
+					options.add(option);
+			}
+			this.queryString = options.length() == 0 ? null : options.toString();
+		}
+
+		private static String decode(String option) {
+			try {
+				return Decoder.decode(option);
+			}
+			catch (IllegalArgumentException e) {
+				return option; // Rejected by ODataServlet
+			}
+		}
+
+		@Override
+		public String getQueryString() {
+			return queryString;
+		}
+	}
+
+	/**
+	 * Request processed after service() returned.
+	 * Keeps the paths, as Jetty resets them when the request leaves the servlet.
+	 */
+	protected static class AsyncRequest extends HttpServletRequestWrapper {
+		protected final String contextPath;
+		protected final String servletPath;
+		protected final String pathInfo;
+
+		protected AsyncRequest(HttpServletRequest request) {
+			super(request);
+			this.contextPath = request.getContextPath();
+			this.servletPath = request.getServletPath();
+			this.pathInfo = request.getPathInfo();
+		}
+
+		@Override
+		public String getContextPath() {
+			return contextPath;
+		}
+
+		@Override
+		public String getServletPath() {
+			return servletPath;
+		}
+
+		@Override
+		public String getPathInfo() {
+			return pathInfo;
+		}
+	}
+
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.olingo.odata2.api.ODataDebugCallback;
+import org.apache.olingo.odata2.api.ODataDebugResponseWrapperCallback;
+import org.apache.olingo.odata2.api.processor.ODataContext;
+import org.apache.olingo.odata2.api.processor.ODataContext.RuntimeMeasurement;
+import org.apache.olingo.odata2.api.processor.ODataRequest;
+import org.apache.olingo.odata2.api.processor.ODataResponse;
+import org.apache.olingo.odata2.api.uri.UriInfo;
+
+import com.google.gson.stream.JsonWriter;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Per-request timing of the OData processing phases.
+ *
+ * Turns on the runtime measurements of Olingo (its debug mode, see ODataContext.startRuntimeMeasurement)
+ * and sums them up by phase:
+ * - parse: URI parsing;
+ * - read: data source reads and data store queries and counts, including the reads of $expand-ed navigations;
+ * - filter: $filter, $orderby, $skip and $top applied by ListsProcessor;
+ * - serialize / deserialize: JSON/Atom writing and reading;
+ * - other: everything else, eg content negotiation;
+ * - total: the whole OData request.
+ * Time spent in nested phases is not counted in the outer phase (eg $expand reads are not serialize time).
+ * Traced JSON feeds are serialized in memory to be timed, instead of while they are sent (see MockFeedStream).
+ *
+ * The phases are sent in a Server-Timing response header, along with the request ID in X-Request-ID
+ * (the one of the request, or a generated one). Sampled requests are kept in a ring buffer (see getTraces).
+ * Requests with an "odata-debug" (json/html/download) query option get the Olingo debug output instead, only
+ * if enabled (see ODataMockServerBuilder.debugOutput), as it exposes stack traces and server internals.
+ * Otherwise the option is removed before Olingo sees it (see MockServlet and MockListsProcessor), since
+ * Olingo's debug mode has to stay on for the runtime measurements.
+ */
+public class MockTracer implements ODataDebugCallback, ODataDebugResponseWrapperCallback {
+
+	public static final String REQUEST_ID_HEADER = "X-Request-ID";
+	public static final String SERVER_TIMING_HEADER = "Server-Timing";
+	/** Query option of the Olingo debug output */
+	public static final String DEBUG_OPTION = "odata-debug";
+
+	/** Maximum number of traces kept */
+	protected static final int LOG_SIZE = 1000;
+
+	protected final double sampleRate;
+	/** Whether requests may get the Olingo debug output */
+	@Getter
+	protected final boolean debugOutput;
+	protected final AtomicLong requestIds = new AtomicLong();
+	protected final AtomicLong sampled = new AtomicLong();
+	protected final AtomicReferenceArray<Trace> traces = new AtomicReferenceArray<>(LOG_SIZE);
+
+	/**
+	 * @param sampleRate Fraction of the requests kept in the trace log (0 to 1)
+	 * @param debugOutput Whether requests with an odata-debug query option get the Olingo debug output
+	 */
+	MockTracer(double sampleRate, boolean debugOutput) {
+		this.sampleRate = sampleRate;
+		this.debugOutput = debugOutput;
+	}
+
+	/**
+	 * Olingo's debug mode, which enables the runtime measurements of every request
+	 * (its debug output is controlled by the odata-debug query option, see debugOutput)
+	 */
+	@Override
+	public boolean isDebugEnabled() {
+		return true;
+	}
+
+	/**
+	 * Removes the odata-debug query option of an OData request (eg an operation of a $batch request)
+	 */
+	static ODataRequest withoutDebugOption(ODataRequest request) {
+		if (!request.getAllQueryParameters().containsKey(DEBUG_OPTION))
+			return request;
+		Map<String, List<String>> options = new HashMap<>(request.getAllQueryParameters());
+		options.remove(DEBUG_OPTION);
+		return ODataRequest.fromRequest(request).allQueryParameters(options).build();
+	}
+
+	@Override
+	public ODataResponse handle(ODataContext context, ODataRequest request, ODataResponse response,
+			UriInfo uriInfo, Exception exception) {
+		String requestId = request.getRequestHeaderValue(REQUEST_ID_HEADER);
+		if (requestId == null)
+			requestId = Long.toString(requestIds.incrementAndGet());
+		Map<String, Long> phases = phases(context.getRuntimeMeasurements());
+
+		StringBuilder serverTiming = new StringBuilder();
+		for (Map.Entry<String, Long> phase : phases.entrySet()) {
+			if (serverTiming.length() > 0)
+				serverTiming.append(", ");
+			serverTiming.append(phase.getKey()).append(";dur=").append(phase.getValue() / 1000 / 1000.0);
+		}
+
+		if (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate) {
+			int status = response.getStatus() == null ? 0 : response.getStatus().getStatusCode();
+			traces.set((int) (sampled.getAndIncrement() % LOG_SIZE), new Trace(requestId, System.currentTimeMillis(),
+					request.getMethod().name(), request.getPathInfo().getRequestUri().toString(), status, phases));
+		}
+
+		return ODataResponse.fromResponse(response)
+				.header(REQUEST_ID_HEADER, requestId)
+				.header(SERVER_TIMING_HEADER, serverTiming.toString())
+				.build();
+	}
+
+	/**
+	 * Sum up runtime measurements by phase
+	 * @param measurements Measurements of a request, in start order
+	 * @return Duration in nanoseconds by phase name (only phases with measurements, and total)
+	 */
+	protected static Map<String, Long> phases(List<RuntimeMeasurement> measurements) {
+		Map<String, Long> phases = new LinkedHashMap<>();
+		long total = 0;
+
+		// Measurements of a request are properly nested, so the enclosing phases are on a stack;
+		//  each phase is charged its duration minus the duration of the phases nested in it
+		Deque<RuntimeMeasurement> open = new ArrayDeque<>();
+		for (RuntimeMeasurement measurement : measurements) {
+			String phase = phase(measurement);
+			if (phase == null || measurement.getTimeStopped() == 0)
+				continue;
+			while (!open.isEmpty() && open.peek().getTimeStopped() <= measurement.getTimeStarted())
+				open.pop();
+
+			long duration = measurement.getTimeStopped() - measurement.getTimeStarted();
+			phases.merge(phase, duration, Long::sum);
+			if (open.isEmpty())
+				total += duration;
+			else
+				phases.merge(phase(open.peek()), -duration, Long::sum);
+			open.push(measurement);
+		}
+
+		phases.put("total", total);
+		return phases;
+	}
+
+	/**
+	 * Get the phase of a runtime measurement
+	 * @return Phase name, or null if the measurement is part of its enclosing phase
+	 */
+	protected static String phase(RuntimeMeasurement measurement) {
+		String className = measurement.getClassName();
+		String methodName = measurement.getMethodName();
+		switch (className) {
+		case "ODataRequestHandler":
+			return "other";
+		case "UriParserImpl":
+			return "parse";
+		case "EntityProvider":
+			return methodName.startsWith("write") ? "serialize" : "deserialize";
+		case "EntityConsumer":
+			return "deserialize";
+		default:
+			switch (methodName) {
+			case "retrieveData":
+			case "query":
+			case "count":
+			case "readRelatedData":
+				return "read";
+			case "applySystemQueryOptions":
+				return "filter";
+			default:
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Get the traces in the log, newest first
+	 */
+	public List<Trace> getTraces() {
+		List<Trace> list = new ArrayList<>();
+		long last = sampled.get();
+		for (long i = last - 1; i >= 0 && i >= last - LOG_SIZE; i--) {
+			Trace trace = traces.get((int) (i % LOG_SIZE));
+			if (trace != null)
+				list.add(trace);
+		}
+		return list;
+	}
+
+	/**
+	 * Write traces as a JSON array, newest first
+	 * @param out Writer
+	 * @param requestId Request ID of the traces to write, or null for all traces
+	 * @throws IOException
+	 */
+	public void write(Writer out, String requestId) throws IOException {
+		JsonWriter json = new JsonWriter(out);
+		json.beginArray();
+		for (Trace trace : getTraces()) {
+			if (requestId != null && !requestId.equals(trace.requestId))
+				continue;
+			json.beginObject()
+				.name("requestId").value(trace.requestId)
+				.name("timestamp").value(trace.timestamp)
+				.name("method").value(trace.method)
+				.name("uri").value(trace.uri)
+				.name("status").value(trace.status)
+				.name("phases").beginObject();
+			for (Map.Entry<String, Long> phase : trace.phases.entrySet())
+				json.name(phase.getKey()).value(phase.getValue() / 1000 / 1000.0);
+			json.endObject().endObject();
+		}
+		json.endArray();
+		json.flush();
+	}
+
+
+	/**
+	 * Phase timings of a request
+	 */
+	@Getter
+	@RequiredArgsConstructor
+	public static class Trace {
+		protected final String requestId;
+		/** Time the request finished (epoch milliseconds) */
+		protected final long timestamp;
+		protected final String method;
+		protected final String uri;
+		protected final int status;
+		/** Duration in nanoseconds by phase name */
+		protected final Map<String, Long> phases;
+
+		public Map<String, Long> getPhases() {
+			return Collections.unmodifiableMap(phases);
+		}
+	}
+
+}
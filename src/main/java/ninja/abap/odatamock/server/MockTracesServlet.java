@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Admin endpoint serving the sampled request traces as JSON (see MockTracer).
+ * The "id" query parameter selects the traces of a single request ID.
+ */
+@RequiredArgsConstructor
+@SuppressWarnings("serial")
+class MockTracesServlet extends HttpServlet {
+
+	protected final MockTracer tracer;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("application/json; charset=utf-8");
+		tracer.write(resp.getWriter(), req.getParameter("id"));
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2019 Guilherme Maeda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.abap.odatamock.server;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.olingo.odata2.annotation.processor.core.datasource.DataSource;
+import org.apache.olingo.odata2.api.ODataCallback;
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
+import org.apache.olingo.odata2.api.edm.EdmEntityType;
+import org.apache.olingo.odata2.api.edm.EdmException;
+import org.apache.olingo.odata2.api.ep.EntityProviderWriteProperties;
+import org.apache.olingo.odata2.api.ep.callback.OnWriteEntryContent;
+import org.apache.olingo.odata2.api.ep.callback.OnWriteFeedContent;
+import org.apache.olingo.odata2.api.ep.callback.WriteCallbackContext;
+import org.apache.olingo.odata2.api.ep.callback.WriteEntryCallbackContext;
+import org.apache.olingo.odata2.api.ep.callback.WriteEntryCallbackResult;
+import org.apache.olingo.odata2.api.ep.callback.WriteFeedCallbackContext;
+import org.apache.olingo.odata2.api.ep.callback.WriteFeedCallbackResult;
+import org.apache.olingo.odata2.api.exception.ODataApplicationException;
+import org.apache.olingo.odata2.api.exception.ODataException;
+import org.apache.olingo.odata2.api.exception.ODataNotFoundException;
+import org.apache.olingo.odata2.api.processor.ODataContext;
+
+/**
+ * Callback that writes $expand-ed navigation properties of mock records.
+ * Works like the callback of Olingo's ListsProcessor, but finds the parent record of each entry of
+ * a feed with a key lookup in the data store instead of scanning the feed, and writes the stored records
+ * without copying them.
+ */
+class MockWriteCallback implements OnWriteEntryContent, OnWriteFeedContent {
+
+	protected final ODataContext odataContext;
+	protected final DataSource dataSource;
+	protected final MockDataStore dataStore;
+	protected final URI serviceRoot;
+
+	/** Records being written - a list of records (feed) or a single record (entry) */
+	protected final Object data;
+
+	protected MockWriteCallback(ODataContext odataContext, DataSource dataSource, MockDataStore dataStore,
+			URI serviceRoot, Object data) {
+		this.odataContext = odataContext;
+		this.dataSource = dataSource;
+		this.dataStore = dataStore;
+		this.serviceRoot = serviceRoot;
+		this.data = data;
+	}
+
+	/**
+	 * Creates the callbacks for all navigation properties of an Entity Type
+	 * @return Callbacks by navigation property name, or null if there are no navigation properties
+	 */
+	static Map<String, ODataCallback> create(ODataContext odataContext, DataSource dataSource,
+			MockDataStore dataStore, URI serviceRoot, Object data, EdmEntityType entityType) throws EdmException {
+		List<String> navigationPropertyNames = entityType.getNavigationPropertyNames();
+		if (navigationPropertyNames.isEmpty())
+			return null;
+
+		MockWriteCallback callback = new MockWriteCallback(odataContext, dataSource, dataStore, serviceRoot, data);
+		Map<String, ODataCallback> callbacks = new HashMap<>();
+		for (String name : navigationPropertyNames)
+			callbacks.put(name, callback);
+		return callbacks;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public WriteFeedCallbackResult retrieveFeedResult(WriteFeedCallbackContext context)
+			throws ODataApplicationException {
+		try {
+			EdmEntitySet targetEntitySet = context.getSourceEntitySet().getRelatedEntitySet(context.getNavigationProperty());
+			List<Map<String, Object>> relatedData;
+			int timingHandle = odataContext.startRuntimeMeasurement(getClass().getSimpleName(), "readRelatedData");
+			try {
+				relatedData = (List<Map<String, Object>>) readRelatedData(context);
+			}
+			catch (ODataNotFoundException e) {
+				relatedData = null;
+			}
+			finally {
+				odataContext.stopRuntimeMeasurement(timingHandle);
+			}
+			if (relatedData == null)
+				relatedData = Collections.emptyList();
+
+			WriteFeedCallbackResult result = new WriteFeedCallbackResult();
+			result.setFeedData(relatedData);
+			result.setInlineProperties(EntityProviderWriteProperties.serviceRoot(serviceRoot)
+					.callbacks(create(odataContext, dataSource, dataStore, serviceRoot, relatedData,
+							targetEntitySet.getEntityType()))
+					.expandSelectTree(context.getCurrentExpandSelectTreeNode())
+					.selfLink(context.getSelfLink())
+					.build());
+			return result;
+		}
+		catch (ODataException e) {
+			throw new ODataApplicationException(e.getLocalizedMessage(), Locale.ROOT, e);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public WriteEntryCallbackResult retrieveEntryResult(WriteEntryCallbackContext context)
+			throws ODataApplicationException {
+		try {
+			EdmEntitySet targetEntitySet = context.getSourceEntitySet().getRelatedEntitySet(context.getNavigationProperty());
+			Map<String, Object> relatedData;
+			int timingHandle = odataContext.startRuntimeMeasurement(getClass().getSimpleName(), "readRelatedData");
+			try {
+				relatedData = (Map<String, Object>) readRelatedData(context);
+			}
+			catch (ODataNotFoundException e) {
+				relatedData = null;
+			}
+			finally {
+				odataContext.stopRuntimeMeasurement(timingHandle);
+			}
+
+			WriteEntryCallbackResult result = new WriteEntryCallbackResult();
+			if (relatedData == null) {
+				result.setEntryData(Collections.emptyMap());
+			}
+			else {
+				result.setEntryData(relatedData);
+				result.setInlineProperties(EntityProviderWriteProperties.serviceRoot(serviceRoot)
+						.callbacks(create(odataContext, dataSource, dataStore, serviceRoot, relatedData,
+							targetEntitySet.getEntityType()))
+						.expandSelectTree(context.getCurrentExpandSelectTreeNode())
+						.build());
+			}
+			return result;
+		}
+		catch (ODataException e) {
+			throw new ODataApplicationException(e.getLocalizedMessage(), Locale.ROOT, e);
+		}
+	}
+
+	protected Object readRelatedData(WriteCallbackContext context) throws ODataException {
+		EdmEntitySet sourceEntitySet = context.getSourceEntitySet();
+		Object sourceData = data instanceof List
+				? findRecord(sourceEntitySet, context.extractKeyFromEntryData())
+				: data;
+		EdmEntitySet targetEntitySet = sourceEntitySet.getRelatedEntitySet(context.getNavigationProperty());
+		if (dataSource instanceof MockDataSource)
+			return ((MockDataSource) dataSource).readRelatedData(sourceEntitySet, sourceData,
+					context.getNavigationProperty().getName(), targetEntitySet, Collections.emptyMap());
+		return dataSource.readRelatedData(sourceEntitySet, sourceData, targetEntitySet, Collections.emptyMap());
+	}
+
+	/**
+	 * Finds the stored record of a feed entry by its key, through the key index of the data store.
+	 * If the record was deleted since the feed was read, its key fields are used.
+	 */
+	protected Map<String, Object> findRecord(EdmEntitySet entitySet, Map<String, Object> key) throws ODataException {
+		Map<String, Object> record = dataStore.getRecordByKey(entitySet.getName(), key);
+		return record != null ? record : key;
+	}
+
+}
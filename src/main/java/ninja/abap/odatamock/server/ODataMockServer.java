@@ -18,19 +18,36 @@ package ninja.abap.odatamock.server;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.olingo.odata2.annotation.processor.core.datasource.DataSource;
 import org.apache.olingo.odata2.api.edm.Edm;
-import org.apache.olingo.odata2.api.ep.EntityProvider;
 import org.apache.olingo.odata2.api.exception.ODataException;
 import org.apache.olingo.odata2.core.edm.provider.EdmxProvider;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import lombok.Getter;
 import lombok.NonNull;
@@ -48,6 +65,24 @@ public class ODataMockServer {
 	@Getter
 	protected MockDataStore dataStore;
 
+	/**
+	 * Request, data and index metrics (see ODataMockServerBuilder.metricsPath)
+	 */
+	@Getter
+	protected MockMetrics metrics;
+
+	/**
+	 * Request phase timings, or null if tracing is disabled (see ODataMockServerBuilder.tracing)
+	 */
+	@Getter
+	protected MockTracer tracer;
+
+	/**
+	 * Cache of read responses, or null if disabled (see ODataMockServerBuilder.responseCache)
+	 */
+	@Getter
+	protected MockResponseCache responseCache;
+
 	@Getter
 	protected final String edmx;
 	@Getter
@@ -59,6 +94,7 @@ public class ODataMockServer {
 	protected DataSource dataSource;
 	protected MockServiceFactory serviceFactory;
 	protected MockServlet servlet;
+	protected MockDataWatcher watcher;
 
 	/**
 	 * Constructor - Initializes and starts the OData server.
@@ -71,27 +107,91 @@ public class ODataMockServer {
 			throws ODataException, IOException, Exception {
 		this.options = options;
 
-		// Parse the provided metadata file using Olingo and initialize the
-		//  in-memory Olingo data store and processor.
+		// Parse the provided metadata file using Olingo (shared by servers with the same metadata)
+		//  and initialize the in-memory Olingo data store and processor.
 		this.edmx = IOUtils.toString(options.edmx(), StandardCharsets.UTF_8);
-		this.edm = EntityProvider.readMetadata(IOUtils.toInputStream(this.edmx, StandardCharsets.UTF_8), true);
-		this.edmProvider = new EdmxProvider().parse(IOUtils.toInputStream(this.edmx, StandardCharsets.UTF_8), true);
+		MockMetadata metadata = MockMetadata.of(this.edmx);
+		this.edm = metadata.getEdm();
+		this.edmProvider = metadata.getEdmProvider();
 
 		this.dataStore = new MockDataStore(edmProvider);
+		for (Map.Entry<String, Map<String, MockDataStore.IndexType>> esIndexes : options.indexes().entrySet()) {
+			for (Map.Entry<String, MockDataStore.IndexType> index : esIndexes.getValue().entrySet())
+				dataStore.createIndex(esIndexes.getKey(), index.getKey(), index.getValue());
+		}
 		this.dataSource = createDataSource();
 
-		this.serviceFactory = new MockServiceFactory(edmProvider, dataSource);
-		this.servlet = new MockServlet(serviceFactory);
+		if (options.tracing())
+			this.tracer = new MockTracer(options.traceSampleRate(), options.debugOutput());
+		this.metrics = new MockMetrics(edm, dataStore);
+		this.serviceFactory = new MockServiceFactory(edm, edmProvider, dataSource, tracer, metrics,
+				options.pageSize(), new HashMap<>(options.pageSizes()),
+				options.batchThreads() > 1 ? newBatchExecutor(options.batchThreads()) : null);
+		this.servlet = new MockServlet(serviceFactory, metrics);
+		servlet.setDebugOutput(tracer != null && tracer.isDebugOutput());
+		if (options.virtualThreads())
+			servlet.setExecutor(newVirtualThreadExecutor());
+		if (options.responseCache()) {
+			this.responseCache = new MockResponseCache(dataStore, options.responseCacheSize());
+			servlet.setResponseCache(responseCache);
+		}
 
 		// Load/generate mock data
-		if (options.localDataPath() != null) {
-			MockDataLoader loader = new MockDataLoader(edm, edmProvider, options.localDataPath(), dataStore);
-			loader.load(options.generateMissing());
-		}
+		if (options.localDataPath() != null)
+			loadData();
 
 		start();
 	}
 
+	/**
+	 * Load the mock data from the local directory, or from its snapshot if one was cached.
+	 * Snapshots that fail to load are recorded in the metrics (see MockMetrics.getLastSnapshotError),
+	 * and rewritten.
+	 * In lazy mode, each Entity Set is loaded on first access instead.
+	 * In watch mode, changed files are reloaded while the server is started.
+	 * @throws ODataException If the mock data fails to load
+	 * @throws IOException If the data directory or the snapshot directory cannot be read/written
+	 */
+	protected void loadData() throws ODataException, IOException {
+		MockDataGenerator generator = new MockDataGenerator(edm, edmProvider)
+			.recordCount(options.recordCount())
+			.recordCounts(options.recordCounts())
+			.seed(options.seed())
+			.fanOut(options.fanOut());
+		MockDataLoader loader = new MockDataLoader(edm, edmProvider, options.localDataPath(), dataStore, generator);
+		if (options.watch())
+			watcher = new MockDataWatcher(loader, metrics);
+
+		if (options.lazy()) {
+			dataStore.setMaterializer(entitySet -> loader.load(entitySet, options.generateMissing()));
+			return;
+		}
+
+		Path snapshot = null;
+		if (options.snapshotPath() != null) {
+			String generation = !options.generateMissing() ? "none" : String.format("%d %s %d %s",
+					options.recordCount(), new TreeMap<>(options.recordCounts()), options.seed(), options.fanOut());
+			String key = MockDataSnapshot.key(edmx, Paths.get(options.localDataPath()), generation);
+			snapshot = Paths.get(options.snapshotPath()).resolve(key + ".snapshot");
+			if (Files.exists(snapshot)) {
+				try {
+					dataStore.loadSnapshot(snapshot);
+					return;
+				}
+				catch (IOException e) {
+					// Unreadable or invalid snapshot: it is replaced by one of the data loaded below
+					metrics.recordSnapshotFailure(e);
+					Files.deleteIfExists(snapshot);
+				}
+			}
+		}
+
+		loader.load(options.generateMissing());
+
+		if (snapshot != null)
+			dataStore.saveSnapshot(snapshot);
+	}
+
 	/**
 	 * Start the Jetty HTTP server and registers the OData servlet
 	 * @throws Exception If Jetty fails to start
@@ -100,21 +200,49 @@ public class ODataMockServer {
 		if (server != null && server.isRunning())
 			return; // Already started
 
-		server = new Server();
-        ServerConnector connector = new ServerConnector(server);
+		QueuedThreadPool threadPool = new QueuedThreadPool(options.maxThreads(), options.minThreads());
+		threadPool.setName("odata-mock");
+		server = new Server(threadPool);
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        ConnectionFactory[] connectionFactories = options.http2()
+        		? new ConnectionFactory[] { new HttpConnectionFactory(httpConfig),
+        				new HTTP2CServerConnectionFactory(httpConfig) }
+        		: new ConnectionFactory[] { new HttpConnectionFactory(httpConfig) };
+        ServerConnector connector = new ServerConnector(server, options.acceptors(), options.selectors(),
+        		connectionFactories);
         connector.setPort(options.portNumber());
+        connector.setIdleTimeout(options.idleTimeout());
+        connector.setAcceptQueueSize(options.acceptQueueSize());
         server.setConnectors(new Connector[] {connector});
 
     	ServletHolder servletHolder = new ServletHolder(servlet);
+    	servletHolder.setAsyncSupported(true);
 
         ServletContextHandler newHandler = new ServletContextHandler(ServletContextHandler.SESSIONS);
         newHandler.setContextPath("/");
 
     	String servletPath = StringUtils.removeEnd(options.rootPath(), "/");
     	newHandler.addServlet(servletHolder, servletPath + "/*");
-		server.setHandler(newHandler);
+    	if (options.metricsPath() != null)
+    		newHandler.addServlet(new ServletHolder(new MockMetricsServlet(metrics)), options.metricsPath());
+    	if (options.tracesPath() != null && tracer != null)
+    		newHandler.addServlet(new ServletHolder(new MockTracesServlet(tracer)), options.tracesPath());
+		if (options.compression()) {
+			GzipHandler gzipHandler = new GzipHandler();
+			gzipHandler.setMinGzipSize(options.compressionMinSize());
+			gzipHandler.setCompressionLevel(options.compressionLevel());
+			gzipHandler.setIncludedMethods("GET", "POST"); // POST for $batch responses
+			gzipHandler.setInflateBufferSize(8192);
+			gzipHandler.setHandler(newHandler);
+			server.setHandler(gzipHandler);
+		}
+		else {
+			server.setHandler(newHandler);
+		}
 
     	server.start();
+    	if (watcher != null)
+    		watcher.start();
 
     	URI rootUri = server.getURI();
     	this.uri = new URI(rootUri.getScheme(), rootUri.getUserInfo(), rootUri.getHost(),
@@ -122,10 +250,12 @@ public class ODataMockServer {
 	}
 
 	/**
-	 * Stop the Jetty HTTP server
+	 * Stop the Jetty HTTP server (and the watching of the local data files)
 	 * @throws Exception If Jetty fails to stop
 	 */
 	public void stop() throws Exception {
+		if (watcher != null)
+			watcher.close();
 		if (server != null && server.isRunning())
 			server.stop();
 	}
@@ -156,6 +286,39 @@ public class ODataMockServer {
 		return this;
 	}
 
+	/**
+	 * Creates an executor that runs each task on a new virtual thread.
+	 * Looked up by reflection, as virtual threads are not available in all supported Java versions.
+	 * @return Virtual thread executor
+	 * @throws UnsupportedOperationException If the Java runtime has no virtual threads
+	 */
+	protected static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+		}
+	}
+
+	/**
+	 * Creates the pool that runs the retrieve operations of $batch requests concurrently.
+	 * Its daemon threads end when idle, so the pool needs no shutdown.
+	 * @param threads Maximum number of threads
+	 * @return Batch executor
+	 */
+	protected static ExecutorService newBatchExecutor(int threads) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "odata-mock-batch-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	/**
 	 * Creates a new DataSource instance for handling the OData requests.
 	 * Override this method if you need more advanced customization.
@@ -20,6 +20,9 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 import lombok.Data;
 import lombok.NonNull;
@@ -49,6 +52,84 @@ public class ODataMockServerBuilder {
 	 */
 	protected String rootPath = "/";
 
+	/**
+	 * Number of threads accepting connections.
+	 * Default is -1 (chosen by Jetty from the number of CPUs).
+	 */
+	protected int acceptors = -1;
+
+	/**
+	 * Number of threads selecting the connections with data to read or write.
+	 * Default is -1 (chosen by Jetty from the number of CPUs).
+	 */
+	protected int selectors = -1;
+
+	/**
+	 * Minimum number of threads in the Jetty thread pool.
+	 * Default value is 8.
+	 */
+	protected int minThreads = 8;
+
+	/**
+	 * Maximum number of threads in the Jetty thread pool, which includes the acceptor and selector threads.
+	 * Raise it to serve more concurrent clients (or see virtualThreads).
+	 * Default value is 200.
+	 */
+	protected int maxThreads = 200;
+
+	/**
+	 * Time in milliseconds an idle connection is kept open.
+	 * Default value is 30000.
+	 */
+	protected long idleTimeout = 30000;
+
+	/**
+	 * Number of connections the operating system queues while all acceptors are busy.
+	 * Default value is 0 (operating system default).
+	 */
+	protected int acceptQueueSize = 0;
+
+	/**
+	 * Accept cleartext HTTP/2 (h2c) connections besides HTTP/1.1, both by prior knowledge and by upgrade
+	 * from HTTP/1.1, so clients can multiplex many requests over one connection.
+	 * Default value is false.
+	 */
+	protected boolean http2 = false;
+
+	/**
+	 * Compress responses with gzip for clients that accept it, and accept gzip-compressed requests.
+	 * Default value is false.
+	 */
+	protected boolean compression = false;
+
+	/**
+	 * Minimum size in bytes of compressed responses (see compression); smaller responses are not compressed.
+	 * Default value is 1024.
+	 */
+	protected int compressionMinSize = 1024;
+
+	/**
+	 * Compression level (see compression), from 1 (fastest) to 9 (smallest).
+	 * Default value is -1 (zlib default, currently 6).
+	 */
+	protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * Process each request on a new virtual thread instead of a Jetty pool thread, so requests blocked in
+	 * Function Import handlers don't starve the pool. Requires Java 21 or later.
+	 * Default value is false.
+	 */
+	protected boolean virtualThreads = false;
+
+	/**
+	 * Number of threads running the retrieve (GET) operations of $batch requests that are outside of change
+	 * sets. Above 1, consecutive retrieve operations run concurrently, so a batch takes about as long as its
+	 * slowest operation instead of their sum; responses and change sets keep their order. The threads are
+	 * shared by all $batch requests. Function Import handlers called this way must be thread-safe.
+	 * Default value is 1 (operations run one after another).
+	 */
+	protected int batchThreads = 1;
+
 	/**
 	 * Local directory for serving Entity Set data from.
 	 * Files in this directory must have the same name as the Entity Sets and ".json" extension.
@@ -61,6 +142,132 @@ public class ODataMockServerBuilder {
 	 */
 	protected boolean generateMissing = false;
 
+	/**
+	 * Load (or generate) the data of each Entity Set the first time it is accessed, instead of at startup,
+	 * so startup time depends on the Entity Sets used rather than on the size of the metadata.
+	 * Snapshots (see snapshotPath) are not used in lazy mode.
+	 * Default value is false.
+	 */
+	protected boolean lazy = false;
+
+	/**
+	 * Watch localDataPath and reload the data of an Entity Set when its JSON file is created or changed
+	 * (hot reload). Only the records that changed are replaced; deleted files are ignored.
+	 * Default value is false.
+	 */
+	protected boolean watch = false;
+
+	/**
+	 * Number of records generated for each Entity Set (see generateMissing).
+	 * Default value is 50.
+	 */
+	protected int recordCount = MockDataGenerator.RECORD_COUNT;
+
+	/**
+	 * Number of records generated for specific Entity Sets (Entity Set name / count), overriding recordCount.
+	 */
+	protected Map<String, Integer> recordCounts = new HashMap<>();
+
+	/**
+	 * Seed of the random values in generated data: the same seed generates the same data.
+	 * Default value is 0.
+	 */
+	protected long seed = 0;
+
+	/**
+	 * Distribution of generated records over the records they depend on (see generateMissing), e.g. of
+	 * Order_Details over Orders. Generated foreign keys always hold keys of existing records.
+	 * Default value is UNIFORM.
+	 */
+	protected @NonNull MockFanOut fanOut = MockFanOut.UNIFORM;
+
+	/**
+	 * Maximum number of records per feed response (server-driven paging). Larger feeds end with a next link
+	 * ("__next" in JSON) with an opaque $skiptoken that resumes right after the last record of the page.
+	 * 0 disables paging. Feeds served by Olingo's ListsProcessor are always paged by 100 records, with its
+	 * own $skiptoken (the key values of the next record): navigation feeds (eg Orders(1)/Order_Details),
+	 * Function Imports, and feeds whose $filter or $orderby the query engine does not support (eg properties
+	 * of navigation targets, as in $filter=Customer/Country eq 'France').
+	 * Without $orderby, feeds (and their pages, $top and $skip) follow the insertion order of the records,
+	 * not their key order as in Olingo's ListsProcessor. Request $orderby on the key properties for that.
+	 * Default value is 100.
+	 */
+	protected int pageSize = MockListsProcessor.SERVER_PAGING_SIZE;
+
+	/**
+	 * Page sizes of specific Entity Sets (Entity Set name / page size), overriding pageSize.
+	 */
+	protected Map<String, Integer> pageSizes = new HashMap<>();
+
+	/**
+	 * Local directory for caching the mock data loaded from localDataPath as binary snapshots.
+	 * Snapshots are keyed by a hash of the Edmx, the data generation options and the JSON files, so
+	 * servers started later with the same inputs load the snapshot (memory-mapped) instead of parsing
+	 * the JSON files.
+	 * Default is null (no snapshots).
+	 */
+	protected String snapshotPath = null;
+
+	/**
+	 * Secondary indexes to create (Entity Set name / property name / index type).
+	 * Key and foreign key properties are always indexed.
+	 */
+	protected Map<String, Map<String, MockDataStore.IndexType>> indexes = new HashMap<>();
+
+	/**
+	 * Cache the responses to read (GET) requests, and answer If-None-Match requests with 304 Not Modified
+	 * while the data they read is unchanged (see MockResponseCache). Changes made through the
+	 * MockDataStore invalidate the cached responses; records changed in place (eg maps returned by
+	 * getEntitySet) do not. Responses served from the cache are not traced (see tracing).
+	 * Default value is false.
+	 */
+	protected boolean responseCache = false;
+
+	/**
+	 * Maximum memory used by cached responses (see responseCache), in bytes.
+	 * Least recently used responses are evicted first (approximately); responses larger than 1/8 of it are
+	 * not cached.
+	 * Default value is 64 MB.
+	 */
+	protected long responseCacheSize = 64 * 1024 * 1024;
+
+	/**
+	 * Path of an admin endpoint serving request, data and index metrics in Prometheus text format
+	 * (eg "/metrics"). Metrics are also available by ODataMockServer.getMetrics().
+	 * Default is null (no endpoint).
+	 */
+	protected String metricsPath = null;
+
+	/**
+	 * Time the processing phases of each request (URI parsing, reads, filtering, serialization) and send
+	 * them in a Server-Timing response header. This turns on the runtime measurements of Olingo, which
+	 * add some overhead to every request.
+	 * Default value is false.
+	 */
+	protected boolean tracing = false;
+
+	/**
+	 * Fraction of the traced requests (see tracing) kept in the trace log, from 0 to 1.
+	 * The log keeps the latest 1000 sampled requests.
+	 * Default value is 1 (all requests).
+	 */
+	protected double traceSampleRate = 1;
+
+	/**
+	 * Path of an admin endpoint serving the trace log as JSON (eg "/traces"), optionally of a single
+	 * request with the "id" parameter (eg "/traces?id=123"). Requires tracing.
+	 * Default is null (no endpoint).
+	 */
+	protected String tracesPath = null;
+
+	/**
+	 * Answer requests with an "odata-debug" query option (json, html or download) with the Olingo debug
+	 * output, which shows the request, the response, the runtime measurements and stack traces. Requires
+	 * tracing. When disabled, the option is ignored.
+	 * Default value is false.
+	 */
+	protected boolean debugOutput = false;
+
 	/**
 	 * Read the Edmx metadata from a local file.
 	 * @param edmxPath Path (absolute or relative) to the local directory containing the JSON files
@@ -72,6 +279,44 @@ public class ODataMockServerBuilder {
 		return this;
 	}
 
+	/**
+	 * Set the number of records generated for an Entity Set (see generateMissing).
+	 * Large counts (millions of records) are generated in parallel.
+	 * @param entitySet Entity Set name
+	 * @param count Number of records
+	 * @return This Builder instance (for fluent calls)
+	 */
+	public ODataMockServerBuilder recordCount(@NonNull String entitySet, int count) {
+		recordCounts.put(entitySet, count);
+		return this;
+	}
+
+	/**
+	 * Set the page size of an Entity Set (see pageSize).
+	 * @param entitySet Entity Set name
+	 * @param size Maximum number of records per feed response (0 = no paging)
+	 * @return This Builder instance (for fluent calls)
+	 */
+	public ODataMockServerBuilder pageSize(@NonNull String entitySet, int size) {
+		pageSizes.put(entitySet, size);
+		return this;
+	}
+
+	/**
+	 * Create a secondary index on Entity Set properties, to speed up $filter requests on them.
+	 * @param entitySet Entity Set name
+	 * @param type HASH to serve eq filters; SORTED to serve eq and range (lt, le, gt, ge) filters
+	 * @param properties Property names
+	 * @return This Builder instance (for fluent calls)
+	 */
+	public ODataMockServerBuilder index(@NonNull String entitySet, @NonNull MockDataStore.IndexType type,
+			String... properties) {
+		Map<String, MockDataStore.IndexType> esIndexes = indexes.computeIfAbsent(entitySet, es -> new HashMap<>());
+		for (String property : properties)
+			esIndexes.put(property, type);
+		return this;
+	}
+
 	/**
 	 * Create the OData server from the defined options.
 	 * The server is automatically started upon creation.
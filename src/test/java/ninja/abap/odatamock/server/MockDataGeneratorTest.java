@@ -3,6 +3,9 @@ package ninja.abap.odatamock.server;
 import org.apache.olingo.odata2.api.edm.Edm;
 import org.apache.olingo.odata2.api.edm.EdmEntityType;
 import org.apache.olingo.odata2.api.edm.EdmException;
+import org.apache.olingo.odata2.api.edm.EdmFacets;
+import org.apache.olingo.odata2.api.edm.EdmLiteralKind;
+import org.apache.olingo.odata2.api.edm.EdmSimpleType;
 import org.apache.olingo.odata2.api.edm.provider.EdmProvider;
 import org.apache.olingo.odata2.api.edm.provider.Facets;
 import org.apache.olingo.odata2.core.edm.EdmBinary;
@@ -14,10 +17,14 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
 import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import org.apache.olingo.odata2.core.edm.*;
 
@@ -51,6 +58,34 @@ public class MockDataGeneratorTest {
 		assertThat("1st record is not empty", data.get(0).get("CustomerName"), is("CustomerName 1"));
 	}
 
+	@Test
+	public void testRecordCount() throws Exception {
+		generator.recordCount(10).recordCounts(Collections.singletonMap("Products", 5000));
+		assertThat("Default record count is used", generator.generate("Invoices").size(), is(10));
+
+		List<Map<String, Object>> data = generator.generate("Products");
+		assertThat("Entity Set record count is used", data.size(), is(5000));
+		for (int i = 0; i < data.size(); i++)
+			assertThat("Records are in index order", data.get(i).get("ProductID"), is(i + 1));
+	}
+
+	@Test
+	public void testSeed() throws Exception {
+		generator.recordCounts(Collections.singletonMap("Products", 5000)).seed(42);
+		List<Map<String, Object>> data = generator.generate("Products");
+		List<Map<String, Object>> again = new MockDataGenerator(edm, edmProvider)
+				.recordCounts(Collections.singletonMap("Products", 5000)).seed(42).generate("Products");
+		List<Map<String, Object>> other = new MockDataGenerator(edm, edmProvider)
+				.recordCounts(Collections.singletonMap("Products", 5000)).seed(7).generate("Products");
+
+		assertThat("Same seed generates the same values", discontinued(again), is(discontinued(data)));
+		assertThat("Other seed generates other values", discontinued(other), not(discontinued(data)));
+	}
+
+	private static List<Object> discontinued(List<Map<String, Object>> products) {
+		return products.stream().map(p -> p.get("Discontinued")).collect(Collectors.toList());
+	}
+
 	@Test
 	public void testRecord() throws Exception {
 		EdmEntityType et = edm.getDefaultEntityContainer().getEntitySet("Invoices").getEntityType();
@@ -58,6 +93,36 @@ public class MockDataGeneratorTest {
 		assertThat("Record is not empty", data.get("Country"), is("Country 10"));
 	}
 
+	@Test
+	public void testCompiledValues() throws Exception {
+		for (EdmEntityType et : generator.etProperties.keySet()) {
+			for (int index : new int[] { 1, 25, 123, 40000, 1234567 }) {
+				Map<String, Object> record = generator.generateRecord(et, index);
+				for (Map.Entry<String, Object> field : record.entrySet()) {
+					EdmSimpleType type = (EdmSimpleType) et.getProperty(field.getKey()).getType();
+					EdmFacets facets = generator.etProperties.get(et).get(field.getKey()).getFacets();
+					String literal = type.valueToString(field.getValue(), EdmLiteralKind.JSON, facets);
+					assertThat("Value matches its literal: " + et.getName() + "." + field.getKey(),
+							type.valueOfString(literal, EdmLiteralKind.JSON, facets, type.getDefaultType()),
+							is(field.getValue()));
+				}
+			}
+		}
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(generator.date(10).toInstant().toEpochMilli());
+		String dateTimeOffset = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").format(calendar.getTime());
+		assertThat("Edm.DateTimeOffset is the local time as UTC",
+				generator.generateValue("Test", EdmDateTimeOffset.getInstance(), null, 10),
+				is(EdmDateTimeOffset.getInstance().valueOfString(dateTimeOffset, EdmLiteralKind.JSON, null, Calendar.class)));
+		assertThat("Edm.Guid is the index in each group",
+				generator.generateValue("Test", EdmGuid.getInstance(), null, 123),
+				is(UUID.fromString("00000123-0123-0123-0123-000000000123")));
+		assertThat("Edm.Decimal fits the precision",
+				generator.generateValue("Test", EdmDecimal.getInstance(), new Facets().setPrecision(3), 12345),
+				is(new BigDecimal(345)));
+	}
+
 	@Test
 	public void testEdmBinary() throws Exception {
 		Object value = generator.generateValue("Test", EdmBinary.getInstance(), null, 1);
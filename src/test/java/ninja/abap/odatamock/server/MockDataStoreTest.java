@@ -1,8 +1,10 @@
 package ninja.abap.odatamock.server;
 
 import org.apache.olingo.odata2.api.edm.Edm;
+import org.apache.olingo.odata2.api.edm.EdmEntitySet;
 import org.apache.olingo.odata2.api.edm.provider.EdmProvider;
 import org.apache.olingo.odata2.api.exception.ODataException;
+import org.apache.olingo.odata2.api.uri.UriParser;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -10,10 +12,26 @@ import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat; 
 import static org.hamcrest.Matchers.*;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ninja.abap.odatamock.server.ODataMockServer;
 import ninja.abap.odatamock.server.ODataMockServerBuilder;
@@ -103,6 +121,21 @@ public class MockDataStoreTest {
 		assertThat("Entity Set still has 1 record", dataStore.getEntitySet("Customers").size(), is(1));
 	}
 
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testGetData() throws Exception {
+		Map<String, Object> fields = new HashMap<>();
+		fields.put("CustomerID", "ANTON");
+		fields.put("CompanyName", "Antonio Moreno Taquería");
+		dataStore.put("Customers", fields);
+
+		Map<String, Object> key = new HashMap<>();
+		key.put("CustomerID", "ANTON");
+		assertThat("Record is found by its key fields",
+				dataStore.getData().get("Customers").get(key).get("CompanyName"), is("Antonio Moreno Taquería"));
+		assertThat("Other Entity Sets are empty", dataStore.getData().get("Orders").isEmpty(), is(true));
+	}
+
 	@Test
 	public void testPutMultipleRecords() throws Exception {
 		assertThat("Entity Set is empty", dataStore.getEntitySet("Customers").isEmpty(), is(true));
@@ -195,4 +228,579 @@ public class MockDataStoreTest {
 		assertThat("Entity Set is empty", dataStore.getEntitySet("Customers").isEmpty(), is(true));
 	}
 
-}
+	@Test
+	public void testCompositeKey() throws Exception {
+		Map<String, Object> fields = new HashMap<>();
+		fields.put("OrderID", 10248);
+		fields.put("ProductID", 11);
+		fields.put("Quantity", 12);
+		dataStore.put("Order_Details", fields);
+
+		fields = new HashMap<>();
+		fields.put("OrderID", 10248);
+		fields.put("ProductID", 42);
+		fields.put("Quantity", 10);
+		dataStore.put("Order_Details", fields);
+
+		Map<String, Object> key = new HashMap<>();
+		key.put("OrderID", 10248);
+		key.put("ProductID", 42);
+		assertThat("Record is found by composite key",
+				dataStore.getRecordByKey("Order_Details", key).get("Quantity"), is(10));
+
+		dataStore.remove("Order_Details", key);
+		assertThat("Record is removed by composite key", dataStore.getRecordByKey("Order_Details", key), nullValue());
+		assertThat("Other record is kept", dataStore.getEntitySet("Order_Details").size(), is(1));
+	}
+
+	@Test
+	public void testSnapshotRead() throws Exception {
+		Map<String, Object> fields = new HashMap<>();
+		fields.put("CustomerID", "ANTON");
+		dataStore.put("Customers", fields);
+		long version = dataStore.getVersion("Customers");
+
+		List<Map<String, Object>> snapshot = dataStore.getEntitySet("Customers");
+		assertThat("Unchanged Entity Set is not copied", dataStore.getEntitySet("Customers"), sameInstance(snapshot));
+
+		fields = new HashMap<>();
+		fields.put("CustomerID", "CHOPS");
+		dataStore.insert("Customers", fields);
+
+		assertThat("Old snapshot is not affected by writes", snapshot.size(), is(1));
+		assertThat("New snapshot contains the write", dataStore.getEntitySet("Customers").size(), is(2));
+		assertThat("Version was increased", dataStore.getVersion("Customers"), greaterThan(version));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSnapshotIsImmutable() throws Exception {
+		dataStore.getEntitySet("Customers").add(new HashMap<>());
+	}
+
+	@Test
+	public void testRemoveManyRecords() throws Exception {
+		List<Map<String, Object>> regions = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			Map<String, Object> region = new HashMap<>();
+			region.put("RegionID", i);
+			region.put("RegionDescription", "Region " + (i % 10));
+			regions.add(region);
+		}
+		dataStore.putAll("Regions", regions);
+		dataStore.createIndex("Regions", "RegionDescription", MockDataStore.IndexType.HASH);
+		List<Map<String, Object>> snapshot = dataStore.getEntitySet("Regions");
+
+		// Removes 1000 records, then 1000 more, after which most positions are empty and get compacted
+		Map<String, Object> key = new HashMap<>();
+		for (int i = 0; i < 3000; i++) {
+			if (i % 3 == 0)
+				continue;
+			key.put("RegionID", i);
+			dataStore.remove("Regions", key);
+			if (i == 1501)
+				assertThat("Records by index skip removed records",
+						dataStore.findRecords("Regions", Collections.singletonMap("RegionDescription", "Region 1")),
+						hasSize(199));
+		}
+
+		assertThat("Old snapshot is not affected by removes", snapshot.size(), is(3000));
+		List<Map<String, Object>> records = dataStore.getEntitySet("Regions");
+		assertThat("Records were removed", records.size(), is(1000));
+		assertThat("Insertion order is kept", records.get(1).get("RegionID"), is(3));
+		key.put("RegionID", 2997);
+		assertThat("Records are found by key", dataStore.getRecordByKey("Regions", key), notNullValue());
+		key.put("RegionID", 2998);
+		assertThat("Removed records are not found by key", dataStore.getRecordByKey("Regions", key), nullValue());
+		assertThat("Records are found by index",
+				dataStore.findRecords("Regions", Collections.singletonMap("RegionDescription", "Region 3")),
+				hasSize(100));
+
+		Map<String, Object> region = new HashMap<>();
+		region.put("RegionID", 2998);
+		dataStore.insert("Regions", region);
+		records = dataStore.getEntitySet("Regions");
+		assertThat("Inserted record is the last one", records.get(records.size() - 1), sameInstance(region));
+	}
+
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		final int writers = 8;
+		final int recordsPerWriter = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+		CountDownLatch startGate = new CountDownLatch(1);
+		AtomicBoolean writing = new AtomicBoolean(true);
+
+		List<Future<?>> writes = new ArrayList<>();
+		for (int w = 0; w < writers; w++) {
+			final int writer = w;
+			writes.add(executor.submit(() -> {
+				startGate.await();
+				for (int i = 0; i < recordsPerWriter; i++) {
+					Map<String, Object> customer = new HashMap<>();
+					customer.put("CustomerID", String.format("C%d-%d", writer, i));
+					customer.put("CompanyName", "Company " + i);
+					dataStore.insert("Customers", customer);
+
+					// Writers of other Entity Sets run at the same time
+					Map<String, Object> region = new HashMap<>();
+					region.put("RegionID", writer * recordsPerWriter + i);
+					dataStore.put("Regions", region);
+				}
+				return null;
+			}));
+		}
+
+		// Readers keep iterating over the data while it is being written
+		List<Future<?>> reads = new ArrayList<>();
+		for (int r = 0; r < 2; r++) {
+			reads.add(executor.submit(() -> {
+				startGate.await();
+				int lastSize = 0;
+				while (writing.get()) {
+					int size = 0;
+					for (Map<String, Object> record : dataStore.getEntitySet("Customers")) {
+						assertThat("Record is complete", record.get("CustomerID"), notNullValue());
+						size++;
+					}
+					assertThat("Entity Set never shrinks", size, greaterThanOrEqualTo(lastSize));
+					lastSize = size;
+				}
+				return null;
+			}));
+		}
+
+		startGate.countDown();
+		for (Future<?> write : writes)
+			write.get(60, TimeUnit.SECONDS);
+		writing.set(false);
+		for (Future<?> read : reads)
+			read.get(60, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		assertThat("No inserted record was lost", dataStore.getEntitySet("Customers").size(),
+				is(writers * recordsPerWriter));
+		assertThat("No put record was lost", dataStore.getEntitySet("Regions").size(),
+				is(writers * recordsPerWriter));
+
+		Map<String, Object> key = new HashMap<>();
+		for (int w = 0; w < writers; w++) {
+			for (int i = 0; i < recordsPerWriter; i++) {
+				key.put("CustomerID", String.format("C%d-%d", w, i));
+				assertThat("Record can be read by key", dataStore.getRecordByKey("Customers", key), notNullValue());
+			}
+		}
+	}
+
+	@Test
+	public void testQuery() throws Exception {
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Object> fields = new HashMap<>();
+			fields.put("ProductID", i);
+			fields.put("ProductName", "Product " + i);
+			fields.put("UnitPrice", new BigDecimal(i % 10).add(new BigDecimal("0.5")));
+			fields.put("Discontinued", i % 2 == 0);
+			records.add(fields);
+		}
+		dataStore.putAll("Products", records);
+
+		EdmEntitySet entitySet = edm.getDefaultEntityContainer().getEntitySet("Products");
+		MockQuery query = new MockQuery(entitySet)
+				.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), "Discontinued and UnitPrice ge 5M"))
+				.orderBy(UriParser.parseOrderBy(edm, entitySet.getEntityType(), "UnitPrice desc"))
+				.skip(3)
+				.top(5)
+				.countAll(true);
+		MockQuery.Result result = dataStore.query(query);
+
+		assertThat("All matching records were counted", result.count(), is(200));
+		assertThat("Page has $top records", result.records().size(), is(5));
+		List<Object> ids = new ArrayList<>();
+		for (Map<String, Object> record : result.records())
+			ids.add(record.get("ProductID"));
+		assertThat("Records are sorted, ties in insertion order", ids, contains(38, 48, 58, 68, 78));
+
+		result = dataStore.query(new MockQuery(entitySet)
+				.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), "substringof('99', ProductName)"))
+				.top(2));
+		assertThat("Unsorted records are in insertion order", result.records().get(1).get("ProductID"), is(199));
+		assertThat("Count was not requested", result.count(), nullValue());
+	}
+
+	@Test
+	public void testSortedPages() throws Exception {
+		dataStore.createIndex("Products", "CategoryID", MockDataStore.IndexType.HASH);
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Object> fields = new HashMap<>();
+			fields.put("ProductID", i);
+			fields.put("CategoryID", i % 3);
+			fields.put("UnitPrice", new BigDecimal(i % 17));
+			records.add(fields);
+		}
+		dataStore.putAll("Products", records);
+
+		EdmEntitySet entitySet = edm.getDefaultEntityContainer().getEntitySet("Products");
+		MockQuery query = new MockQuery(entitySet)
+				.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), "CategoryID eq 1"))
+				.orderBy(UriParser.parseOrderBy(edm, entitySet.getEntityType(), "UnitPrice desc"))
+				.maxRows(25)
+				.countAll(true);
+		List<Object> expected = new ArrayList<>();
+		for (int price = 16; price >= 0; price--) {
+			for (int i = 0; i < 1000; i++) {
+				if (i % 3 == 1 && i % 17 == price)
+					expected.add(i);
+			}
+		}
+
+		List<Object> ids = new ArrayList<>();
+		int pages = 0;
+		do {
+			MockQuery.Result result = dataStore.query(query);
+			assertThat("All matching records were counted", result.count(), is(pages < 4 ? 333 : 332));
+			for (Map<String, Object> record : result.records())
+				ids.add(record.get("ProductID"));
+			if (++pages == 4) // Delete the last record of the page, so the next one cannot resume by position
+				dataStore.remove("Products", Collections.singletonMap("ProductID", ids.get(ids.size() - 1)));
+			query.skipToken(result.nextSkipToken());
+		} while (query.skipToken() != null);
+
+		assertThat("Pages are sorted, ties in insertion order", ids, is(expected));
+		assertThat("Pages have maxRows records", pages, is(14));
+	}
+
+	@Test
+	public void testIndexes() throws Exception {
+		assertThat("Key property is indexed", dataStore.getIndexes("Order_Details"),
+				hasEntry("ProductID", MockDataStore.IndexType.HASH));
+		assertThat("Foreign key property is indexed", dataStore.getIndexes("Orders"),
+				hasEntry("CustomerID", MockDataStore.IndexType.HASH));
+		assertThat("Other properties are not indexed", dataStore.getIndexes("Orders"),
+				not(hasKey("ShipCity")));
+
+		dataStore.createIndex("Products", "UnitPrice", MockDataStore.IndexType.SORTED);
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Object> fields = new HashMap<>();
+			fields.put("ProductID", i);
+			fields.put("UnitPrice", new BigDecimal(i).divide(new BigDecimal(10)));
+			records.add(fields);
+		}
+		dataStore.putAll("Products", records);
+
+		EdmEntitySet entitySet = edm.getDefaultEntityContainer().getEntitySet("Products");
+		MockQuery query = new MockQuery(entitySet)
+				.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), "UnitPrice gt 10M and 12.5M ge UnitPrice"))
+				.countAll(true);
+		MockQuery.Result result = dataStore.query(query);
+		assertThat("Range was found", result.count(), is(25));
+		assertThat("Range is in insertion order", result.records().get(0).get("ProductID"), is(101));
+
+		query.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), "ProductID eq 10 or ProductID eq 20"));
+		assertThat("Records were found without index", dataStore.query(query).count(), is(2));
+
+		// Indexes follow changes
+		Map<String, Object> key = new HashMap<>();
+		key.put("ProductID", 110);
+		dataStore.remove("Products", key);
+		Map<String, Object> fields = new HashMap<>();
+		fields.put("ProductID", 5000);
+		fields.put("UnitPrice", new BigDecimal("11.00"));
+		dataStore.insert("Products", fields);
+		fields = new HashMap<>(fields);
+		fields.put("UnitPrice", new BigDecimal("11.5"));
+		dataStore.put("Products", fields);
+
+		query.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), "UnitPrice eq 11.5M"));
+		result = dataStore.query(query);
+		assertThat("Changed records were found", result.count(), is(2));
+		assertThat("Records are in insertion order", result.records().get(1).get("ProductID"), is(5000));
+
+		query.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), "ProductID eq 110"));
+		assertThat("Removed record is not found", dataStore.query(query).count(), is(0));
+
+		dataStore.truncate("Products");
+		query.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), "ProductID eq 5000"));
+		assertThat("Truncated records are not found", dataStore.query(query).count(), is(0));
+	}
+
+	@Test
+	public void testIndexUpdates() throws Exception {
+		dataStore.createIndex("Products", "UnitPrice", MockDataStore.IndexType.SORTED);
+		dataStore.createIndex("Products", "CategoryID", MockDataStore.IndexType.HASH);
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			Map<String, Object> fields = new HashMap<>();
+			fields.put("ProductID", i);
+			fields.put("UnitPrice", new BigDecimal(i % 200));
+			fields.put("CategoryID", i % 7);
+			records.add(fields);
+		}
+		dataStore.putAll("Products", records);
+		dataStore.buildIndexes("Products");
+		MockDataStore.Snapshot snapshot = dataStore.data.get("Products").snapshot;
+
+		// Inserts, updates (including to null values) and removals
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			Map<String, Object> fields = new HashMap<>();
+			fields.put("ProductID", random.nextInt(4000));
+			if (random.nextInt(5) == 0)
+				dataStore.remove("Products", fields);
+			else {
+				fields.put("UnitPrice", random.nextInt(20) == 0 ? null : new BigDecimal(random.nextInt(250)));
+				fields.put("CategoryID", random.nextInt(20) == 0 ? null : random.nextInt(10));
+				dataStore.put("Products", fields);
+			}
+		}
+		MockDataStore.Snapshot updated = dataStore.data.get("Products").snapshot;
+		assertThat("Indexes were carried into the new snapshots", updated.indexes.keySet(),
+				hasItems("UnitPrice", "CategoryID"));
+		assertThat("Index of the previous snapshot is unchanged",
+				snapshot.indexes.get("CategoryID").countEqual(3), is(3000 / 7 + 1));
+
+		List<Map<String, Object>> all = dataStore.getEntitySet("Products");
+		for (int category = 0; category < 10; category++) {
+			List<Map<String, Object>> expected = new ArrayList<>();
+			for (Map<String, Object> record : all) {
+				if (Integer.valueOf(category).equals(record.get("CategoryID")))
+					expected.add(record);
+			}
+			assertThat("HASH index was updated", dataStore.findRecords("Products",
+					Collections.singletonMap("CategoryID", category)), is(expected));
+		}
+
+		EdmEntitySet entitySet = edm.getDefaultEntityContainer().getEntitySet("Products");
+		for (int price = 0; price < 250; price += 10) {
+			List<Map<String, Object>> expected = new ArrayList<>();
+			for (Map<String, Object> record : all) {
+				Object unitPrice = record.get("UnitPrice");
+				if (unitPrice != null && ((BigDecimal) unitPrice).intValue() >= price
+						&& ((BigDecimal) unitPrice).intValue() < price + 15)
+					expected.add(record);
+			}
+			MockQuery query = new MockQuery(entitySet).filter(UriParser.parseFilter(edm, entitySet.getEntityType(),
+					"UnitPrice ge " + price + "M and UnitPrice lt " + (price + 15) + "M"));
+			assertThat("SORTED index was updated", dataStore.query(query).records(), is(expected));
+		}
+	}
+
+	@Test
+	public void testCount() throws Exception {
+		dataStore.createIndex("Products", "UnitPrice", MockDataStore.IndexType.SORTED);
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Object> fields = new HashMap<>();
+			fields.put("ProductID", i);
+			fields.put("UnitPrice", new BigDecimal(i % 100));
+			fields.put("Discontinued", i % 4 == 0);
+			records.add(fields);
+		}
+		dataStore.putAll("Products", records);
+
+		EdmEntitySet entitySet = edm.getDefaultEntityContainer().getEntitySet("Products");
+		MockQuery query = new MockQuery(entitySet);
+		assertThat("All records were counted", dataStore.count(query), is(1000));
+		assertThat("$skip and $top were applied", dataStore.count(query.skip(990).top(5)), is(5));
+		assertThat("$skip past the end counts nothing", dataStore.count(query.skip(2000).top(null)), is(0));
+
+		query.skip(null);
+		String[][] filters = {
+				{ "ProductID eq 10", "1" }, // Hash index
+				{ "UnitPrice eq 5M", "10" }, // Sorted index
+				{ "UnitPrice ge 10M and UnitPrice lt 20M", "100" }, // Range of a sorted index
+				{ "ProductID gt 990", "9" }, // Range of a hash index
+				{ "UnitPrice eq 4M and Discontinued", "10" }, // Index candidates
+				{ "Discontinued", "250" }, // No index
+		};
+		for (String[] filter : filters) {
+			query.filter(UriParser.parseFilter(edm, entitySet.getEntityType(), filter[0]));
+			assertThat(filter[0], dataStore.count(query), is(Integer.parseInt(filter[1])));
+			assertThat(filter[0], dataStore.query(query.countAll(true).top(0)).count(),
+					is(Integer.parseInt(filter[1])));
+			query.countAll(false).top(null);
+		}
+		assertThat("Counts used the indexes", dataStore.getEntitySetData("Products").indexHits.sum(), is(10L));
+	}
+
+	@Test(expected = ODataException.class)
+	public void testIndexUnexistingProperty() throws Exception {
+		dataStore.createIndex("Products", "WhatIsLove?", MockDataStore.IndexType.HASH);
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		Map<String, Object> order = new HashMap<>();
+		order.put("OrderID", 10248);
+		order.put("CustomerID", "VINET");
+		order.put("Freight", new BigDecimal("32.3800"));
+		order.put("OrderDate", new GregorianCalendar(1996, Calendar.JULY, 4));
+		order.put("ShipRegion", null);
+		dataStore.insert("Orders", order);
+
+		Map<String, Object> employee = new HashMap<>();
+		employee.put("EmployeeID", 1);
+		employee.put("LastName", "Davolio");
+		dataStore.insert("Employees", employee);
+		Map<String, Object> territory = new HashMap<>();
+		territory.put("TerritoryID", "06897");
+		territory.put("TerritoryDescription", "Wilton");
+		dataStore.insert("Territories", territory);
+		dataStore.getRelationships().getNavigation("Employees", "Territories").link(employee, territory, true);
+
+		Path file = Files.createTempFile("mockdata", ".snapshot");
+		try {
+			dataStore.saveSnapshot(file);
+
+			MockDataStore loaded = new MockDataStore(edmProvider);
+			loaded.loadSnapshot(file);
+			assertThat("Records were loaded", loaded.getEntitySet("Orders"), is(dataStore.getEntitySet("Orders")));
+			assertThat("Null values were loaded", loaded.getEntitySet("Orders").get(0).containsKey("ShipRegion"), is(true));
+			assertThat("Absent values were not loaded", loaded.getEntitySet("Orders").get(0).containsKey("ShipCity"), is(false));
+			assertThat("Empty Entity Sets stay empty", loaded.getEntitySet("Customers").isEmpty(), is(true));
+
+			List<Map<String, Object>> territories = loaded.getRelationships()
+					.getNavigation("Territories", "Employees").read(territory);
+			assertThat("Links were loaded", territories, is(Collections.singletonList(employee)));
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testTruncateLinks() throws Exception {
+		Map<String, Object> employee = new HashMap<>();
+		employee.put("EmployeeID", 1);
+		employee.put("LastName", "Davolio");
+		dataStore.insert("Employees", employee);
+		Map<String, Object> territory = new HashMap<>();
+		territory.put("TerritoryID", "06897");
+		territory.put("TerritoryDescription", "Wilton");
+		dataStore.insert("Territories", territory);
+		MockRelationships.Navigation toTerritories = dataStore.getRelationships().getNavigation("Employees", "Territories");
+		MockRelationships.Navigation toEmployees = dataStore.getRelationships().getNavigation("Territories", "Employees");
+
+		toTerritories.link(employee, territory, true);
+		dataStore.truncate("Territories");
+		dataStore.insert("Territories", territory);
+		assertThat("Re-inserted record has no links", toEmployees.read(territory).isEmpty(), is(true));
+		assertThat("Links of the other end were removed", toTerritories.read(employee).isEmpty(), is(true));
+
+		toTerritories.link(employee, territory, true);
+		dataStore.clear();
+		dataStore.insert("Employees", employee);
+		dataStore.insert("Territories", territory);
+		assertThat("Re-inserted records have no links", toTerritories.read(employee).isEmpty(), is(true));
+	}
+
+	@Test(expected = IOException.class)
+	public void testSnapshotInvalidFile() throws Exception {
+		Path file = Files.createTempFile("mockdata", ".snapshot");
+		try {
+			Files.write(file, "[]".getBytes(StandardCharsets.UTF_8));
+			dataStore.loadSnapshot(file);
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testLazyMaterialization() throws Exception {
+		AtomicInteger materializations = new AtomicInteger();
+		dataStore.setMaterializer(entitySet -> {
+			materializations.incrementAndGet();
+			if (!entitySet.equals("Regions"))
+				return;
+			try {
+				Thread.sleep(50); // Let the other readers arrive
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			List<Map<String, Object>> regions = new ArrayList<>();
+			for (int i = 1; i <= 10; i++)
+				regions.add(Collections.singletonMap("RegionID", i));
+			dataStore.putAll(entitySet, regions);
+			assertThat("Materializer sees its own records", dataStore.getEntitySet(entitySet).size(), is(10));
+		});
+		assertThat("Nothing is materialized upfront", materializations.get(), is(0));
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		CountDownLatch startGate = new CountDownLatch(1);
+		List<Future<Integer>> reads = new ArrayList<>();
+		for (int r = 0; r < 8; r++) {
+			reads.add(executor.submit(() -> {
+				startGate.await();
+				return dataStore.getEntitySet("Regions").size();
+			}));
+		}
+		startGate.countDown();
+		for (Future<Integer> read : reads)
+			assertThat("Concurrent first readers see the materialized records", read.get(), is(10));
+		executor.shutdown();
+
+		assertThat("Entity Set is materialized exactly once", materializations.get(), is(1));
+		dataStore.getEntitySet("Territories");
+		assertThat("Other Entity Sets are materialized on first access", materializations.get(), is(2));
+	}
+
+	@Test
+	public void testSync() throws Exception {
+		List<Map<String, Object>> regions = new ArrayList<>();
+		for (int i = 1; i <= 3; i++) {
+			Map<String, Object> region = new HashMap<>();
+			region.put("RegionID", i);
+			region.put("RegionDescription", "Region " + i);
+			regions.add(region);
+		}
+		dataStore.putAll("Regions", regions);
+		Map<String, Object> unchanged = dataStore.getRecordByKey("Regions", Collections.singletonMap("RegionID", 1));
+
+		List<Map<String, Object>> newRegions = new ArrayList<>();
+		for (Map<String, Object> region : regions)
+			newRegions.add(new HashMap<>(region));
+		long version = dataStore.getVersion("Regions");
+		assertThat("Same records change nothing", dataStore.sync("Regions", newRegions).isEmpty(), is(true));
+		assertThat("Same records publish nothing", dataStore.getVersion("Regions"), is(version));
+
+		newRegions.get(1).put("RegionDescription", "Changed");
+		newRegions.remove(2);
+		Map<String, Object> region = new HashMap<>();
+		region.put("RegionID", 4);
+		newRegions.add(region);
+		MockDataStore.Changes changes = dataStore.sync("Regions", newRegions);
+
+		assertThat("1 record inserted", changes.getInserted(), is(1));
+		assertThat("1 record updated", changes.getUpdated(), is(1));
+		assertThat("1 record deleted", changes.getDeleted(), is(1));
+		assertThat("Regions has 3 records", dataStore.getEntitySet("Regions").size(), is(3));
+		assertThat("Record was updated", dataStore.getRecordByKey("Regions", Collections.singletonMap("RegionID", 2))
+				.get("RegionDescription"), is("Changed"));
+		assertThat("Unchanged record is kept", dataStore.getRecordByKey("Regions",
+				Collections.singletonMap("RegionID", 1)), sameInstance(unchanged));
+	}
+
+	@Test
+	public void testSyncBinary() throws Exception {
+		Map<String, Object> category = new HashMap<>();
+		category.put("CategoryID", 1);
+		category.put("CategoryName", "Beverages");
+		category.put("Picture", new byte[] { 1, 2, 3 });
+		dataStore.insert("Categories", category);
+
+		Map<String, Object> reloaded = new HashMap<>(category);
+		reloaded.put("Picture", new byte[] { 1, 2, 3 });
+		long version = dataStore.getVersion("Categories");
+		assertThat("Same Binary value changes nothing",
+				dataStore.sync("Categories", Collections.singletonList(reloaded)).isEmpty(), is(true));
+		assertThat("Same Binary value publishes nothing", dataStore.getVersion("Categories"), is(version));
+
+		reloaded.put("Picture", new byte[] { 1, 2, 4 });
+		assertThat("Other Binary value is an update",
+				dataStore.sync("Categories", Collections.singletonList(reloaded)).getUpdated(), is(1));
+	}
+
+}
\ No newline at end of file
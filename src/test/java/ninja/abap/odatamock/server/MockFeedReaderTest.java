@@ -0,0 +1,122 @@
+package ninja.abap.odatamock.server;
+
+import org.apache.olingo.odata2.api.edm.Edm;
+import org.apache.olingo.odata2.api.edm.EdmException;
+import org.apache.olingo.odata2.api.ep.EntityProviderException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+
+public class MockFeedReaderTest {
+
+	static Edm edm;
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		ODataMockServer server = new ODataMockServerBuilder()
+	    		.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+	    		.build();
+
+		edm = server.getEdm();
+	}
+
+	List<Map<String, Object>> read(String entitySet, String json) throws Exception {
+		return new MockFeedReader(new StringReader(json.replace('\'', '"')))
+				.readFeed(edm.getDefaultEntityContainer().getEntitySet(entitySet));
+	}
+
+	@Test
+	public void testWrappedFeed() throws Exception {
+		List<Map<String, Object>> records = read("Orders", "{'d': {'__count': '2', 'results': ["
+				+ "{'__metadata': {'uri': 'Orders(10248)'}, 'OrderID': 10248, 'ShipName': 'Vins et alcools Chevalier',"
+				+ " 'Freight': '32.3800', 'OrderDate': '/Date(836438400000)/', 'ShipRegion': null},"
+				+ "{'OrderID': 10249}], '__next': 'Orders?$skiptoken=10249'}}");
+
+		assertThat("2 records were read", records.size(), is(2));
+		Map<String, Object> order = records.get(0);
+		assertThat("Int32 was read", order.get("OrderID"), is(10248));
+		assertThat("String was read", order.get("ShipName"), is("Vins et alcools Chevalier"));
+		assertThat("Decimal was read", order.get("Freight"), is(new BigDecimal("32.3800")));
+		assertThat("DateTime was read", ((Calendar) order.get("OrderDate")).getTimeInMillis(), is(836438400000L));
+		assertThat("Null was read", order.containsKey("ShipRegion"), is(true));
+		assertThat("Metadata was skipped", order.containsKey("__metadata"), is(false));
+		assertThat("Absent properties stay absent", records.get(1).keySet(), contains("OrderID"));
+	}
+
+	@Test
+	public void testArrayFeeds() throws Exception {
+		assertThat("Bare array was read", read("Orders", "[{'OrderID': 1}, {'OrderID': 2}]").size(), is(2));
+		assertThat("Array in d was read", read("Orders", "{'d': [{'OrderID': 1}]}").size(), is(1));
+		assertThat("Results without d were read", read("Orders", "{'results': [{'OrderID': 1}]}").size(), is(1));
+	}
+
+	@Test(expected = EntityProviderException.class)
+	public void testMissingResults() throws Exception {
+		read("Orders", "{'d': {'__count': '2'}}");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testNavigationContent() throws Exception {
+		List<Map<String, Object>> records = read("Orders", "[{'OrderID': 10248,"
+				+ " 'Customer': {'__deferred': {'uri': 'Orders(10248)/Customer'}},"
+				+ " 'Employee': {'EmployeeID': 5, 'LastName': 'Buchanan'},"
+				+ " 'Order_Details': {'results': [{'OrderID': 10248, 'ProductID': 11}, {'OrderID': 10248, 'ProductID': 42}]},"
+				+ " 'Shipper': null},"
+				+ "{'OrderID': 10249, 'Order_Details': [{'OrderID': 10249, 'ProductID': 14}]}]");
+
+		Map<String, Object> order = records.get(0);
+		assertThat("Deferred navigation was skipped", order.containsKey("Customer"), is(false));
+		assertThat("Null navigation was skipped", order.containsKey("Shipper"), is(false));
+		assertThat("Inline to-one entry was read", ((Map<String, Object>) order.get("Employee")).get("LastName"),
+				is("Buchanan"));
+		List<Map<String, Object>> details = (List<Map<String, Object>>) order.get("Order_Details");
+		assertThat("Inline to-many results were read", details.size(), is(2));
+		assertThat("Inline entries are typed", details.get(1).get("ProductID"), is(42));
+		assertThat("Inline to-many array was read",
+				((List<Map<String, Object>>) records.get(1).get("Order_Details")).size(), is(1));
+	}
+
+	@Test(expected = EdmException.class)
+	public void testInvalidNumber() throws Exception {
+		read("Order_Details", "[{'OrderID': 1, 'ProductID': 1, 'Discount': 'abc'}]");
+	}
+
+	@Test(expected = EntityProviderException.class)
+	public void testUnknownProperty() throws Exception {
+		read("Orders", "[{'OrderID': 1, 'WhatIsLove?': 1}]");
+	}
+
+	@Test(expected = EntityProviderException.class)
+	public void testDuplicateProperty() throws Exception {
+		read("Orders", "[{'OrderID': 1, 'OrderID': 2}]");
+	}
+
+	@Test
+	public void testLenientValues() throws Exception {
+		// Unlike Olingo's consumer, values are accepted as JSON literals or as strings
+		Map<String, Object> order = read("Orders",
+				"[{'OrderID': '10248', 'CustomerID': 12345, 'Freight': 32.38}]").get(0);
+		assertThat("Int32 was read from a string", order.get("OrderID"), is(10248));
+		assertThat("String was read from a number", order.get("CustomerID"), is("12345"));
+		assertThat("Decimal was read from a number", order.get("Freight"), is(new BigDecimal("32.38")));
+
+		Map<String, Object> detail = read("Order_Details",
+				"[{'OrderID': 1, 'ProductID': 1, 'Discount': 0.25}, {'OrderID': 1, 'ProductID': 2, 'Discount': '0.5'}]")
+				.get(1);
+		assertThat("Single was read from a string", detail.get("Discount"), is(0.5f));
+
+		Map<String, Object> product = read("Products", "[{'ProductID': 1, 'Discontinued': 'true'}]").get(0);
+		assertThat("Boolean was read from a string", product.get("Discontinued"), is(true));
+	}
+
+}
@@ -1,28 +1,55 @@
 package ninja.abap.odatamock.server;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.fluent.Content;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.apache.olingo.odata2.api.client.batch.BatchChangeSet;
+import org.apache.olingo.odata2.api.client.batch.BatchChangeSetPart;
 import org.apache.olingo.odata2.api.client.batch.BatchPart;
 import org.apache.olingo.odata2.api.client.batch.BatchQueryPart;
 import org.apache.olingo.odata2.api.client.batch.BatchSingleResponse;
 import org.apache.olingo.odata2.api.ep.EntityProvider;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat; 
 import static org.hamcrest.Matchers.*;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import ninja.abap.odatamock.server.ODataMockServer;
 import ninja.abap.odatamock.server.ODataMockServerBuilder;
@@ -34,7 +61,8 @@ public class ODataServerTest {
 
 	@After
 	public void after() throws Exception {
-		server.stop();
+		if (server != null) // Not built by skipped tests
+			server.stop();
 	}
 
 	@Test
@@ -65,6 +93,202 @@ public class ODataServerTest {
 		assertThat("OData service was served", resp, containsString("<atom:title>CustomerDemographics</atom:title>"));
 	}
 
+	@Test
+	public void testServerTuning() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.acceptors(1)
+			.selectors(1)
+			.minThreads(4)
+			.maxThreads(16)
+			.idleTimeout(5000)
+			.acceptQueueSize(128)
+			.build();
+
+		QueuedThreadPool threadPool = (QueuedThreadPool) server.getServer().getThreadPool();
+		assertThat(threadPool.getMinThreads(), is(4));
+		assertThat(threadPool.getMaxThreads(), is(16));
+		ServerConnector connector = (ServerConnector) server.getServer().getConnectors()[0];
+		assertThat(connector.getAcceptors(), is(1));
+		assertThat(connector.getSelectorManager().getSelectorCount(), is(1));
+		assertThat(connector.getIdleTimeout(), is(5000L));
+		assertThat(connector.getAcceptQueueSize(), is(128));
+
+		String resp = Request.Get(server.getUri()).execute().returnContent().asString();
+		assertThat("OData service was served", resp, containsString("<atom:title>CustomerDemographics</atom:title>"));
+	}
+
+	@Test
+	public void testCompression() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.compression(true)
+			.compressionLevel(1)
+			.build();
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(server.getUri() + "/Orders").openConnection();
+		connection.setRequestProperty("Accept", "application/json");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		assertThat("Feed is compressed", connection.getHeaderField("Content-Encoding"), is("gzip"));
+		try (InputStream body = new GZIPInputStream(connection.getInputStream())) {
+			assertThat(IOUtils.toString(body, StandardCharsets.UTF_8), containsString("Vins et alcools Chevalier"));
+		}
+
+		connection = (HttpURLConnection) new URL(server.getUri() + "/Orders/$count").openConnection();
+		connection.setRequestProperty("Accept", "application/json");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		assertThat("Small responses are not compressed", connection.getHeaderField("Content-Encoding"), nullValue());
+		assertThat(IOUtils.toString(connection.getInputStream(), StandardCharsets.UTF_8), is("10"));
+	}
+
+	@Test
+	public void testHttp2() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.http2(true)
+			.build();
+
+		try (Socket socket = new Socket(server.getUri().getHost(), server.getUri().getPort())) {
+			socket.getOutputStream().write(("GET / HTTP/1.1\r\n"
+					+ "Host: localhost\r\n"
+					+ "Connection: Upgrade, HTTP2-Settings\r\n"
+					+ "Upgrade: h2c\r\n"
+					+ "HTTP2-Settings: AAMAAABkAARAAAAAAAIAAAAA\r\n"
+					+ "\r\n").getBytes(StandardCharsets.US_ASCII));
+			String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))
+					.readLine();
+			assertThat("Connection is upgraded to HTTP/2", status, is("HTTP/1.1 101 Switching Protocols"));
+		}
+
+		String resp = Request.Get(server.getUri()).execute().returnContent().asString();
+		assertThat("HTTP/1.1 is still served", resp, containsString("<atom:title>CustomerDemographics</atom:title>"));
+	}
+
+	@Test
+	public void testExecutorError() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/OData.svc.edmx")
+			.build();
+		server.getServlet().setExecutor(Executors.newCachedThreadPool());
+		server.onFunctionImport("GetProductsByRating", (function, parameters, keys) -> {
+			throw new Error("Handler failed");
+		});
+
+		HttpResponse response = Request.Get(server.getUri() + "/GetProductsByRating?rating=123")
+				.execute().returnResponse();
+		assertThat("Error was answered with status 500", response.getStatusLine().getStatusCode(), is(500));
+
+		String json = Request.Get(server.getUri() + "/Products")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Later requests are served", json, containsString("\"results\""));
+	}
+
+	@Test
+	public void testHandlerErrorMetrics() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/OData.svc.edmx")
+			.metricsPath("/metrics")
+			.build();
+		server.onFunctionImport("GetProductsByRating", (function, parameters, keys) -> {
+			throw new Error("Handler failed");
+		});
+
+		HttpResponse response = Request.Get(server.getUri() + "/GetProductsByRating?rating=123")
+				.execute().returnResponse();
+		assertThat("Error was answered with status 500", response.getStatusLine().getStatusCode(), is(500));
+		server.getServlet().setExecutor(Executors.newCachedThreadPool());
+		response = Request.Get(server.getUri() + "/GetProductsByRating?rating=123")
+				.execute().returnResponse();
+		assertThat("Error was answered with status 500", response.getStatusLine().getStatusCode(), is(500));
+
+		String text = Request.Get(server.getUri().resolve("/metrics")).execute().returnContent().asString();
+		assertThat("Errors of both paths are counted", text, containsString(
+				"odata_mock_request_errors_total{operation=\"function\",entity_set=\"GetProductsByRating\"} 2"));
+	}
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		Assume.assumeTrue("Virtual threads require Java 21", javaVersion() >= 21);
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/OData.svc.edmx")
+			.virtualThreads(true)
+			.build();
+
+		Thread thread = handlerThread();
+		assertThat("Handler ran on a virtual thread", Thread.class.getMethod("isVirtual").invoke(thread), is(true));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testVirtualThreadsUnsupported() throws Exception {
+		Assume.assumeTrue("Virtual threads are supported", javaVersion() < 21);
+		new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/OData.svc.edmx")
+			.virtualThreads(true)
+			.build();
+	}
+
+	@Test
+	public void testExecutor() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/OData.svc.edmx")
+			.build();
+		server.getServlet().setExecutor(Executors.newCachedThreadPool());
+
+		Thread thread = handlerThread();
+		assertThat("Handler did not run on the Jetty pool", thread.getName(), not(startsWith("odata-mock")));
+	}
+
+	/**
+	 * Calls a Function Import of the server
+	 * @return The thread its handler ran on
+	 */
+	Thread handlerThread() throws Exception {
+		List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+		server.onFunctionImport("GetProductsByRating", (function, parameters, keys) -> {
+			threads.add(Thread.currentThread());
+			Map<String, Object> entry = new HashMap<>();
+			entry.put("ID", 1);
+			entry.put("Name", "Dummy Product");
+			entry.put("ReleaseDate", Calendar.getInstance());
+			entry.put("Rating", 5);
+			entry.put("Price", new BigDecimal(100));
+			return Arrays.asList(entry);
+		});
+
+		String json = Request.Get(server.getUri() + "/GetProductsByRating?rating=123")
+				.addHeader("Accept", "application/json; charset=utf-8")
+				.execute().returnContent().asString();
+		assertThat("Response was written", json, containsString("\"Name\":\"Dummy Product\""));
+		return threads.get(0);
+	}
+
+	static int javaVersion() {
+		String version = System.getProperty("java.specification.version");
+		return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+	}
+
+	@Test
+	public void testSharedMetadata() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.build();
+		ODataMockServer other = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.build();
+		try {
+			assertThat("Edm is shared", other.getEdm(), sameInstance(server.getEdm()));
+			assertThat("EdmProvider is shared", other.getEdmProvider(), sameInstance(server.getEdmProvider()));
+
+			String resp = Request.Get(other.getUri() + "/$metadata").execute().returnContent().asString();
+			assertThat("Metadata was served", resp, containsString("EntityType Name=\"Customer\""));
+		}
+		finally {
+			other.stop();
+		}
+	}
+
 	@Test
 	public void testEntitySetAutomaticData() throws Exception {
 		server = new ODataMockServerBuilder()
@@ -83,6 +307,344 @@ public class ODataServerTest {
 		assertThat("Automatic data was served", resp, containsString("\"RegionDescription\":"));
 	}
 
+	@Test
+	public void testEntitySetRecordCount() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.generateMissing(true)
+			.recordCount(20)
+			.recordCount("Products", 2000)
+			.build();
+
+		String count = Request.Get(server.getUri() + "/Regions/$count")
+				.execute().returnContent().asString();
+		assertThat("Regions has 20 records", count, is("20"));
+
+		count = Request.Get(server.getUri() + "/Products/$count")
+				.execute().returnContent().asString();
+		assertThat("Products has 2000 records", count, is("2000"));
+	}
+
+	@Test
+	public void testGeneratedRelationships() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath(Files.createTempDirectory("mockdata").toString())
+			.generateMissing(true)
+			.recordCount(20)
+			.recordCount("Order_Details", 100)
+			.build();
+		MockDataStore dataStore = server.getDataStore();
+
+		List<Map<String, Object>> details = dataStore.getEntitySet("Order_Details");
+		assertThat("Order_Details has 100 records", details.size(), is(100));
+		for (Map<String, Object> detail : details) {
+			assertThat("Order of Order_Detail exists", dataStore.getRecordByKey("Orders",
+					Collections.singletonMap("OrderID", detail.get("OrderID"))), notNullValue());
+			assertThat("Product of Order_Detail exists", dataStore.getRecordByKey("Products",
+					Collections.singletonMap("ProductID", detail.get("ProductID"))), notNullValue());
+		}
+
+		String count = Request.Get(server.getUri() + "/Orders(1)/Order_Details/$count")
+				.execute().returnContent().asString();
+		assertThat("Order 1 has 5 Order_Details (uniform fan-out)", count, is("5"));
+
+		String json = Request.Get(server.getUri() + "/Orders(1)?$expand=Customer,Employee")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Customer is expanded", json, containsString("\"CompanyName\":"));
+		assertThat("Employee is expanded", json, containsString("\"LastName\":"));
+
+		assertThat("First Employee reports to nobody", dataStore.getRecordByKey("Employees",
+				Collections.singletonMap("EmployeeID", 1)).get("ReportsTo"), nullValue());
+		count = Request.Get(server.getUri() + "/Employees(1)/Territories/$count")
+				.execute().returnContent().asString();
+		assertThat("Employee 1 has a Territory (link table)", count, is("1"));
+	}
+
+	@Test
+	public void testLazy() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.generateMissing(true)
+			.lazy(true)
+			.build();
+		MockDataStore dataStore = server.getDataStore();
+		assertThat("Orders is not loaded at startup", dataStore.data.get("Orders").materialized, is(false));
+
+		String count = Request.Get(server.getUri() + "/Orders/$count")
+				.execute().returnContent().asString();
+		assertThat("Orders is loaded from file on first access", count, is("10"));
+		count = Request.Get(server.getUri() + "/Orders(10248)/Order_Details/$count")
+				.execute().returnContent().asString();
+		assertThat("Embedded Order_Details are loaded with Orders", count, is("3"));
+		count = Request.Get(server.getUri() + "/Regions/$count")
+				.execute().returnContent().asString();
+		assertThat("Regions is generated on first access", count, is("50"));
+
+		assertThat("Unused Entity Sets are not loaded", dataStore.data.get("Suppliers").materialized, is(false));
+	}
+
+	@Test
+	public void testWatch() throws Exception {
+		Path dataPath = Files.createTempDirectory("mockdata");
+		Path orders = dataPath.resolve("Orders.json");
+		Files.copy(Paths.get("src/test/resources/mockdata/Orders.json"), orders);
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath(dataPath.toString())
+			.watch(true)
+			.build();
+
+		String json = new String(Files.readAllBytes(orders), StandardCharsets.UTF_8);
+		Files.write(orders.resolveSibling("Orders.tmp"), json.replace("Vins et alcools Chevalier", "Changed")
+				.getBytes(StandardCharsets.UTF_8));
+		Files.move(orders.resolveSibling("Orders.tmp"), orders, StandardCopyOption.REPLACE_EXISTING);
+
+		String shipName = null;
+		for (int i = 0; i < 100 && !"Changed".equals(shipName); i++) {
+			Thread.sleep(100);
+			shipName = (String) server.getDataStore()
+					.getRecordByKey("Orders", Collections.singletonMap("OrderID", 10248)).get("ShipName");
+		}
+		assertThat("Changed file was reloaded", shipName, is("Changed"));
+		assertThat("Orders still has 10 records", server.getDataStore().getEntitySet("Orders").size(), is(10));
+
+		// Invalid file: the records are kept and the failure is recorded
+		Files.write(orders.resolveSibling("Orders.tmp"), "[{".getBytes(StandardCharsets.UTF_8));
+		Files.move(orders.resolveSibling("Orders.tmp"), orders, StandardCopyOption.REPLACE_EXISTING);
+		for (int i = 0; i < 100 && server.getMetrics().getLastReloadErrors().isEmpty(); i++)
+			Thread.sleep(100);
+		assertThat("Reload error was kept", server.getMetrics().getLastReloadErrors(), hasKey("Orders"));
+		assertThat("Reload failure was counted", server.getMetrics().scrape(),
+				containsString("odata_mock_reload_failures_total{entity_set=\"Orders\"} 1\n"));
+		assertThat("Orders still has 10 records", server.getDataStore().getEntitySet("Orders").size(), is(10));
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.metricsPath("/metrics")
+			.build();
+
+		Request.Get(server.getUri() + "/Orders").execute().discardContent();
+		Request.Get(server.getUri() + "/Orders?$filter=OrderID%20eq%2010248").execute().discardContent();
+		Request.Get(server.getUri() + "/Orders?$filter=ShipCity%20eq%20'Lyon'").execute().discardContent();
+		Request.Get(server.getUri() + "/HeyIDontExist").execute().discardContent();
+
+		Content metrics = Request.Get(server.getUri().resolve("/metrics")).execute().returnContent();
+		assertThat("Text exposition format", metrics.getType().getMimeType(), is("text/plain"));
+		String text = metrics.asString();
+		assertThat("Reads are counted", text, containsString(
+				"odata_mock_request_duration_seconds_count{operation=\"read\",entity_set=\"Orders\"} 3"));
+		assertThat("Buckets are cumulative", text, containsString(
+				"odata_mock_request_duration_seconds_bucket{operation=\"read\",entity_set=\"Orders\",le=\"+Inf\"} 3"));
+		assertThat("Errors are counted", text, containsString(
+				"odata_mock_request_errors_total{operation=\"other\",entity_set=\"\"} 1"));
+		assertThat("Records are counted", text, containsString(
+				"odata_mock_entity_set_records{entity_set=\"Orders\"} 10"));
+		assertThat("Key filter is served by an index", text, containsString(
+				"odata_mock_index_lookups_total{entity_set=\"Orders\",result=\"hit\"} 1"));
+		assertThat("Non-indexed filter is a scan", text, containsString(
+				"odata_mock_index_lookups_total{entity_set=\"Orders\",result=\"miss\"} 1"));
+	}
+
+	@Test
+	public void testTracing() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.tracing(true)
+			.tracesPath("/traces")
+			.build();
+
+		HttpResponse response = Request.Get(server.getUri() + "/Orders?$expand=Order_Details")
+				.addHeader("Accept", "application/json; charset=utf-8")
+				.addHeader("X-Request-ID", "expand-1")
+				.execute().returnResponse();
+		assertThat("Request ID is returned", response.getFirstHeader("X-Request-ID").getValue(), is("expand-1"));
+		String serverTiming = response.getFirstHeader("Server-Timing").getValue();
+		assertThat("Phases are timed", serverTiming, allOf(containsString("parse;dur="), containsString("read;dur="),
+				containsString("serialize;dur="), containsString("total;dur=")));
+
+		MockTracer.Trace trace = server.getTracer().getTraces().get(0);
+		assertThat(trace.getRequestId(), is("expand-1"));
+		assertThat(trace.getStatus(), is(200));
+		long phases = trace.getPhases().entrySet().stream()
+				.filter(phase -> !phase.getKey().equals("total")).mapToLong(Map.Entry::getValue).sum();
+		assertThat("Nested phases are not counted twice", phases, is(trace.getPhases().get("total")));
+
+		String traces = Request.Get(server.getUri().resolve("/traces?id=expand-1"))
+				.execute().returnContent().asString();
+		assertThat("Trace is served by request ID", traces, allOf(startsWith("[{\"requestId\":\"expand-1\""),
+				containsString("\"uri\":\"" + server.getUri() + "/Orders?$expand=Order_Details\"")));
+
+		response = Request.Get(server.getUri() + "/Orders/$count").execute().returnResponse();
+		assertThat("Counts are reads", response.getFirstHeader("Server-Timing").getValue(),
+				containsString("read;dur="));
+		assertThat("Counts are reads", server.getTracer().getTraces().get(0).getPhases().get("read"), greaterThan(0L));
+
+		String json = Request.Get(server.getUri() + "/Orders?$top=1&odata-debug=json")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Debug output is disabled", json, allOf(startsWith("{\"d\""), not(containsString("\"runtime\""))));
+
+		Map<String, String> reqHeaders = new HashMap<>();
+		reqHeaders.put("Accept", "application/json");
+		List<BatchPart> batchParts = Collections.singletonList(BatchQueryPart.method("GET")
+				.uri("Orders?$top=1&odata-debug=json").headers(reqHeaders).build());
+		Content batch = Request.Post(server.getUri() + "/$batch")
+			.addHeader("Content-Type", "multipart/mixed; boundary=dummy_boundary")
+			.bodyStream(EntityProvider.writeBatchRequest(batchParts, "dummy_boundary"))
+			.execute().returnContent();
+		String body = EntityProvider.parseBatchResponse(batch.asStream(), batch.getType().toString()).get(0).getBody();
+		assertThat("Debug output is disabled in $batch", body,
+				allOf(startsWith("{\"d\""), not(containsString("\"runtime\""))));
+	}
+
+	@Test
+	public void testDebugOutput() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.tracing(true)
+			.debugOutput(true)
+			.build();
+
+		String json = Request.Get(server.getUri() + "/Orders?$top=1&odata-debug=json")
+				.execute().returnContent().asString();
+		assertThat("Debug output is served", json, containsString("\"runtime\""));
+	}
+
+	@Test
+	public void testStreamedFeed() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.build();
+
+		HttpResponse response = Request.Get(server.getUri() + "/Orders?$expand=Order_Details")
+				.addHeader("Accept", "application/json")
+				.execute().returnResponse();
+		assertThat("Feed is streamed", response.getFirstHeader("Content-Length"), nullValue());
+		String streamed = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+
+		// $batch responses read the feed as a stream, serialized in memory
+		Map<String, String> reqHeaders = Collections.singletonMap("Accept", "application/json");
+		InputStream request = EntityProvider.writeBatchRequest(Collections.singletonList(BatchQueryPart.method("GET")
+				.uri("/Orders?$expand=Order_Details").headers(reqHeaders).build()), "dummy_boundary");
+		Content batch = Request.Post(server.getUri() + "/$batch")
+			.addHeader("Content-Type", "multipart/mixed; boundary=dummy_boundary")
+			.bodyStream(request)
+			.execute().returnContent();
+		String buffered = EntityProvider.parseBatchResponse(batch.asStream(), batch.getType().toString())
+				.get(0).getBody();
+		assertThat("Streamed feed is complete", streamed, containsString("\"UnitPrice\":\"14.4000\""));
+		assertThat("Streamed and serialized feeds are the same", streamed, is(buffered));
+	}
+
+	@Test
+	public void testResponseCache() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.responseCache(true)
+			.build();
+		MockResponseCache cache = server.getResponseCache();
+		String uri = server.getUri() + "/Orders?$expand=Order_Details";
+
+		HttpResponse response = Request.Get(uri).addHeader("Accept", "application/json").execute().returnResponse();
+		String etag = response.getFirstHeader("ETag").getValue();
+		String json = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+		assertThat("ETag is weak", etag, startsWith("W/\""));
+		assertThat(cache.getMisses(), is(1L));
+
+		response = Request.Get(uri).addHeader("Accept", "application/json").execute().returnResponse();
+		assertThat("Response was cached", cache.getHits(), is(1L));
+		assertThat("Cached response has the same ETag", response.getFirstHeader("ETag").getValue(), is(etag));
+		assertThat("Cached response is the same",
+				EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8), is(json));
+
+		response = Request.Get(uri).addHeader("Accept", "application/atom+xml").execute().returnResponse();
+		assertThat("Formats are cached separately", cache.getMisses(), is(2L));
+		assertThat("Formats have different ETags", response.getFirstHeader("ETag").getValue(), not(etag));
+
+		response = Request.Get(uri).addHeader("Accept", "application/json").addHeader("If-None-Match", etag)
+				.execute().returnResponse();
+		assertThat("Unchanged data is not sent again", response.getStatusLine().getStatusCode(), is(304));
+		assertThat(cache.getNotModified(), is(1L));
+
+		// Changes to other Entity Sets keep the response
+		Map<String, Object> customer = new HashMap<>();
+		customer.put("CustomerID", "ALFKI");
+		customer.put("CompanyName", "Alfreds Futterkiste");
+		server.getDataStore().put("Customers", customer);
+		Request.Get(uri).addHeader("Accept", "application/json").execute().discardContent();
+		assertThat("Response is still cached", cache.getHits(), is(2L));
+
+		// Changes to expanded Entity Sets invalidate it
+		Map<String, Object> detail = new HashMap<>(server.getDataStore().getEntitySet("Order_Details").get(0));
+		detail.put("Quantity", (short) 999);
+		server.getDataStore().put("Order_Details", detail);
+		response = Request.Get(uri).addHeader("Accept", "application/json").addHeader("If-None-Match", etag)
+				.execute().returnResponse();
+		assertThat("Changed data is sent", response.getStatusLine().getStatusCode(), is(200));
+		assertThat("ETag changed", response.getFirstHeader("ETag").getValue(), not(etag));
+		assertThat("Changed data was read", EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8),
+				containsString("\"Quantity\":999"));
+		assertThat(cache.getHits(), is(2L));
+
+		// Other resources of the Entity Set are cached under their own keys
+		String count = Request.Get(server.getUri() + "/Orders/$count").execute().returnContent().asString();
+		assertThat(count, is("10"));
+		assertThat("Cached responses", cache.size(), is(3));
+	}
+
+	@Test
+	public void testConcurrentResponseCache() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.responseCache(true)
+			.responseCacheSize(32 * 1024)
+			.build();
+		MockResponseCache cache = server.getResponseCache();
+
+		// More distinct responses than fit in the cache, so entries are evicted while others are read
+		List<String> uris = new ArrayList<>();
+		for (int id = 10248; id <= 10257; id++) {
+			uris.add(server.getUri() + "/Orders(" + id + ")");
+			uris.add(server.getUri() + "/Orders(" + id + ")?$expand=Order_Details");
+			uris.add(server.getUri() + "/Orders(" + id + ")/Order_Details");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 400; i++) {
+				String uri = uris.get(i % uris.size());
+				String id = uri.substring(uri.indexOf('(') + 1, uri.indexOf(')'));
+				results.add(executor.submit(() -> Request.Get(uri).addHeader("Accept", "application/json")
+						.execute().returnContent().asString().contains("\"OrderID\":" + id)));
+			}
+			for (Future<Boolean> result : results)
+				assertThat("Response is for its own request", result.get(), is(true));
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		assertThat("Every request was served once", cache.getHits() + cache.getMisses(), is(400L));
+		assertThat("Responses were served from the cache", cache.getHits(), greaterThan(0L));
+		assertThat("Cache stays within its size", cache.getSizeInBytes(), lessThanOrEqualTo(32 * 1024L));
+		assertThat("Entries were evicted", cache.size(), lessThan(uris.size()));
+		cache.clear();
+		assertThat("Cleared cache uses no memory", cache.getSizeInBytes(), is(0L));
+	}
+
 	@Test
 	public void testEntitySetFromFile() throws Exception {
 		server = new ODataMockServerBuilder()
@@ -104,6 +666,297 @@ public class ODataServerTest {
 				.addHeader("Accept", "application/json")
 				.execute().returnContent().asString();
 		assertThat("Association data was served", json, containsString("\"UnitPrice\":\"14.4000\""));
+
+		// Embedded records were stored in their own Entity Set
+		count = Request.Get(server.getUri() + "/Order_Details/$count")
+				.execute().returnContent().asString();
+		assertThat("Order_Details has 29 records", count, is("29"));
+
+		json = Request.Get(server.getUri() + "/Order_Details(OrderID=10255,ProductID=16)/Order")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Association was resolved by foreign key", json, containsString("\"ShipName\":\"Richter Supermarkt\""));
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		Path snapshots = Files.createTempDirectory("snapshots");
+		try {
+			server = new ODataMockServerBuilder()
+				.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+				.localDataPath("src/test/resources/mockdata")
+				.snapshotPath(snapshots.toString())
+				.build();
+			server.stop();
+
+			File[] files = snapshots.toFile().listFiles();
+			assertThat("Snapshot was written", files.length, is(1));
+
+			// Same inputs: data is loaded from the snapshot
+			server = new ODataMockServerBuilder()
+				.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+				.localDataPath("src/test/resources/mockdata")
+				.snapshotPath(snapshots.toString())
+				.build();
+			assertThat("No new snapshot was written", snapshots.toFile().listFiles().length, is(1));
+
+			String count = Request.Get(server.getUri() + "/Order_Details/$count")
+					.execute().returnContent().asString();
+			assertThat("Order_Details has 29 records", count, is("29"));
+
+			String json = Request.Get(server.getUri() + "/Order_Details(OrderID=10255,ProductID=16)/Order")
+					.addHeader("Accept", "application/json")
+					.execute().returnContent().asString();
+			assertThat("Snapshot data was served", json, containsString("\"ShipName\":\"Richter Supermarkt\""));
+			assertThat("No snapshot failed to load", server.getMetrics().getLastSnapshotError(), nullValue());
+			server.stop();
+
+			// Invalid snapshot: data is loaded from the JSON files, and the snapshot is rewritten
+			Files.write(files[0].toPath(), "not a snapshot".getBytes(StandardCharsets.UTF_8));
+			server = new ODataMockServerBuilder()
+				.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+				.localDataPath("src/test/resources/mockdata")
+				.snapshotPath(snapshots.toString())
+				.build();
+			assertThat("Snapshot failure was recorded", server.getMetrics().scrape(),
+					containsString("odata_mock_snapshot_load_failures_total 1\n"));
+			assertThat("Snapshot error was kept", server.getMetrics().getLastSnapshotError().getMessage(),
+					containsString("Not a snapshot file"));
+			count = Request.Get(server.getUri() + "/Order_Details/$count")
+					.execute().returnContent().asString();
+			assertThat("Data was loaded from the JSON files", count, is("29"));
+			server.stop();
+
+			server = new ODataMockServerBuilder()
+				.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+				.localDataPath("src/test/resources/mockdata")
+				.snapshotPath(snapshots.toString())
+				.build();
+			assertThat("Rewritten snapshot was loaded", server.getMetrics().getLastSnapshotError(), nullValue());
+		}
+		finally {
+			for (File file : snapshots.toFile().listFiles())
+				file.delete();
+			Files.delete(snapshots);
+		}
+	}
+
+	@Test
+	public void testLinks() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.build();
+
+		Map<String, Object> employee = new HashMap<>();
+		employee.put("EmployeeID", 1);
+		employee.put("LastName", "Davolio");
+		employee.put("FirstName", "Nancy");
+		server.getDataStore().insert("Employees", employee);
+		Map<String, Object> territory = new HashMap<>();
+		territory.put("TerritoryID", "06897");
+		territory.put("TerritoryDescription", "Wilton");
+		territory.put("RegionID", 1);
+		server.getDataStore().insert("Territories", territory);
+
+		// Many-to-many association (no referential constraint)
+		Request.Post(server.getUri() + "/Employees(1)/$links/Territories")
+				.bodyString("{\"uri\": \"" + server.getUri() + "/Territories('06897')\"}", ContentType.APPLICATION_JSON)
+				.execute().returnResponse();
+
+		String json = Request.Get(server.getUri() + "/Employees(1)/Territories")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Linked record was served", json, containsString("\"TerritoryDescription\":\"Wilton\""));
+		json = Request.Get(server.getUri() + "/Territories?$expand=Employees")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Reverse link was served", json, containsString("\"LastName\":\"Davolio\""));
+
+		Request.Delete(server.getUri() + "/Employees(1)/$links/Territories('06897')")
+				.execute().returnResponse();
+		json = Request.Get(server.getUri() + "/Employees(1)/Territories")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Link was removed", json, not(containsString("Wilton")));
+	}
+
+	@Test
+	public void testQueryOptions() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.index("Orders", MockDataStore.IndexType.SORTED, "Freight")
+			.build();
+
+		String json = Request.Get(server.getUri()
+				+ "/Orders?$filter=ShipCountry%20eq%20'Brazil'&$orderby=Freight%20desc&$top=2&$inlinecount=allpages")
+			.addHeader("Accept", "application/json")
+			.execute().returnContent().asString();
+		assertThat("All matching records were counted", json, containsString("\"__count\":\"3\""));
+		assertThat("Most expensive order comes first",
+				json.indexOf("\"OrderID\":10250"), allOf(greaterThan(0), lessThan(json.indexOf("\"OrderID\":10253"))));
+		assertThat("$top was applied", json, not(containsString("\"OrderID\":10256")));
+
+		json = Request.Get(server.getUri()
+				+ "/Orders?$filter=Freight%20gt%2050%20and%20year(OrderDate)%20eq%201996&$orderby=OrderID&$skip=1&$top=2")
+			.addHeader("Accept", "application/json")
+			.execute().returnContent().asString();
+		assertThat("$skip was applied", json, not(containsString("\"OrderID\":10250")));
+		assertThat("Page has 2 records", json.split("\"OrderID\":").length - 1, is(2));
+		assertThat("Page starts at 2nd match", json, containsString("\"OrderID\":10252"));
+		assertThat("Page ends at 3rd match", json, containsString("\"OrderID\":10253"));
+
+		json = Request.Get(server.getUri()
+				+ "/Orders?$filter=substringof('R',ShipRegion)%20or%20OrderID%20eq%2010248")
+			.addHeader("Accept", "application/json")
+			.execute().returnContent().asString();
+		assertThat("Null operand does not hide the other side of or", json, containsString("\"OrderID\":10248"));
+		assertThat("Other side of or still matches", json, containsString("\"ShipRegion\":\"RJ\""));
+		assertThat("Null operand does not match", json, not(containsString("\"OrderID\":10249")));
+
+		json = Request.Get(server.getUri() + "/Orders?$filter=OrderID%20eq%2010255&$expand=Order_Details")
+			.addHeader("Accept", "application/json")
+			.execute().returnContent().asString();
+		assertThat("Association data was served", json, containsString("\"ProductID\":16"));
+	}
+
+	@Test
+	public void testServerPaging() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.build();
+
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 250; i++) {
+			Map<String, Object> fields = new HashMap<>();
+			fields.put("CustomerID", String.format("C%04d", i));
+			fields.put("CompanyName", "Company " + i);
+			records.add(fields);
+		}
+		server.getDataStore().putAll("Customers", records);
+
+		String uri = server.getUri() + "/Customers?$inlinecount=allpages";
+		int pages = 0, total = 0;
+		while (uri != null) {
+			String json = Request.Get(uri)
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+			assertThat("All records were counted", json, containsString("\"__count\":\"250\""));
+			assertThat("Page starts after the previous one", json,
+					containsString(String.format("\"CustomerID\":\"C%04d\"", total)));
+			total += json.split("\"CustomerID\":").length - 1;
+			pages++;
+
+			Matcher next = Pattern.compile("\"__next\":\"([^\"]+)\"").matcher(json);
+			uri = next.find() ? server.getUri() + "/" + next.group(1) : null;
+		}
+		assertThat("3 pages were served", pages, is(3));
+		assertThat("All records were served", total, is(250));
+	}
+
+	@Test
+	public void testPageSize() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.pageSize(100)
+			.pageSize("Customers", 40)
+			.build();
+
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 250; i++) {
+			Map<String, Object> fields = new HashMap<>();
+			fields.put("CustomerID", String.format("C%04d", i));
+			fields.put("CompanyName", "Company " + (i % 2 == 0 ? "A" : "B") + i);
+			records.add(fields);
+		}
+		server.getDataStore().putAll("Customers", records);
+
+		String uri = server.getUri() + "/Customers";
+		List<String> ids = new ArrayList<>();
+		int pages = 0;
+		while (uri != null) {
+			String json = Request.Get(uri)
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+			Matcher id = Pattern.compile("\"CustomerID\":\"([^\"]+)\"").matcher(json);
+			while (id.find())
+				ids.add(id.group(1));
+			pages++;
+			if (pages == 1) // Delete a record of the next page, and the last record of that page
+				server.getDataStore().remove("Customers", Collections.singletonMap("CustomerID", "C0045"));
+			if (pages == 2)
+				server.getDataStore().remove("Customers", Collections.singletonMap("CustomerID", "C0080"));
+
+			Matcher next = Pattern.compile("\"__next\":\"([^\"]+)\"").matcher(json);
+			if (next.find()) {
+				assertThat("Skip token is opaque", next.group(1), not(containsString("C00")));
+				uri = server.getUri() + "/" + next.group(1);
+			}
+			else {
+				uri = null;
+			}
+		}
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 250; i++) {
+			if (i != 45)
+				expected.add(String.format("C%04d", i));
+		}
+		assertThat("7 pages were served", pages, is(7));
+		assertThat("Remaining records were served once, in order", ids, is(expected));
+		assertThat("Page size of the Entity Set was used", ids.get(40), is("C0040"));
+
+		// Filtered and sorted feeds are paged as well
+		uri = server.getUri() + "/Customers?$filter=startswith(CompanyName,'Company A')&$orderby=CompanyName desc";
+		List<String> names = new ArrayList<>();
+		while (uri != null) {
+			String json = Request.Get(uri.replace(" ", "%20"))
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+			Matcher name = Pattern.compile("\"CompanyName\":\"([^\"]+)\"").matcher(json);
+			while (name.find())
+				names.add(name.group(1));
+			Matcher next = Pattern.compile("\"__next\":\"([^\"]+)\"").matcher(json);
+			uri = next.find() ? server.getUri() + "/" + next.group(1) : null;
+		}
+		List<String> sorted = new ArrayList<>(names);
+		Collections.sort(sorted, Collections.reverseOrder());
+		assertThat("All matching records were served", names.size(), is(124));
+		assertThat("Pages are sorted", names, is(sorted));
+
+		// Entity Sets without a specific page size use the default
+		String json = Request.Get(server.getUri() + "/Orders?$top=1")
+			.addHeader("Accept", "application/json")
+			.execute().returnContent().asString();
+		assertThat("Small feeds are not paged", json, not(containsString("__next")));
+	}
+
+	@Test
+	public void testAmbiguousNavigation() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.build();
+
+		// Employees1 (subordinates) and Employee1 (manager) both lead to Employees
+		Map<String, Object> manager = new HashMap<>();
+		manager.put("EmployeeID", 2);
+		manager.put("LastName", "Fuller");
+		manager.put("FirstName", "Andrew");
+		Map<String, Object> employee = new HashMap<>();
+		employee.put("EmployeeID", 1);
+		employee.put("LastName", "Davolio");
+		employee.put("FirstName", "Nancy");
+		employee.put("ReportsTo", 2);
+		server.getDataStore().putAll("Employees", Arrays.asList(employee, manager));
+
+		String json = Request.Get(server.getUri() + "/Employees?$filter=EmployeeID%20eq%201&$expand=Employee1")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Manager was expanded", json, containsString("\"LastName\":\"Fuller\""));
+
+		json = Request.Get(server.getUri() + "/Employees?$filter=EmployeeID%20eq%202&$expand=Employees1")
+				.addHeader("Accept", "application/json")
+				.execute().returnContent().asString();
+		assertThat("Subordinates were expanded", json, containsString("\"LastName\":\"Davolio\""));
 	}
 
 	@Test
@@ -164,6 +1017,112 @@ public class ODataServerTest {
 				containsString("\"CustomerName\":\"Alfreds Futterkiste\""));
 	}
 
+	@Test
+	public void testBatchMetrics() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.localDataPath("src/test/resources/mockdata")
+			.metricsPath("/metrics")
+			.batchThreads(2)
+			.build();
+
+		Map<String, String> reqHeaders = new HashMap<>();
+		reqHeaders.put("Accept", "application/json; charset=utf-8");
+		Map<String, String> changeHeaders = new HashMap<>(reqHeaders);
+		changeHeaders.put("Content-Type", "application/json");
+		List<BatchPart> batchParts = new ArrayList<>();
+		batchParts.add(BatchQueryPart.method("GET").uri("/Orders").headers(reqHeaders).build());
+		batchParts.add(BatchQueryPart.method("GET").uri("/Orders(10248)").headers(reqHeaders).build());
+		BatchChangeSet changeSet = BatchChangeSet.newBuilder().build();
+		changeSet.add(BatchChangeSetPart.method("MERGE").uri("Orders(10248)").headers(changeHeaders)
+				.body("{\"ShipCity\": \"Paris\"}").build());
+		batchParts.add(changeSet);
+		batchParts.add(BatchQueryPart.method("GET").uri("/HeyIDontExist").headers(reqHeaders).build());
+
+		InputStream request = EntityProvider.writeBatchRequest(batchParts, "dummy_boundary");
+		Request.Post(server.getUri() + "/$batch")
+			.addHeader("Content-Type", "multipart/mixed; boundary=dummy_boundary")
+			.bodyStream(request)
+			.execute().discardContent();
+
+		String text = Request.Get(server.getUri().resolve("/metrics")).execute().returnContent().asString();
+		assertThat("Batch is counted", text, containsString(
+				"odata_mock_request_duration_seconds_count{operation=\"batch\",entity_set=\"\"} 1"));
+		assertThat("Reads of the batch are counted", text, containsString(
+				"odata_mock_request_duration_seconds_count{operation=\"read\",entity_set=\"Orders\"} 2"));
+		assertThat("Change set of the batch is counted", text, containsString(
+				"odata_mock_request_duration_seconds_count{operation=\"update\",entity_set=\"Orders\"} 1"));
+		assertThat("Errors of the batch are counted", text, containsString(
+				"odata_mock_request_errors_total{operation=\"other\",entity_set=\"\"} 1"));
+	}
+
+	@Test
+	public void testParallelBatchRequest() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/OData.svc.edmx")
+			.batchThreads(4)
+			.build();
+
+		Map<String, Object> product = new HashMap<>();
+		product.put("ID", 1);
+		product.put("Name", "Bread");
+		product.put("ReleaseDate", Calendar.getInstance());
+		product.put("Rating", 4);
+		product.put("Price", new BigDecimal(2));
+		server.getDataStore().putAll("Products", Collections.singletonList(product));
+
+		// Each handler call waits for the other two, which only returns true if they run concurrently
+		CountDownLatch latch = new CountDownLatch(3);
+		server.onFunctionImport("GetProductsByRating", (function, parameters, keys) -> {
+			latch.countDown();
+			boolean concurrent;
+			try {
+				concurrent = latch.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				concurrent = false;
+			}
+			Map<String, Object> entry = new HashMap<>(product);
+			entry.put("ID", parameters.get("rating"));
+			entry.put("Name", "Concurrent " + concurrent);
+			return Arrays.asList(entry);
+		});
+
+		Map<String, String> reqHeaders = new HashMap<>();
+		reqHeaders.put("Accept", "application/json; charset=utf-8");
+		List<BatchPart> batchParts = new ArrayList<>();
+		for (int rating = 1; rating <= 3; rating++)
+			batchParts.add(BatchQueryPart.method("GET").uri("/GetProductsByRating?rating=" + rating)
+					.headers(reqHeaders).build());
+		Map<String, String> changeHeaders = new HashMap<>(reqHeaders);
+		changeHeaders.put("Content-Type", "application/json");
+		BatchChangeSet changeSet = BatchChangeSet.newBuilder().build();
+		changeSet.add(BatchChangeSetPart.method("MERGE").uri("Products(1)").headers(changeHeaders)
+				.body("{\"Name\": \"Milk\"}").build());
+		batchParts.add(changeSet);
+		batchParts.add(BatchQueryPart.method("GET").uri("/Products(1)").headers(reqHeaders).build());
+		batchParts.add(BatchQueryPart.method("GET").uri("/HeyIDontExist").headers(reqHeaders).build());
+
+		InputStream request = EntityProvider.writeBatchRequest(batchParts, "dummy_boundary");
+		Content response = Request.Post(server.getUri() + "/$batch")
+			.addHeader("Accept", "application/json; charset=utf-8")
+			.addHeader("Content-Type", "multipart/mixed; boundary=dummy_boundary")
+			.bodyStream(request)
+			.execute().returnContent();
+
+		List<BatchSingleResponse> responses = EntityProvider.parseBatchResponse(response.asStream(),
+				response.getType().toString());
+		assertThat("6 responses are present", responses.size(), is(6));
+		for (int rating = 1; rating <= 3; rating++) {
+			String body = responses.get(rating - 1).getBody();
+			assertThat("Responses keep the request order", body, containsString("\"ID\":" + rating));
+			assertThat("Function Imports ran concurrently", body, containsString("\"Name\":\"Concurrent true\""));
+		}
+		assertThat("Change set was applied", responses.get(3).getStatusCode(), is("204"));
+		assertThat("Read after the change set sees the change", responses.get(4).getBody(),
+				containsString("\"Name\":\"Milk\""));
+		assertThat("Last response contains ERROR", responses.get(5).getBody(), containsString("error"));
+	}
+
 	@Test
 	public void testFunctionImportHandler() throws Exception {
 		server = new ODataMockServerBuilder()
@@ -187,7 +1146,6 @@ public class ODataServerTest {
 	}
 
 	@Test
-	@SuppressWarnings("unchecked")
 	public void testCreateEntry() throws Exception {
 		server = new ODataMockServerBuilder()
 			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
@@ -204,8 +1162,10 @@ public class ODataServerTest {
 		Map<String, Object> entry = data.get(0);
 		assertThat("CompanyName is 'Antonio Moreno Taquería'",
 				entry.get("CompanyName"), is("Antonio Moreno Taquería"));
-		List<Map<String, Object>> orders = (List<Map<String, Object>>) entry.get("Orders");
-		assertThat("Orders association contain 2 records", orders.size(), is(2));
+		assertThat("Inline Orders are not embedded", entry.containsKey("Orders"), is(false));
+		List<Map<String, Object>> orders = server.getDataStore().getEntitySet("Orders");
+		assertThat("Inline Orders were created", orders.size(), is(2));
+		assertThat("Inline Orders reference the Customer", orders.get(0).get("CustomerID"), is("ANTON"));
 
 		// Get association
 		String json = Request.Get(server.getUri() + "/Customers('ANTON')/Orders")
@@ -242,6 +1202,87 @@ public class ODataServerTest {
 		key.put("CustomerID", "ANTON");
 		Map<String, Object> entry = server.getDataStore().getRecordByKey("Customers", key);
 		assertThat("CompanyName is now 'New Name'", entry.get("CompanyName"), is("New Name"));
+
+		String json = Request.Get(server.getUri() + "/Customers?$filter=CompanyName%20eq%20'New%20Name'")
+				.addHeader("Accept", "application/json; charset=utf-8")
+				.execute().returnContent().asString();
+		assertThat("Updated entry is found by $filter", json, containsString("\"CustomerID\":\"ANTON\""));
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		server = new ODataMockServerBuilder()
+			.edmxFromFile("src/test/resources/Northwind.svc.edmx")
+			.build();
+
+		Map<String, Object> customer = new HashMap<>();
+		customer.put("CustomerID", "ANTON");
+		customer.put("CompanyName", "Name");
+		customer.put("ContactName", "Name");
+		server.getDataStore().put("Customers", customer);
+		Map<String, Object> key = Collections.singletonMap("CustomerID", "ANTON");
+		Map<String, Object> stored = server.getDataStore().getRecordByKey("Customers", key);
+
+		final int updates = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		CountDownLatch startGate = new CountDownLatch(1);
+		AtomicBoolean updating = new AtomicBoolean(true);
+		String uri = server.getUri() + "/Customers('ANTON')";
+
+		// Two writers change the name fields together, another one changes a different field
+		List<Future<?>> writes = new ArrayList<>();
+		for (int w = 0; w < 2; w++) {
+			final int writer = w;
+			writes.add(executor.submit(() -> {
+				startGate.await();
+				for (int i = 0; i < updates; i++) {
+					String name = "Name " + writer + "-" + i;
+					Request.Patch(uri)
+						.bodyString("{\"CompanyName\": \"" + name + "\", \"ContactName\": \"" + name + "\"}",
+								ContentType.APPLICATION_JSON.withCharset("utf-8"))
+						.execute().returnResponse();
+				}
+				return null;
+			}));
+		}
+		writes.add(executor.submit(() -> {
+			startGate.await();
+			for (int i = 0; i < updates; i++) {
+				Request.Patch(uri)
+					.bodyString("{\"Fax\": \"" + i + "\"}", ContentType.APPLICATION_JSON.withCharset("utf-8"))
+					.execute().returnResponse();
+			}
+			return null;
+		}));
+
+		// A reader checks that it never sees a record with only some of the fields of an update
+		Pattern names = Pattern.compile("\"CompanyName\":\"([^\"]*)\".*\"ContactName\":\"([^\"]*)\"");
+		Future<?> reads = executor.submit(() -> {
+			startGate.await();
+			while (updating.get()) {
+				String json = Request.Get(uri)
+						.addHeader("Accept", "application/json; charset=utf-8")
+						.execute().returnContent().asString();
+				Matcher matcher = names.matcher(json);
+				assertThat("Record is complete", matcher.find(), is(true));
+				assertThat("Updates are applied at once", matcher.group(2), is(matcher.group(1)));
+			}
+			return null;
+		});
+
+		startGate.countDown();
+		for (Future<?> write : writes)
+			write.get(60, TimeUnit.SECONDS);
+		updating.set(false);
+		reads.get(60, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		Map<String, Object> entry = server.getDataStore().getRecordByKey("Customers", key);
+		assertThat("No update was lost", entry.get("Fax"), is(String.valueOf(updates - 1)));
+		assertThat("Name fields were updated", entry.get("CompanyName"), is(entry.get("ContactName")));
+		assertThat("Name fields were updated", entry.get("CompanyName"), not("Name"));
+		assertThat("Stored records are not changed in place", stored.get("CompanyName"), is("Name"));
+		assertThat("Stored records are not changed in place", stored.containsKey("Fax"), is(false));
 	}
 
 }